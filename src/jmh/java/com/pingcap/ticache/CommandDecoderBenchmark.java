@@ -0,0 +1,81 @@
+package com.pingcap.ticache;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding a batch of depth pipelined commands, handed to the decoder in
+ * reads of fragment bytes, 0 for the whole batch in one read
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandDecoderBenchmark {
+
+    @Param({"get", "set", "mixed"})
+    public String commands;
+
+    @Param({"1", "32"})
+    public int depth;
+
+    @Param({"0", "7", "1460"})
+    public int fragment;
+
+    private byte[] input;
+
+    private EmbeddedChannel channel;
+
+    @Setup
+    public void setup() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < depth; i++) {
+            String key = "key:" + i;
+            boolean get = commands.equals("get") || (commands.equals("mixed") && i % 4 != 0);
+            String line = get
+                    ? "get " + key + "\r\n"
+                    : "set " + key + " 0 0 100\r\n" + new String(new char[100]).replace('\0', 'x') + "\r\n";
+            byte[] bytes = line.getBytes(StandardCharsets.US_ASCII);
+            out.write(bytes, 0, bytes.length);
+        }
+        input = out.toByteArray();
+        channel = new EmbeddedChannel(new CommandDecoder());
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public void decode(Blackhole bh) {
+        int step = fragment == 0 ? input.length : fragment;
+        for (int offset = 0; offset < input.length; offset += step) {
+            channel.writeInbound(Unpooled.wrappedBuffer(input, offset, Math.min(step, input.length - offset)));
+        }
+        Object command;
+        while ((command = channel.readInbound()) != null) {
+            bh.consume(command);
+        }
+    }
+}
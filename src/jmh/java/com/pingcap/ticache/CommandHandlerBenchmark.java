@@ -0,0 +1,110 @@
+package com.pingcap.ticache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests end to end through decoder and handler against the memory backend
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandHandlerBenchmark {
+
+    private static final int KEYS = 1024;
+
+    private static final int MULTI_GET_WIDTH = 10;
+
+    @Param({"32", "4096"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean nearCache;
+
+    private HandlerFixture fixture;
+
+    private byte[][] gets;
+
+    private byte[][] sets;
+
+    private byte[][] multiGets;
+
+    private byte[] incr;
+
+    private int next;
+
+    @Setup
+    public void setup() {
+        ServerProperties serverProperties = new ServerProperties();
+        serverProperties.getNearCache().setEnabled(nearCache);
+        fixture = new HandlerFixture(serverProperties);
+
+        String val = new String(new char[size]).replace('\0', 'x');
+        gets = new byte[KEYS][];
+        sets = new byte[KEYS][];
+        multiGets = new byte[KEYS][];
+        for (int i = 0; i < KEYS; i++) {
+            gets[i] = ascii("get key:" + i + "\r\n");
+            sets[i] = ascii("set key:" + i + " 0 0 " + size + "\r\n" + val + "\r\n");
+            StringBuilder sb = new StringBuilder("get");
+            for (int j = 0; j < MULTI_GET_WIDTH; j++) {
+                sb.append(" key:").append((i + j) % KEYS);
+            }
+            multiGets[i] = ascii(sb.append("\r\n").toString());
+            fixture.write(sets[i]);
+        }
+        fixture.write(ascii("set counter 0 0 1\r\n0\r\n"));
+        incr = ascii("incr counter 1\r\n");
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixture.close();
+    }
+
+    private int nextIndex() {
+        next = (next + 1) & (KEYS - 1);
+        return next;
+    }
+
+    @Benchmark
+    public int get() {
+        return fixture.write(gets[nextIndex()]);
+    }
+
+    @Benchmark
+    public int set() {
+        return fixture.write(sets[nextIndex()]);
+    }
+
+    @Benchmark
+    public int multiGet() {
+        return fixture.write(multiGets[nextIndex()]);
+    }
+
+    @Benchmark
+    public int incr() {
+        return fixture.write(incr);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,81 @@
+package com.pingcap.ticache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The decoder, reply encoder and command handler wired as the server does, minus Spring,
+ * on an EmbeddedChannel over the memory backend
+ *
+ * Commands run synchronously on the calling thread, so a request has been
+ * answered once write returns.
+ *
+ */
+public class HandlerFixture implements AutoCloseable {
+
+    private final Client client = new MemoryClient();
+
+    private final ExecutorService commandExecutor = Executors.newSingleThreadExecutor();
+
+    private final Keyspace keyspace;
+
+    private final WriteBatcher writeBatcher;
+
+    private final HotKeys hotKeys;
+
+    private final NegativeCache negativeCache;
+
+    private final ChunkStore chunkStore;
+
+    private final EmbeddedChannel channel;
+
+    public HandlerFixture(ServerProperties serverProperties) {
+        serverProperties.getAsync().setEnabled(false);
+        NearCache nearCache = new NearCache(serverProperties);
+        keyspace = new Keyspace(client, nearCache, serverProperties);
+        writeBatcher = new WriteBatcher(client, serverProperties);
+        Stats stats = new Stats();
+        Compression compression = new Compression(stats, serverProperties);
+        hotKeys = new HotKeys(client, keyspace, compression, serverProperties);
+        negativeCache = new NegativeCache(client, keyspace, serverProperties);
+        chunkStore = new ChunkStore(client, keyspace, stats, serverProperties);
+        CommandHandler handler = new CommandHandler(client, serverProperties, commandExecutor, keyspace,
+                nearCache, new CasMetrics(), writeBatcher, stats, new SlowLog(serverProperties, client),
+                hotKeys, negativeCache, compression, chunkStore);
+        channel = new EmbeddedChannel(new CommandDecoder(chunkStore), new ReplyEncoder(), handler);
+    }
+
+    public Client getClient() {
+        return client;
+    }
+
+    /**
+     * @return the number of reply bytes written
+     */
+    public int write(byte[] request) {
+        channel.writeInbound(Unpooled.wrappedBuffer(request));
+        int bytes = 0;
+        Object reply;
+        while ((reply = channel.readOutbound()) != null) {
+            bytes += ((ByteBuf) reply).readableBytes();
+            ReferenceCountUtil.release(reply);
+        }
+        return bytes;
+    }
+
+    @Override
+    public void close() {
+        channel.finishAndReleaseAll();
+        writeBatcher.stop();
+        hotKeys.stop();
+        negativeCache.stop();
+        chunkStore.stop();
+        keyspace.stop();
+        commandExecutor.shutdown();
+    }
+}
@@ -0,0 +1,243 @@
+package com.pingcap.ticache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.HdrHistogram.Histogram;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One load generator connection, keeping up to pipeline requests in flight
+ *
+ * Without a rate a request is sent as soon as a reply frees its slot.
+ * With a rate requests are due at fixed intervals; one that can not be
+ * sent on time because the pipeline is full is sent late, but its latency
+ * still counts from when it was due, so a stalled server is not hidden by
+ * the generator waiting for it.
+ *
+ * All state is only touched from the channel's event loop.
+ *
+ */
+public class LoadConnection extends SimpleChannelInboundHandler<Integer> {
+
+    private static final long MAX_LATENCY = TimeUnit.SECONDS.toNanos(60);
+
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final LoadGenerator load;
+
+    private final int depth;
+
+    private final long intervalNanos;
+
+    /**
+     * intended start, actual send time and width of every request in flight, -1 width for a set
+     */
+    private final long[] intended;
+
+    private final long[] sent;
+
+    private final int[] widths;
+
+    private int head;
+
+    private int inFlight;
+
+    private ChannelHandlerContext ctx;
+
+    private ScheduledFuture<?> ticker;
+
+    private long nextIntended;
+
+    private boolean running;
+
+    private CountDownLatch preloaded;
+
+    /**
+     * expected interval between requests of a slot, used to correct closed loop latencies
+     */
+    private long expectedInterval;
+
+    private Histogram latency = newHistogram();
+
+    private Histogram corrected = newHistogram();
+
+    private long gets;
+
+    private long sets;
+
+    private long hits;
+
+    private long misses;
+
+    private long errors;
+
+    public LoadConnection(LoadGenerator load, int depth, long intervalNanos) {
+        this.load = load;
+        this.depth = depth;
+        this.intervalNanos = intervalNanos;
+        this.intended = new long[depth];
+        this.sent = new long[depth];
+        this.widths = new int[depth];
+    }
+
+    private static Histogram newHistogram() {
+        return new Histogram(MAX_LATENCY, 3);
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+    }
+
+    /**
+     * Sets keys handed out by the generator until there are none left
+     */
+    public void preload(CountDownLatch done) {
+        ctx.executor().execute(() -> {
+            preloaded = done;
+            fill();
+        });
+    }
+
+    public void start() {
+        ctx.executor().execute(() -> {
+            running = true;
+            nextIntended = System.nanoTime();
+            if (intervalNanos > 0) {
+                long tick = Math.max(TimeUnit.MICROSECONDS.toNanos(50), Math.min(intervalNanos, TimeUnit.MILLISECONDS.toNanos(1)));
+                ticker = ctx.executor().scheduleAtFixedRate(this::fill, 0, tick, TimeUnit.NANOSECONDS);
+            }
+            fill();
+        });
+    }
+
+    public void stop() {
+        ctx.executor().execute(() -> {
+            running = false;
+            if (ticker != null) {
+                ticker.cancel(false);
+            }
+        });
+    }
+
+    /**
+     * Starts a new measurement, returning the one so far
+     */
+    public LoadResult reset(long expectedInterval) throws Exception {
+        return ctx.executor().submit(() -> {
+            LoadResult result = new LoadResult(latency, corrected, gets, sets, hits, misses, errors);
+            this.expectedInterval = expectedInterval;
+            latency = newHistogram();
+            corrected = newHistogram();
+            gets = sets = hits = misses = errors = 0;
+            return result;
+        }).get();
+    }
+
+    private void fill() {
+        long now = System.nanoTime();
+        boolean wrote = false;
+        while (inFlight < depth) {
+            if (preloaded != null) {
+                int key = load.nextPreloadKey();
+                if (key < 0) {
+                    break;
+                }
+                sendSet(key, now);
+            } else if (!running) {
+                break;
+            } else if (intervalNanos > 0) {
+                if (nextIntended > now) {
+                    break;
+                }
+                send(nextIntended);
+                nextIntended += intervalNanos;
+            } else {
+                send(now);
+            }
+            wrote = true;
+        }
+        if (wrote) {
+            ctx.flush();
+        }
+        if (preloaded != null && inFlight == 0) {
+            preloaded.countDown();
+            preloaded = null;
+        }
+    }
+
+    private void send(long start) {
+        if (load.nextIsSet()) {
+            sendSet(load.nextKey(), start);
+        } else {
+            int width = load.getMultiGet();
+            ByteBuf buf = ctx.alloc().buffer(8 + width * 16);
+            buf.writeCharSequence("get", StandardCharsets.US_ASCII);
+            for (int i = 0; i < width; i++) {
+                buf.writeCharSequence(" key:" + load.nextKey(), StandardCharsets.US_ASCII);
+            }
+            buf.writeBytes(CRLF);
+            push(buf, start, width);
+        }
+    }
+
+    private void sendSet(int key, long start) {
+        int size = load.nextValueSize();
+        ByteBuf buf = ctx.alloc().buffer(32 + size);
+        buf.writeCharSequence("set key:" + key + " 0 0 " + size + "\r\n", StandardCharsets.US_ASCII);
+        buf.writeBytes(load.getValue(), 0, size);
+        buf.writeBytes(CRLF);
+        push(buf, start, -1);
+    }
+
+    private void push(ByteBuf buf, long start, int width) {
+        int slot = (head + inFlight) % depth;
+        intended[slot] = start;
+        sent[slot] = System.nanoTime();
+        widths[slot] = width;
+        inFlight++;
+        ctx.write(buf);
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, Integer reply) {
+        long now = System.nanoTime();
+        int slot = head;
+        head = (head + 1) % depth;
+        inFlight--;
+
+        long serviceTime = Math.min(now - sent[slot], MAX_LATENCY);
+        latency.recordValue(serviceTime);
+        if (intervalNanos > 0) {
+            corrected.recordValue(Math.min(now - intended[slot], MAX_LATENCY));
+        } else if (expectedInterval > 0) {
+            corrected.recordValueWithExpectedInterval(serviceTime, expectedInterval);
+        } else {
+            corrected.recordValue(serviceTime);
+        }
+
+        int width = widths[slot];
+        if (reply == ReplyDecoder.ERROR) {
+            errors++;
+        } else if (width < 0) {
+            sets++;
+        } else {
+            gets++;
+            hits += reply;
+            misses += width - reply;
+        }
+
+        fill();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        cause.printStackTrace();
+        ctx.close();
+    }
+}
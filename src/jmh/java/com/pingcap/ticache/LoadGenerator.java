@@ -0,0 +1,403 @@
+package com.pingcap.ticache;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * memtier style load generator speaking the text protocol
+ *
+ * mvn -Pbench test-compile exec:exec -Dbench.main=com.pingcap.ticache.LoadGenerator \
+ *     -Dbench.args="--connections 32 --pipeline 8 --ratio 1:10 --distribution zipfian"
+ *
+ * --host, --port            server, 127.0.0.1:8090
+ * --connections             connections, 16
+ * --threads                 event loops driving them, number of cpus
+ * --pipeline                requests in flight per connection, 1
+ * --ratio                   set:get, 1:10
+ * --keys                    key space, 100000
+ * --distribution            uniform or zipfian, uniform
+ * --theta                   zipfian skew, 0.99
+ * --value-size              bytes, n or min-max, 100
+ * --multi-get               keys per get, 1
+ * --rate                    total requests per second, 0 for as fast as replies come back
+ * --warmup, --duration      seconds, 5 and 30
+ * --preload                 set every key once before the run
+ * --histogram               file to write the corrected percentile distribution to
+ * --embedded                start the server in this process first, any --app.* argument
+ *                           is passed on to it, e.g. --app.server.backend.type=memory
+ *
+ * Latency is reported as measured and corrected for coordinated omission:
+ * with a rate it counts from when a request was due, without one each
+ * sample is back-filled for the slot interval seen during warmup.
+ *
+ */
+public class LoadGenerator {
+
+    private String host = "127.0.0.1";
+
+    private int port = 8090;
+
+    private int connections = 16;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private int pipeline = 1;
+
+    private int setRatio = 1;
+
+    private int getRatio = 10;
+
+    private int keys = 100000;
+
+    private String distribution = "uniform";
+
+    private double theta = 0.99;
+
+    private int minValueSize = 100;
+
+    private int maxValueSize = 100;
+
+    private int multiGet = 1;
+
+    private long rate;
+
+    private int warmup = 5;
+
+    private int duration = 30;
+
+    private boolean preload;
+
+    private String histogram;
+
+    private boolean embedded;
+
+    private final List<String> serverArgs = new ArrayList<>();
+
+    private byte[] value;
+
+    private Zipfian zipfian;
+
+    private final AtomicInteger preloadCursor = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator load = new LoadGenerator();
+        load.parse(args);
+        ConfigurableApplicationContext server = load.embedded ? load.startServer() : null;
+        try {
+            load.run();
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("--app.")) {
+                serverArgs.add(arg);
+                continue;
+            }
+            switch (arg) {
+                case "--preload":
+                    preload = true;
+                    continue;
+                case "--embedded":
+                    embedded = true;
+                    continue;
+                default:
+                    break;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("missing value for " + arg);
+            }
+            String val = args[++i];
+            switch (arg) {
+                case "--host":
+                    host = val;
+                    break;
+                case "--port":
+                    port = Integer.parseInt(val);
+                    break;
+                case "--connections":
+                    connections = Integer.parseInt(val);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(val);
+                    break;
+                case "--pipeline":
+                    pipeline = Integer.parseInt(val);
+                    break;
+                case "--ratio":
+                    String[] ratio = val.split(":");
+                    setRatio = Integer.parseInt(ratio[0]);
+                    getRatio = Integer.parseInt(ratio[1]);
+                    break;
+                case "--keys":
+                    keys = Integer.parseInt(val);
+                    break;
+                case "--distribution":
+                    distribution = val;
+                    break;
+                case "--theta":
+                    theta = Double.parseDouble(val);
+                    break;
+                case "--value-size":
+                    String[] sizes = val.split("-");
+                    minValueSize = Integer.parseInt(sizes[0]);
+                    maxValueSize = Integer.parseInt(sizes[sizes.length - 1]);
+                    break;
+                case "--multi-get":
+                    multiGet = Integer.parseInt(val);
+                    break;
+                case "--rate":
+                    rate = Long.parseLong(val);
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(val);
+                    break;
+                case "--duration":
+                    duration = Integer.parseInt(val);
+                    break;
+                case "--histogram":
+                    histogram = val;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+
+        if (!distribution.equals("uniform") && !distribution.equals("zipfian")) {
+            throw new IllegalArgumentException("unknown distribution " + distribution);
+        }
+        if (distribution.equals("zipfian")) {
+            zipfian = new Zipfian(keys, theta);
+        }
+        value = new byte[maxValueSize];
+        Arrays.fill(value, (byte) 'x');
+    }
+
+    private ConfigurableApplicationContext startServer() throws Exception {
+        List<String> args = new ArrayList<>(serverArgs);
+        args.add("--app.server.tcp-port=" + port);
+        ConfigurableApplicationContext context = SpringApplication.run(Application.class, args.toArray(new String[0]));
+        MainServer mainServer = context.getBean(MainServer.class);
+        Thread thread = new Thread(() -> {
+            try {
+                mainServer.start();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, "ticache-embedded");
+        thread.setDaemon(true);
+        thread.start();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), 1000);
+                return context;
+            } catch (Exception e) {
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        NioEventLoopGroup group = new NioEventLoopGroup(threads);
+        long intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(connections) / rate : 0;
+        try {
+            List<LoadConnection> conns = new ArrayList<>(connections);
+            List<Channel> channels = new ArrayList<>(connections);
+            for (int i = 0; i < connections; i++) {
+                LoadConnection conn = new LoadConnection(this, pipeline, intervalNanos);
+                Bootstrap b = new Bootstrap()
+                        .group(group)
+                        .channel(NioSocketChannel.class)
+                        .option(ChannelOption.TCP_NODELAY, true)
+                        .handler(new ChannelInitializer<SocketChannel>() {
+                            @Override
+                            protected void initChannel(SocketChannel ch) {
+                                ch.pipeline().addLast(new ReplyDecoder(), conn);
+                            }
+                        });
+                channels.add(b.connect(host, port).sync().channel());
+                conns.add(conn);
+            }
+
+            if (preload) {
+                long start = System.nanoTime();
+                CountDownLatch done = new CountDownLatch(connections);
+                for (LoadConnection conn : conns) {
+                    conn.preload(done);
+                }
+                done.await();
+                System.out.printf("preloaded %d keys in %.1f s%n", keys, (System.nanoTime() - start) / 1e9);
+            }
+
+            for (LoadConnection conn : conns) {
+                conn.start();
+            }
+            Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+            LoadResult warm = collect(conns, 0);
+            long expectedInterval = warm.latency.getTotalCount() == 0 ? 0 : (long) warm.latency.getMean();
+
+            long start = System.nanoTime();
+            collect(conns, expectedInterval);
+            Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+            LoadResult result = collect(conns, expectedInterval);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            for (LoadConnection conn : conns) {
+                conn.stop();
+            }
+            for (Channel channel : channels) {
+                channel.close().sync();
+            }
+            report(result, seconds);
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
+    private static LoadResult collect(List<LoadConnection> conns, long expectedInterval) throws Exception {
+        LoadResult total = null;
+        for (LoadConnection conn : conns) {
+            LoadResult result = conn.reset(expectedInterval);
+            if (total == null) {
+                total = result;
+            } else {
+                total.add(result);
+            }
+        }
+        return total;
+    }
+
+    private void report(LoadResult result, double seconds) throws Exception {
+        System.out.printf("%d connections, pipeline %d, set:get %d:%d, %s over %d keys, values %d-%d bytes, "
+                        + "multi-get %d, rate %s, %d s%n",
+                connections, pipeline, setRatio, getRatio, distribution, keys, minValueSize, maxValueSize,
+                multiGet, rate > 0 ? Long.toString(rate) : "unbounded", duration);
+        System.out.printf("%-16s %12.0f%n", "ops/sec", result.getOps() / seconds);
+        System.out.printf("%-16s %12.0f%n", "sets/sec", result.sets / seconds);
+        System.out.printf("%-16s %12.0f%n", "gets/sec", result.gets / seconds);
+        System.out.printf("%-16s %12.0f%n", "hits/sec", result.hits / seconds);
+        System.out.printf("%-16s %12.0f%n", "misses/sec", result.misses / seconds);
+        System.out.printf("%-16s %12d%n", "errors", result.errors);
+        System.out.printf("%-16s %10s %10s %10s %10s %10s %10s%n",
+                "latency (us)", "p50", "p90", "p99", "p99.9", "p99.99", "max");
+        printLatency("measured", result.latency);
+        printLatency("corrected", result.corrected);
+
+        if (histogram != null) {
+            try (PrintStream out = new PrintStream(new FileOutputStream(histogram))) {
+                result.corrected.outputPercentileDistribution(out, 1000.0);
+            }
+        }
+    }
+
+    private static void printLatency(String name, Histogram h) {
+        System.out.printf("%-16s %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n", name,
+                h.getValueAtPercentile(50) / 1000.0, h.getValueAtPercentile(90) / 1000.0,
+                h.getValueAtPercentile(99) / 1000.0, h.getValueAtPercentile(99.9) / 1000.0,
+                h.getValueAtPercentile(99.99) / 1000.0, h.getMaxValue() / 1000.0);
+    }
+
+    int nextKey() {
+        return zipfian != null ? zipfian.next() : ThreadLocalRandom.current().nextInt(keys);
+    }
+
+    /**
+     * @return the next key to preload, -1 once every key has been handed out
+     */
+    int nextPreloadKey() {
+        int key = preloadCursor.getAndIncrement();
+        return key < keys ? key : -1;
+    }
+
+    boolean nextIsSet() {
+        return ThreadLocalRandom.current().nextInt(setRatio + getRatio) < setRatio;
+    }
+
+    int nextValueSize() {
+        return minValueSize == maxValueSize
+                ? minValueSize : minValueSize + ThreadLocalRandom.current().nextInt(maxValueSize - minValueSize + 1);
+    }
+
+    int getMultiGet() {
+        return multiGet;
+    }
+
+    byte[] getValue() {
+        return value;
+    }
+
+    /**
+     * Zipfian ranks over [0, n) as in YCSB, after Gray et al.
+     * "Quickly generating billion-record synthetic databases"; rank 0 is the hottest key
+     */
+    static class Zipfian {
+
+        private final int n;
+
+        private final double theta;
+
+        private final double zetan;
+
+        private final double alpha;
+
+        private final double eta;
+
+        Zipfian(int n, double theta) {
+            this.n = n;
+            this.theta = theta;
+            this.zetan = zeta(n, theta);
+            this.alpha = 1.0 / (1.0 - theta);
+            this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+        }
+
+        private static double zeta(int n, double theta) {
+            double sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+
+        int next() {
+            double u = ThreadLocalRandom.current().nextDouble();
+            double uz = u * zetan;
+            if (uz < 1.0) {
+                return 0;
+            }
+            if (uz < 1.0 + Math.pow(0.5, theta)) {
+                return 1;
+            }
+            return (int) Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+        }
+    }
+}
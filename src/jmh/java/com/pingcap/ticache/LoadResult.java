@@ -0,0 +1,48 @@
+package com.pingcap.ticache;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * Latencies and counts of a load generator run, in nanos
+ *
+ */
+public class LoadResult {
+
+    final Histogram latency;
+
+    final Histogram corrected;
+
+    long gets;
+
+    long sets;
+
+    long hits;
+
+    long misses;
+
+    long errors;
+
+    public LoadResult(Histogram latency, Histogram corrected, long gets, long sets, long hits, long misses, long errors) {
+        this.latency = latency;
+        this.corrected = corrected;
+        this.gets = gets;
+        this.sets = sets;
+        this.hits = hits;
+        this.misses = misses;
+        this.errors = errors;
+    }
+
+    public void add(LoadResult other) {
+        latency.add(other.latency);
+        corrected.add(other.corrected);
+        gets += other.gets;
+        sets += other.sets;
+        hits += other.hits;
+        misses += other.misses;
+        errors += other.errors;
+    }
+
+    public long getOps() {
+        return gets + sets + errors;
+    }
+}
@@ -0,0 +1,58 @@
+package com.pingcap.ticache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Splits the server's replies for the load generator
+ *
+ * A retrieval reply is passed on as the number of VALUE blocks before its
+ * END, any other reply as 0, or -1 if it is an error.
+ *
+ */
+public class ReplyDecoder extends ByteToMessageDecoder {
+
+    public static final int ERROR = -1;
+
+    private int hits;
+
+    /**
+     * bytes of a VALUE block still to be skipped, -1 while reading lines
+     */
+    private int pendingData = -1;
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        if (pendingData >= 0) {
+            if (in.readableBytes() < pendingData + 2) {
+                return;
+            }
+            in.skipBytes(pendingData + 2);
+            pendingData = -1;
+            hits++;
+            return;
+        }
+
+        int eol = in.indexOf(in.readerIndex(), in.writerIndex(), (byte) '\n');
+        if (eol < 0) {
+            return;
+        }
+        String line = in.toString(in.readerIndex(), eol - in.readerIndex(), StandardCharsets.US_ASCII).trim();
+        in.readerIndex(eol + 1);
+
+        if (line.startsWith("VALUE ")) {
+            pendingData = Integer.parseInt(line.substring(line.lastIndexOf(' ') + 1));
+        } else if (line.equals("END")) {
+            out.add(hits);
+            hits = 0;
+        } else if (line.endsWith("ERROR") || line.startsWith("CLIENT_ERROR") || line.startsWith("SERVER_ERROR")) {
+            out.add(ERROR);
+        } else {
+            out.add(0);
+        }
+    }
+}
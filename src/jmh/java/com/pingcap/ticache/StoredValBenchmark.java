@@ -0,0 +1,73 @@
+package com.pingcap.ticache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of stored records across value sizes
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoredValBenchmark {
+
+    @Param({"16", "512", "16384", "1048576"})
+    public int size;
+
+    private byte[] val;
+
+    private byte[] record;
+
+    private byte[] legacyRecord;
+
+    @Setup
+    public void setup() {
+        val = new byte[size];
+        Arrays.fill(val, (byte) 'x');
+        record = new StoredVal(7, 0, size, val).getFullVal();
+
+        byte[] header = ("7 0 " + size + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        legacyRecord = new byte[header.length + size + 2];
+        System.arraycopy(header, 0, legacyRecord, 0, header.length);
+        System.arraycopy(val, 0, legacyRecord, header.length, size);
+        legacyRecord[legacyRecord.length - 2] = '\r';
+        legacyRecord[legacyRecord.length - 1] = '\n';
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return new StoredVal(7, 0, size, val).getFullVal();
+    }
+
+    @Benchmark
+    public StoredVal decode() {
+        return new StoredVal(record);
+    }
+
+    @Benchmark
+    public byte[] decodeCopy() {
+        return new StoredVal(record).getVal();
+    }
+
+    @Benchmark
+    public StoredVal decodeLegacy() {
+        return new StoredVal(legacyRecord);
+    }
+}
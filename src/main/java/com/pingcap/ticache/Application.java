@@ -5,11 +5,17 @@ import com.pingcap.ticache.ChannelRepository;
 import com.pingcap.ticache.MainServer;
 import com.pingcap.ticache.ServerChannelInitializer;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.AdaptiveRecvByteBufAllocator;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
@@ -22,10 +28,13 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
 import org.springframework.context.annotation.PropertySource;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Spring Java Configuration and Bootstrap
@@ -49,35 +58,71 @@ public class Application {
     }
 
     @Bean(name = "serverBootstrap")
-    public ServerBootstrap bootstrap() {
+    public ServerBootstrap bootstrap(Transport transport) {
         ServerBootstrap b = new ServerBootstrap();
-        b.group(bossGroup(), workerGroup())
-                .channel(NioServerSocketChannel.class)
+        b.group(bossGroup(transport), workerGroup(transport))
+                .channel(transport.serverChannelClass())
                 .handler(new LoggingHandler(LogLevel.DEBUG))
                 .childHandler(serverChannelInitializer);
-        Map<ChannelOption<?>, Object> tcpChannelOptions = tcpChannelOptions();
+        Map<ChannelOption<?>, Object> tcpChannelOptions = tcpChannelOptions(transport);
         Set<ChannelOption<?>> keySet = tcpChannelOptions.keySet();
         for (@SuppressWarnings("rawtypes") ChannelOption option : keySet) {
             b.option(option, tcpChannelOptions.get(option));
         }
+        Map<ChannelOption<?>, Object> childChannelOptions = childChannelOptions();
+        for (@SuppressWarnings("rawtypes") ChannelOption option : childChannelOptions.keySet()) {
+            b.childOption(option, childChannelOptions.get(option));
+        }
         return b;
     }
 
     @Bean
-    public Map<ChannelOption<?>, Object> tcpChannelOptions() {
+    public Map<ChannelOption<?>, Object> tcpChannelOptions(Transport transport) {
         Map<ChannelOption<?>, Object> options = new HashMap<ChannelOption<?>, Object>();
         options.put(ChannelOption.SO_BACKLOG, serverProperties.getBacklog());
+        options.put(ChannelOption.ALLOCATOR, allocator());
+        if (transport.isReusePort()) {
+            options.put(EpollChannelOption.SO_REUSEPORT, true);
+        }
+        return options;
+    }
+
+    /**
+     * Options of every accepted connection
+     */
+    @Bean
+    public Map<ChannelOption<?>, Object> childChannelOptions() {
+        ServerProperties.SocketProperties socket = serverProperties.getSocket();
+        Map<ChannelOption<?>, Object> options = new HashMap<ChannelOption<?>, Object>();
+        options.put(ChannelOption.SO_KEEPALIVE, serverProperties.isKeepAlive());
+        options.put(ChannelOption.TCP_NODELAY, socket.isTcpNoDelay());
+        if (socket.getSendBuffer() > 0) {
+            options.put(ChannelOption.SO_SNDBUF, socket.getSendBuffer());
+        }
+        if (socket.getReceiveBuffer() > 0) {
+            options.put(ChannelOption.SO_RCVBUF, socket.getReceiveBuffer());
+        }
+        options.put(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                new WriteBufferWaterMark(socket.getWriteBufferLowWaterMark(), socket.getWriteBufferHighWaterMark()));
+        options.put(ChannelOption.ALLOCATOR, allocator());
+        options.put(ChannelOption.RCVBUF_ALLOCATOR, new AdaptiveRecvByteBufAllocator(
+                socket.getReceiveBufferMin(), socket.getReceiveBufferInitial(), socket.getReceiveBufferMax()));
         return options;
     }
 
+    private ByteBufAllocator allocator() {
+        return serverProperties.getSocket().isPooledAllocator()
+                ? PooledByteBufAllocator.DEFAULT : UnpooledByteBufAllocator.DEFAULT;
+    }
+
     @Bean(destroyMethod = "shutdownGracefully")
-    public NioEventLoopGroup bossGroup() {
-        return new NioEventLoopGroup(serverProperties.getBossCount());
+    public EventLoopGroup bossGroup(Transport transport) {
+        return transport.newEventLoopGroup(serverProperties.getBossCount(), "ticache-boss");
     }
 
     @Bean(destroyMethod = "shutdownGracefully")
-    public NioEventLoopGroup workerGroup() {
-        return new NioEventLoopGroup(serverProperties.getWorkerCount());
+    public EventLoopGroup workerGroup(Transport transport) {
+        return transport.newEventLoopGroup(serverProperties.getWorkerCount(), "ticache-worker");
     }
 
     @Bean
@@ -90,8 +135,29 @@ public class Application {
         return new ChannelRepository();
     }
 
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService commandExecutor() {
+        return Executors.newFixedThreadPool(serverProperties.getAsync().getThreads(),
+                new DefaultThreadFactory("ticache-command"));
+    }
+
     @Bean
-    public Client client() {
-        return new Client();
+    public Client client(Stats stats) throws IOException {
+        Client client = new MeasuredClient(backend(), stats);
+        return serverProperties.getBackend().isSingleFlight() ? new SingleFlightClient(client, stats) : client;
+    }
+
+    private Client backend() throws IOException {
+        ServerProperties.BackendProperties backend = serverProperties.getBackend();
+        switch (backend.getType()) {
+            case "tikv":
+                return new TiKVClient(backend.getPdAddress(), backend.getThreads(), backend.isNativeTtl());
+            case "memory":
+                return new MemoryClient();
+            case "local":
+                return new LocalClient(backend.getDataDir(), backend.getSegmentBytes());
+            default:
+                throw new IllegalArgumentException("unknown backend type " + backend.getType());
+        }
     }
 }
@@ -0,0 +1,42 @@
+package com.pingcap.ticache;
+
+import jdk.jfr.Category;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event of a backend operation, from the call until its future completes
+ *
+ */
+@Name("com.pingcap.ticache.Backend")
+@Label("Backend")
+@Category("ticache")
+@StackTrace(false)
+public class BackendEvent extends jdk.jfr.Event {
+
+    /**
+     * Checked before creating an event, so nothing is allocated while no recording wants it
+     */
+    static boolean enabled() {
+        return Type.TYPE.isEnabled();
+    }
+
+    /**
+     * registers the event type once the event class itself is initialized
+     */
+    private static class Type {
+
+        static final EventType TYPE = EventType.getEventType(BackendEvent.class);
+    }
+
+    @Label("Operation")
+    String op;
+
+    @Label("Key")
+    String key;
+
+    @Label("Failed")
+    boolean failed;
+}
@@ -0,0 +1,117 @@
+package com.pingcap.ticache;
+
+import io.netty.channel.CombinedChannelDuplexHandler;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Memcached binary protocol of one connection
+ * https://github.com/memcached/memcached/wiki/BinaryProtocolRevamped
+ *
+ * Requests are decoded into the same Command objects as the text protocol
+ * and run by the same CommandHandler. Replies come back in request order,
+ * so the decoder queues the header fields every reply needs, opcode and
+ * opaque, and the encoder takes them off in the same order.
+ *
+ */
+public class BinaryCodec extends CombinedChannelDuplexHandler<BinaryCommandDecoder, BinaryReplyEncoder> {
+
+    public static final byte MAGIC_REQUEST = (byte) 0x80;
+
+    public static final byte MAGIC_RESPONSE = (byte) 0x81;
+
+    public static final int HEADER_SIZE = 24;
+
+    public static final int GET = 0x00;
+    public static final int SET = 0x01;
+    public static final int ADD = 0x02;
+    public static final int REPLACE = 0x03;
+    public static final int DELETE = 0x04;
+    public static final int INCREMENT = 0x05;
+    public static final int DECREMENT = 0x06;
+    public static final int QUIT = 0x07;
+    public static final int FLUSH = 0x08;
+    public static final int GETQ = 0x09;
+    public static final int NOOP = 0x0a;
+    public static final int VERSION = 0x0b;
+    public static final int GETK = 0x0c;
+    public static final int GETKQ = 0x0d;
+    public static final int APPEND = 0x0e;
+    public static final int PREPEND = 0x0f;
+    public static final int STAT = 0x10;
+    public static final int SETQ = 0x11;
+    public static final int ADDQ = 0x12;
+    public static final int REPLACEQ = 0x13;
+    public static final int DELETEQ = 0x14;
+    public static final int INCREMENTQ = 0x15;
+    public static final int DECREMENTQ = 0x16;
+    public static final int QUITQ = 0x17;
+    public static final int FLUSHQ = 0x18;
+    public static final int APPENDQ = 0x19;
+    public static final int PREPENDQ = 0x1a;
+    public static final int TOUCH = 0x1c;
+
+    public static final short STATUS_OK = 0x0000;
+    public static final short STATUS_KEY_NOT_FOUND = 0x0001;
+    public static final short STATUS_KEY_EXISTS = 0x0002;
+    public static final short STATUS_VALUE_TOO_LARGE = 0x0003;
+    public static final short STATUS_INVALID_ARGUMENTS = 0x0004;
+    public static final short STATUS_NOT_STORED = 0x0005;
+    public static final short STATUS_NON_NUMERIC = 0x0006;
+    public static final short STATUS_UNKNOWN_COMMAND = 0x0081;
+    public static final short STATUS_INTERNAL_ERROR = 0x0084;
+
+    public BinaryCodec() {
+        Queue<Request> requests = new ArrayDeque<>();
+        init(new BinaryCommandDecoder(requests), new BinaryReplyEncoder(requests));
+    }
+
+    /**
+     * Quiet opcodes only answer errors, and for gets a hit
+     */
+    public static boolean isQuiet(int opcode) {
+        switch (opcode) {
+            case GETQ:
+            case GETKQ:
+            case SETQ:
+            case ADDQ:
+            case REPLACEQ:
+            case DELETEQ:
+            case INCREMENTQ:
+            case DECREMENTQ:
+            case QUITQ:
+            case FLUSHQ:
+            case APPENDQ:
+            case PREPENDQ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * What the reply to a decoded request has to echo
+     *
+     */
+    static final class Request {
+
+        final int opcode;
+
+        final int opaque;
+
+        final String key;
+
+        /**
+         * set when the request was rejected by the decoder, the reply then carries this status
+         */
+        final short error;
+
+        Request(int opcode, int opaque, String key, short error) {
+            this.opcode = opcode;
+            this.opaque = opaque;
+            this.key = key;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.pingcap.ticache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+
+import static com.pingcap.ticache.BinaryCodec.*;
+
+/**
+ * Decodes memcached binary protocol requests into Command
+ *
+ * A request is a fixed 24 byte header followed by extras, key and value,
+ * whose lengths are all in the header, so a frame is only read once all
+ * of it has arrived and nothing has to be searched for.
+ *
+ * Get, GetQ, GetK, GetKQ           get
+ * Set, Add, Replace (and quiet)    set, add, replace
+ * Append, Prepend (and quiet)      append, prepend
+ * Increment, Decrement (and quiet) incr, decr, creating the key from the initial value
+ * Delete (and quiet)               delete
+ * Touch                            touch
+ * Flush (and quiet)                flush_all
+ * Noop, Version, Stat, Quit
+ *
+ * A nonzero cas in the header makes Set and Replace a cas command, and
+ * Append, Prepend and Delete conditional on the version the same way; a
+ * mismatch answers Key exists, a missing key Key not found. Other
+ * mutations do not take a cas and reject one as invalid arguments.
+ *
+ */
+public class BinaryCommandDecoder extends ByteToMessageDecoder {
+
+    private static Logger logger = LoggerFactory.getLogger(BinaryCommandDecoder.class);
+
+    /**
+     * incr and decr leave a missing key missing when the expiration is this
+     */
+    private static final int NO_INITIAL = 0xFFFFFFFF;
+
+    private final Queue<BinaryCodec.Request> requests;
+
+    /**
+     * bytes of a rejected request body still to be dropped
+     */
+    private long discardBytes;
+
+    private boolean quit;
+
+    BinaryCommandDecoder(Queue<BinaryCodec.Request> requests) {
+        this.requests = requests;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        if (quit) {
+            in.skipBytes(in.readableBytes());
+            return;
+        }
+
+        if (discardBytes > 0) {
+            int n = (int) Math.min(discardBytes, in.readableBytes());
+            in.skipBytes(n);
+            discardBytes -= n;
+            return;
+        }
+
+        if (in.readableBytes() < HEADER_SIZE) {
+            return;
+        }
+        int start = in.readerIndex();
+        if (in.getByte(start) != MAGIC_REQUEST) {
+            logger.debug("bad magic, closing");
+            in.skipBytes(in.readableBytes());
+            quit = true;
+            ctx.close();
+            return;
+        }
+        int opcode = in.getUnsignedByte(start + 1);
+        int keyLength = in.getUnsignedShort(start + 2);
+        int extrasLength = in.getUnsignedByte(start + 4);
+        long bodyLength = in.getUnsignedInt(start + 8);
+        int opaque = in.getInt(start + 12);
+        long cas = in.getLong(start + 16);
+        long valueLength = bodyLength - keyLength - extrasLength;
+
+        if (valueLength < 0 || keyLength > CommandDecoder.MAX_KEY_LENGTH || valueLength > CommandDecoder.MAX_VALUE_SIZE) {
+            in.skipBytes(HEADER_SIZE);
+            discardBytes = bodyLength;
+            short status = valueLength > CommandDecoder.MAX_VALUE_SIZE ? STATUS_VALUE_TOO_LARGE : STATUS_INVALID_ARGUMENTS;
+            out.add(error(opcode, opaque, status, status == STATUS_VALUE_TOO_LARGE ? "Too large" : "Invalid arguments"));
+            return;
+        }
+        if (in.readableBytes() < HEADER_SIZE + bodyLength) {
+            return;
+        }
+
+        long startNanos = System.nanoTime();
+        DecodeEvent event = Jfr.AVAILABLE && DecodeEvent.enabled() ? new DecodeEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+
+        in.skipBytes(HEADER_SIZE);
+        ByteBuf extras = in.readSlice(extrasLength);
+        String key = in.readCharSequence(keyLength, StandardCharsets.US_ASCII).toString();
+        byte[] value = new byte[(int) valueLength];
+        in.readBytes(value);
+
+        Command command = decodeRequest(opcode, key, extras, value, cas);
+        if (command == null) {
+            command = error(opcode, opaque, STATUS_UNKNOWN_COMMAND, "Unknown command");
+        } else if (command.getCmd().equals("error")) {
+            command = error(opcode, opaque, STATUS_INVALID_ARGUMENTS, "Invalid arguments");
+        } else if (command.getCmd().equals("quit")) {
+            quit = true;
+            if (opcode == QUIT) {
+                // Quit is answered before the connection closes, only QuitQ is silent
+                requests.add(new BinaryCodec.Request(opcode, opaque, key, STATUS_OK));
+                Command ack = new Command("noop", null, 0, 0, 0, null);
+                ack.setStartNanos(startNanos);
+                out.add(ack);
+            }
+        } else {
+            requests.add(new BinaryCodec.Request(opcode, opaque, key, STATUS_OK));
+        }
+        command.setStartNanos(startNanos);
+        command.setDecodeNanos(System.nanoTime() - startNanos);
+        out.add(command);
+
+        if (event != null) {
+            event.cmd = command.getCmd();
+            event.bytes = (int) (HEADER_SIZE + bodyLength);
+            event.commit();
+        }
+    }
+
+    /**
+     * Decodes the request and applies the cas of its header to the command
+     */
+    private static Command decodeRequest(int opcode, String key, ByteBuf extras, byte[] value, long cas) {
+        Command command = decodeRequest(opcode, key, extras, value);
+        if (command == null || cas == 0) {
+            return command;
+        }
+        switch (opcode) {
+            case SET:
+            case SETQ:
+            case REPLACE:
+            case REPLACEQ:
+                if (!command.getCmd().equals("error")) {
+                    command.setCmd("cas");
+                    command.setCas(cas);
+                }
+                return command;
+            case APPEND:
+            case APPENDQ:
+            case PREPEND:
+            case PREPENDQ:
+            case DELETE:
+            case DELETEQ:
+                command.setCas(cas);
+                return command;
+            case ADD:
+            case ADDQ:
+            case INCREMENT:
+            case INCREMENTQ:
+            case DECREMENT:
+            case DECREMENTQ:
+            case TOUCH:
+                return invalid();
+            default:
+                // reads and admin commands ignore it
+                return command;
+        }
+    }
+
+    /**
+     * @return the command, one named error if the extras or key do not fit the opcode, null if the opcode is unknown
+     */
+    private static Command decodeRequest(int opcode, String key, ByteBuf extras, byte[] value) {
+        int extrasLength = extras.readableBytes();
+        switch (opcode) {
+            case GET:
+            case GETQ:
+            case GETK:
+            case GETKQ:
+                if (key.isEmpty() || extrasLength != 0 || value.length != 0) {
+                    return invalid();
+                }
+                Command get = new Command("get", key, 0, 0, 0, null);
+                get.setKeys(Collections.singletonList(key));
+                return get;
+            case SET:
+            case SETQ:
+            case ADD:
+            case ADDQ:
+            case REPLACE:
+            case REPLACEQ:
+                if (key.isEmpty() || extrasLength != 8) {
+                    return invalid();
+                }
+                return new Command(storageCommand(opcode), key, extras.getInt(0), extras.getInt(4),
+                        value.length, value);
+            case APPEND:
+            case APPENDQ:
+            case PREPEND:
+            case PREPENDQ:
+                if (key.isEmpty() || extrasLength != 0) {
+                    return invalid();
+                }
+                return new Command(storageCommand(opcode), key, 0, 0, value.length, value);
+            case INCREMENT:
+            case INCREMENTQ:
+            case DECREMENT:
+            case DECREMENTQ:
+                if (key.isEmpty() || extrasLength != 20 || value.length != 0) {
+                    return invalid();
+                }
+                String cmd = opcode == INCREMENT || opcode == INCREMENTQ ? "incr" : "decr";
+                byte[] delta = Long.toUnsignedString(extras.getLong(0)).getBytes(StandardCharsets.US_ASCII);
+                int expiration = extras.getInt(16);
+                Command incr = new Command(cmd, key, 0, expiration, 0, delta);
+                if (expiration != NO_INITIAL) {
+                    incr.setInitial(extras.getLong(8));
+                }
+                return incr;
+            case DELETE:
+            case DELETEQ:
+                if (key.isEmpty() || extrasLength != 0 || value.length != 0) {
+                    return invalid();
+                }
+                return new Command("delete", key, 0, 0, 0, null);
+            case TOUCH:
+                if (key.isEmpty() || extrasLength != 4 || value.length != 0) {
+                    return invalid();
+                }
+                return new Command("touch", key, 0, extras.getInt(0), 0, null);
+            case FLUSH:
+            case FLUSHQ:
+                if (!key.isEmpty() || (extrasLength != 0 && extrasLength != 4)) {
+                    return invalid();
+                }
+                return new Command("flush_all", null, 0, extrasLength == 4 ? extras.getInt(0) : 0, 0, null);
+            case NOOP:
+                return new Command("noop", null, 0, 0, 0, null);
+            case VERSION:
+                return new Command("version", null, 0, 0, 0, null);
+            case STAT:
+                Command stats = new Command("stats", null, 0, 0, 0, null);
+                stats.setKeys(key.isEmpty() ? Collections.<String>emptyList() : Collections.singletonList(key));
+                return stats;
+            case QUIT:
+            case QUITQ:
+                return new Command("quit", null, 0, 0, 0, null);
+            default:
+                return null;
+        }
+    }
+
+    private static String storageCommand(int opcode) {
+        switch (opcode) {
+            case SET:
+            case SETQ:
+                return "set";
+            case ADD:
+            case ADDQ:
+                return "add";
+            case REPLACE:
+            case REPLACEQ:
+                return "replace";
+            case APPEND:
+            case APPENDQ:
+                return "append";
+            default:
+                return "prepend";
+        }
+    }
+
+    private static Command invalid() {
+        return new Command("error", null, 0, 0, 0, null);
+    }
+
+    /**
+     * Rejected requests are passed on as commands, so they are answered in
+     * order with the replies to the requests before them
+     */
+    private Command error(int opcode, int opaque, short status, String message) {
+        requests.add(new BinaryCodec.Request(opcode, opaque, null, status));
+        return new Command("error", null, 0, 0, 0, message.getBytes(StandardCharsets.US_ASCII));
+    }
+}
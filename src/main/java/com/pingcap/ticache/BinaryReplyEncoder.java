@@ -0,0 +1,217 @@
+package com.pingcap.ticache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.EncoderException;
+import io.netty.handler.codec.MessageToMessageEncoder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Queue;
+
+import static com.pingcap.ticache.BinaryCodec.*;
+
+/**
+ * Writes replies in the memcached binary protocol
+ *
+ * Every reply is matched with the oldest queued request, whose opcode
+ * decides the status it maps to and whether a quiet request is answered
+ * at all. Headers are written into pooled buffers, values as the text
+ * encoder does: small ones copied in, larger ones as a view of the record.
+ *
+ */
+public class BinaryReplyEncoder extends MessageToMessageEncoder<Reply> {
+
+    private static final byte[] NOT_FOUND = "Not found".getBytes(StandardCharsets.US_ASCII);
+
+    private final Queue<BinaryCodec.Request> requests;
+
+    BinaryReplyEncoder(Queue<BinaryCodec.Request> requests) {
+        this.requests = requests;
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, Reply msg, List<Object> out) {
+        BinaryCodec.Request request = requests.poll();
+        if (request == null) {
+            throw new EncoderException("reply without a request " + msg);
+        }
+
+        if (request.error != STATUS_OK) {
+            byte[] message = msg instanceof Reply.Text ? ((Reply.Text) msg).getBytes() : new byte[0];
+            error(ctx, request, request.error, message, out);
+        } else if (msg instanceof Reply.Values) {
+            encodeValue(ctx, request, (Reply.Values) msg, out);
+        } else if (msg instanceof Reply.Number) {
+            if (!isQuiet(request.opcode)) {
+                ByteBuf buf = header(ctx, request, STATUS_OK, 0, 0, 8, 8);
+                buf.writeLong(((Reply.Number) msg).getValue());
+                out.add(buf);
+            }
+        } else if (msg instanceof Reply.Status) {
+            short status = status(request.opcode, (Reply.Status) msg);
+            if (status != STATUS_OK) {
+                error(ctx, request, status, ((Reply.Status) msg).getWord().getBytes(StandardCharsets.US_ASCII), out);
+            } else if (!isQuiet(request.opcode)) {
+                out.add(header(ctx, request, STATUS_OK, 0, 0, 0, 0));
+            }
+        } else if (msg instanceof Reply.Text) {
+            encodeText(ctx, request, (Reply.Text) msg, out);
+        } else {
+            throw new EncoderException("unknown reply " + msg);
+        }
+
+        if (out.isEmpty()) {
+            // a quiet request that succeeded, the encoder still has to produce something
+            out.add(Unpooled.EMPTY_BUFFER);
+        }
+    }
+
+    private static void encodeValue(ChannelHandlerContext ctx, BinaryCodec.Request request, Reply.Values values,
+                                    List<Object> out) {
+        boolean withKey = request.opcode == GETK || request.opcode == GETKQ;
+        int keyLength = withKey ? request.key.length() : 0;
+        if (values.size() == 0) {
+            if (!isQuiet(request.opcode)) {
+                ByteBuf buf = header(ctx, request, STATUS_KEY_NOT_FOUND, 0, keyLength, NOT_FOUND.length,
+                        keyLength + NOT_FOUND.length);
+                if (withKey) {
+                    ByteBufUtil.writeAscii(buf, request.key);
+                }
+                out.add(buf.writeBytes(NOT_FOUND));
+            }
+            return;
+        }
+
+        StoredVal item = values.getItem(0);
+        ChunkStore.Stream stream = values.getStream(0);
+        int size = item.getSize();
+        boolean copied = size <= ReplyEncoder.COPY_THRESHOLD && stream == null;
+        ByteBuf buf = header(ctx, request, STATUS_OK, 4, keyLength, size,
+                4 + keyLength + (copied ? size : 0));
+        // the last field of the header is the cas unique of the item
+        buf.setLong(HEADER_SIZE - 8, item.getCas());
+        buf.writeInt(item.getFlags());
+        if (withKey) {
+            ByteBufUtil.writeAscii(buf, request.key);
+        }
+        if (copied) {
+            item.writeVal(buf);
+            out.add(buf);
+        } else {
+            out.add(buf);
+            out.add(stream != null ? stream.open(ctx) : item.getValBuf());
+        }
+    }
+
+    /**
+     * Text replies are version, stats and error lines
+     */
+    private static void encodeText(ChannelHandlerContext ctx, BinaryCodec.Request request, Reply.Text text,
+                                   List<Object> out) {
+        String lines = new String(text.getBytes(), StandardCharsets.US_ASCII);
+        if (request.opcode == VERSION) {
+            byte[] version = CommandHandler.VERSION.getBytes(StandardCharsets.US_ASCII);
+            out.add(header(ctx, request, STATUS_OK, 0, 0, version.length, version.length).writeBytes(version));
+            return;
+        }
+        if (request.opcode == STAT && (lines.startsWith("STAT ") || lines.startsWith("END"))) {
+            encodeStats(ctx, request, lines, out);
+            return;
+        }
+
+        short status;
+        if (lines.startsWith("CLIENT_ERROR")) {
+            boolean incrDecr = request.opcode == INCREMENT || request.opcode == INCREMENTQ
+                    || request.opcode == DECREMENT || request.opcode == DECREMENTQ;
+            status = incrDecr ? STATUS_NON_NUMERIC : STATUS_INVALID_ARGUMENTS;
+        } else if (lines.startsWith("SERVER_ERROR")) {
+            status = STATUS_INTERNAL_ERROR;
+        } else if (lines.startsWith("RESET")) {
+            // stats reset, answered with the empty packet that ends a stat listing
+            out.add(header(ctx, request, STATUS_OK, 0, 0, 0, 0));
+            return;
+        } else {
+            status = request.opcode == STAT ? STATUS_KEY_NOT_FOUND : STATUS_UNKNOWN_COMMAND;
+        }
+        error(ctx, request, status, lines.trim().getBytes(StandardCharsets.US_ASCII), out);
+    }
+
+    /**
+     * One packet per STAT line with its name as key, then an empty one
+     */
+    private static void encodeStats(ChannelHandlerContext ctx, BinaryCodec.Request request, String lines,
+                                    List<Object> out) {
+        ByteBuf buf = ctx.alloc().ioBuffer(lines.length() * 2);
+        for (String line : lines.split("\r\n")) {
+            if (!line.startsWith("STAT ")) {
+                continue;
+            }
+            int space = line.indexOf(' ', 5);
+            String name = space < 0 ? line.substring(5) : line.substring(5, space);
+            String value = space < 0 ? "" : line.substring(space + 1);
+            writeHeader(buf, request, STATUS_OK, 0, name.length(), value.length());
+            ByteBufUtil.writeAscii(buf, name);
+            ByteBufUtil.writeAscii(buf, value);
+        }
+        writeHeader(buf, request, STATUS_OK, 0, 0, 0);
+        out.add(buf);
+    }
+
+    private static short status(int opcode, Reply.Status reply) {
+        if (reply == Reply.NOT_FOUND) {
+            return STATUS_KEY_NOT_FOUND;
+        } else if (reply == Reply.EXISTS) {
+            return STATUS_KEY_EXISTS;
+        } else if (reply == Reply.NOT_STORED) {
+            if (opcode == ADD || opcode == ADDQ) {
+                return STATUS_KEY_EXISTS;
+            } else if (opcode == REPLACE || opcode == REPLACEQ) {
+                return STATUS_KEY_NOT_FOUND;
+            }
+            return STATUS_NOT_STORED;
+        } else if (reply == Reply.ERROR) {
+            return STATUS_UNKNOWN_COMMAND;
+        } else if (reply == Reply.SERVER_ERROR) {
+            return STATUS_INTERNAL_ERROR;
+        }
+        return STATUS_OK;
+    }
+
+    /**
+     * Errors are always answered, quiet or not, with the message as value
+     */
+    private static void error(ChannelHandlerContext ctx, BinaryCodec.Request request, short status, byte[] message,
+                              List<Object> out) {
+        int length = message.length;
+        while (length > 0 && (message[length - 1] == '\n' || message[length - 1] == '\r')) {
+            length--;
+        }
+        out.add(header(ctx, request, status, 0, 0, length, length).writeBytes(message, 0, length));
+    }
+
+    /**
+     * @param capacity bytes that will follow the header in the same buffer
+     */
+    private static ByteBuf header(ChannelHandlerContext ctx, BinaryCodec.Request request, short status,
+                                  int extrasLength, int keyLength, int valueLength, int capacity) {
+        ByteBuf buf = ctx.alloc().ioBuffer(HEADER_SIZE + capacity);
+        writeHeader(buf, request, status, extrasLength, keyLength, valueLength);
+        return buf;
+    }
+
+    private static void writeHeader(ByteBuf buf, BinaryCodec.Request request, short status,
+                                    int extrasLength, int keyLength, int valueLength) {
+        buf.writeByte(MAGIC_RESPONSE);
+        buf.writeByte(request.opcode);
+        buf.writeShort(keyLength);
+        buf.writeByte(extrasLength);
+        buf.writeByte(0);
+        buf.writeShort(status);
+        buf.writeInt(extrasLength + keyLength + valueLength);
+        buf.writeInt(request.opaque);
+        buf.writeLong(0);
+    }
+}
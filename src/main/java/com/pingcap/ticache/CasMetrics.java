@@ -0,0 +1,69 @@
+package com.pingcap.ticache;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contention counters of the compare-and-swap updates
+ *
+ */
+@Component
+@ManagedResource(objectName = "com.pingcap.ticache:type=CasMetrics")
+public class CasMetrics {
+
+    private final LongAdder updates = new LongAdder();
+
+    private final LongAdder attempts = new LongAdder();
+
+    private final LongAdder conflicts = new LongAdder();
+
+    private final LongAdder exhausted = new LongAdder();
+
+    public void recordAttempt() {
+        attempts.increment();
+    }
+
+    public void recordConflict() {
+        conflicts.increment();
+    }
+
+    public void recordUpdate() {
+        updates.increment();
+    }
+
+    public void recordExhausted() {
+        exhausted.increment();
+    }
+
+    /**
+     * updates that committed or decided not to write
+     */
+    @ManagedAttribute
+    public long getUpdates() {
+        return updates.sum();
+    }
+
+    @ManagedAttribute
+    public long getAttempts() {
+        return attempts.sum();
+    }
+
+    /**
+     * compare-and-swaps that lost against a concurrent write and were retried
+     */
+    @ManagedAttribute
+    public long getConflicts() {
+        return conflicts.sum();
+    }
+
+    /**
+     * updates that gave up after the configured number of retries
+     */
+    @ManagedAttribute
+    public long getExhausted() {
+        return exhausted.sum();
+    }
+}
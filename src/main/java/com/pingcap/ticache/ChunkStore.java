@@ -0,0 +1,545 @@
+package com.pingcap.ticache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores values of chunk.threshold bytes and more as a run of chunk keys plus a manifest
+ *
+ * The chunks of a value live under the chunk prefix of the generation:
+ *
+ * c_{key}\0{id}/{index}
+ *
+ * where id is the time the upload started and a random suffix, so every
+ * write of a key gets chunk keys of its own. The item under the data key
+ * is a StoredVal marked chunked whose data is the manifest: chunk count,
+ * chunk size and the chunk key prefix. Chunks are written first and the
+ * manifest last, readers either see the old value or the whole new one.
+ *
+ * The text decoder writes chunks as they arrive from the socket and gets
+ * stream them back through ChunkedWriteHandler, a few chunks ahead of the
+ * socket. The chunks of a failed upload are removed with a single range
+ * delete, those of a replaced or deleted value chunk.orphan-grace seconds
+ * later so gets still streaming them can finish. Chunks nothing points to
+ * any more, left by a crash, a blind set over a chunked value or an
+ * expired manifest, are found by a background scan and removed once it
+ * has seen them unreferenced for chunk.orphan-grace seconds.
+ *
+ */
+@Component
+@ManagedResource(objectName = "com.pingcap.ticache:type=ChunkStore")
+public class ChunkStore {
+
+    private static Logger logger = LoggerFactory.getLogger(ChunkStore.class);
+
+    private static final int ID_LENGTH = 16;
+
+    private final Client client;
+
+    private final Keyspace keyspace;
+
+    private final Stats stats;
+
+    private final ServerProperties.ChunkProperties properties;
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * next chunk key to look at in the orphan scan, null at the start of a pass
+     */
+    private volatile String cursor;
+
+    /**
+     * groups of chunks the last pass found unreferenced, with the time they were first found so
+     */
+    private Map<String, Long> unreferenced = new HashMap<>();
+
+    private Map<String, Long> unreferencedThisPass = new HashMap<>();
+
+    public ChunkStore(Client client, Keyspace keyspace, Stats stats, ServerProperties serverProperties) {
+        this.client = client;
+        this.keyspace = keyspace;
+        this.stats = stats;
+        this.properties = serverProperties.getChunk();
+
+        if (!properties.isEnabled()) {
+            scheduler = null;
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("ticache-chunks", true));
+        scheduler.schedule(this::collect, properties.getCollectInterval(), TimeUnit.MILLISECONDS);
+        logger.info("chunked storage enabled threshold=" + properties.getThreshold()
+                + " chunkSize=" + properties.getChunkSize());
+    }
+
+    @ManagedAttribute
+    public boolean isEnabled() {
+        return scheduler != null;
+    }
+
+    /**
+     * @return true if a value of size bytes is stored in chunks
+     */
+    public boolean isChunked(long size) {
+        return scheduler != null && size >= properties.getThreshold();
+    }
+
+    /**
+     * Starts writing the chunks of a value of size bytes for key
+     *
+     * @param channel has reads paused while too many chunk writes are in flight, may be null
+     */
+    public Upload begin(String key, int size, Channel channel) {
+        String id = String.format("%012x%04x", System.currentTimeMillis(), ThreadLocalRandom.current().nextInt(0x10000));
+        String base = Keyspace.chunkPrefix(keyspace.getGeneration()) + key + '\0' + id + '/';
+        return new Upload(base, size, channel);
+    }
+
+    /**
+     * Writes val in chunks and waits for them
+     *
+     * @return the item to store under the data key of key
+     */
+    public StoredVal store(String key, int flags, int ttl, byte[] val) {
+        Upload upload = begin(key, val.length, null);
+        int chunkSize = properties.getChunkSize();
+        for (int offset = 0; offset < val.length; offset += chunkSize) {
+            upload.write(Arrays.copyOfRange(val, offset, Math.min(val.length, offset + chunkSize)));
+        }
+        return Client.await(upload.commit(flags, ttl));
+    }
+
+    /**
+     * Drops the chunks of item, if it is chunked, once gets that may still stream them are done
+     */
+    public void release(StoredVal item) {
+        if (item != null && item.isChunked()) {
+            retire(Manifest.of(item).base);
+        }
+    }
+
+    /**
+     * Drops the chunks of an item that was never stored right away
+     */
+    public void discard(StoredVal item) {
+        if (item != null && item.isChunked()) {
+            deleteChunks(Manifest.of(item).base);
+        }
+    }
+
+    /**
+     * Drops the chunks of the record stored before, if it was chunked
+     */
+    public void release(byte[] record) {
+        release(parse(record));
+    }
+
+    /**
+     * Called after a compare-and-swap replaced old with item, drops the chunks item no longer uses
+     */
+    public void replaced(byte[] old, StoredVal item) {
+        StoredVal previous = parse(old);
+        if (previous == null || !previous.isChunked()) {
+            return;
+        }
+        String base = Manifest.of(previous).base;
+        if (item.isChunked() && Manifest.of(item).base.equals(base)) {
+            // a touch keeps the chunks
+            return;
+        }
+        retire(base);
+    }
+
+    /**
+     * @return the value of a chunked item, to be written to a channel with a ChunkedWriteHandler
+     */
+    public Stream stream(StoredVal item) {
+        return new Stream(Manifest.of(item), item.getSize());
+    }
+
+    private static StoredVal parse(byte[] record) {
+        if (record == null || record.length == 0) {
+            return null;
+        }
+        try {
+            return new StoredVal(record);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the chunks under base chunk.orphan-grace seconds from now.
+     * Pending deletes are lost on shutdown, the orphan scan finds them again.
+     */
+    private void retire(String base) {
+        if (scheduler == null) {
+            // chunked storage was turned off since, there is no scan to leave them to
+            deleteChunks(base);
+            return;
+        }
+        scheduler.schedule(() -> deleteChunks(base), properties.getOrphanGrace(), TimeUnit.SECONDS);
+    }
+
+    private void deleteChunks(String base) {
+        client.deleteRangeAsync(base, Keyspace.prefixEnd(base)).whenComplete((v, e) -> {
+            if (e != null) {
+                logger.warn("chunk delete error base=" + printable(base), e);
+            }
+        });
+        stats.count("chunk_releases");
+    }
+
+    private void collect() {
+        long delay = properties.getCollectInterval();
+        try {
+            if (collectGroup()) {
+                cursor = null;
+                unreferenced = unreferencedThisPass;
+                unreferencedThisPass = new HashMap<>();
+                stats.count("chunk_collect_passes");
+                delay = TimeUnit.SECONDS.toMillis(properties.getCollectPassInterval());
+            }
+        } catch (Exception e) {
+            logger.error("chunk collect error", e);
+        } finally {
+            if (!scheduler.isShutdown()) {
+                scheduler.schedule(this::collect, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Looks at the next group of chunks and range deletes it if no manifest
+     * has pointed to it for chunk.orphan-grace seconds
+     *
+     * @return true at the end of a pass
+     */
+    private boolean collectGroup() {
+        long generation = keyspace.getGeneration();
+        String prefix = Keyspace.chunkPrefix(generation);
+        String start = cursor;
+        if (start == null || !start.startsWith(prefix)) {
+            start = prefix;
+        }
+        Map<String, byte[]> first = client.scan(start, Keyspace.prefixEnd(prefix), 1);
+        if (first.isEmpty()) {
+            return true;
+        }
+        String chunkKey = first.keySet().iterator().next();
+        int nul = chunkKey.lastIndexOf('\0');
+        if (nul < prefix.length() || chunkKey.length() < nul + ID_LENGTH + 2) {
+            // not one of ours, step over it
+            cursor = chunkKey + '\0';
+            return false;
+        }
+        String key = chunkKey.substring(prefix.length(), nul);
+        String base = chunkKey.substring(0, nul + ID_LENGTH + 2);
+        cursor = Keyspace.prefixEnd(base);
+
+        long now = System.currentTimeMillis();
+        long grace = TimeUnit.SECONDS.toMillis(properties.getOrphanGrace());
+        long started = Long.parseLong(base.substring(nul + 1, nul + 13), 16);
+        if (now - started < grace) {
+            // the upload may still be going on
+            return false;
+        }
+        StoredVal item = parse(client.getBytes(Keyspace.prefix(generation) + key));
+        if (item != null && item.isChunked() && Manifest.of(item).base.equals(base)) {
+            return false;
+        }
+        // a get may have read the manifest just before it was replaced
+        long since = unreferenced.getOrDefault(base, now);
+        if (now - since < grace) {
+            unreferencedThisPass.put(base, since);
+            return false;
+        }
+        client.deleteRange(base, Keyspace.prefixEnd(base));
+        stats.count("chunk_orphans");
+        return false;
+    }
+
+    private static String chunkKey(String base, int index) {
+        return base + String.format("%08x", index);
+    }
+
+    private static String printable(String base) {
+        return base.replace('\0', ' ');
+    }
+
+    @ManagedAttribute
+    public String getCursor() {
+        return cursor == null ? null : printable(cursor);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Where the chunks of a value are
+     *
+     */
+    static final class Manifest {
+
+        final int count;
+
+        final int chunkSize;
+
+        final String base;
+
+        Manifest(int count, int chunkSize, String base) {
+            this.count = count;
+            this.chunkSize = chunkSize;
+            this.base = base;
+        }
+
+        static Manifest of(StoredVal item) {
+            ByteBuffer buffer = ByteBuffer.wrap(item.getManifest());
+            int count = buffer.getInt();
+            int chunkSize = buffer.getInt();
+            String base = new String(buffer.array(), buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+            return new Manifest(count, chunkSize, base);
+        }
+
+        byte[] toBytes() {
+            byte[] name = base.getBytes(StandardCharsets.UTF_8);
+            return ByteBuffer.allocate(8 + name.length).putInt(count).putInt(chunkSize).put(name).array();
+        }
+
+        String chunkKey(int index) {
+            return ChunkStore.chunkKey(base, index);
+        }
+    }
+
+    /**
+     * The chunks of one value on their way to the backend
+     *
+     */
+    public final class Upload {
+
+        private final String base;
+
+        private final int size;
+
+        private final Channel channel;
+
+        private final List<CompletableFuture<Void>> writes = new ArrayList<>();
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private int written;
+
+        private Upload(String base, int size, Channel channel) {
+            this.base = base;
+            this.size = size;
+            this.channel = channel;
+        }
+
+        /**
+         * @return bytes of the next chunk, 0 once every chunk was written
+         */
+        public int nextChunkSize() {
+            return Math.min(properties.getChunkSize(), size - written);
+        }
+
+        public void write(byte[] chunk) {
+            String chunkKey = chunkKey(base, writes.size());
+            written += chunk.length;
+            if (inFlight.incrementAndGet() >= properties.getMaxInFlight() && channel != null) {
+                ReadThrottle.pause(channel, ReadThrottle.UPLOAD);
+            }
+            writes.add(client.putAsync(chunkKey, chunk).whenComplete((v, e) -> {
+                if (inFlight.decrementAndGet() < properties.getMaxInFlight() && channel != null) {
+                    channel.eventLoop().execute(() -> {
+                        // another chunk may have gone out since
+                        if (inFlight.get() < properties.getMaxInFlight()) {
+                            ReadThrottle.resume(channel, ReadThrottle.UPLOAD);
+                        }
+                    });
+                }
+            }));
+            stats.count("chunk_writes");
+        }
+
+        /**
+         * @return done once every chunk written so far is stored, exceptionally if one was not
+         */
+        public CompletableFuture<Void> written() {
+            return CompletableFuture.allOf(writes.toArray(new CompletableFuture[0]));
+        }
+
+        /**
+         * Once every chunk is stored, the chunked item pointing to them; on failure they are dropped again
+         */
+        public CompletableFuture<StoredVal> commit(int flags, int ttl) {
+            return written().handle((v, e) -> {
+                if (e != null) {
+                    abort();
+                    Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                    throw new CompletionException(new IOException("chunk write error " + printable(base), cause));
+                }
+                stats.count("chunked_sets");
+                Manifest manifest = new Manifest(writes.size(), properties.getChunkSize(), base);
+                return StoredVal.chunked(flags, ttl, size, manifest.toBytes());
+            });
+        }
+
+        /**
+         * Drops every chunk written, once the writes in flight are done
+         */
+        public void abort() {
+            written().handle((v, e) -> null)
+                    .thenRun(() -> deleteChunks(base));
+            stats.count("chunk_aborts");
+        }
+    }
+
+    /**
+     * Reads the chunks of a value a few ahead of the socket
+     *
+     * Only touched on the event loop of the channel it is written to,
+     * completed reads wake ChunkedWriteHandler up again. A chunk that is
+     * gone, because the value was replaced more than chunk.orphan-grace
+     * seconds ago, closes the connection, the value is already partly written.
+     *
+     */
+    public final class Stream implements ChunkedInput<ByteBuf> {
+
+        private final Manifest manifest;
+
+        private final int size;
+
+        private final CompletableFuture<byte[]>[] ahead;
+
+        private ChunkedWriteHandler writer;
+
+        private Channel channel;
+
+        private int next;
+
+        private int requested;
+
+        private long progress;
+
+        private boolean closed;
+
+        @SuppressWarnings("unchecked")
+        private Stream(Manifest manifest, int size) {
+            this.manifest = manifest;
+            this.size = size;
+            this.ahead = new CompletableFuture[Math.max(1, properties.getReadAhead())];
+        }
+
+        /**
+         * Starts reading chunks, called by the encoder as it writes the stream to ctx
+         */
+        public Stream open(ChannelHandlerContext ctx) {
+            writer = ctx.pipeline().get(ChunkedWriteHandler.class);
+            if (writer == null) {
+                // only connections that read chunked values pay for the write queue
+                writer = new ChunkedWriteHandler();
+                ctx.pipeline().addBefore(ctx.name(), null, writer);
+            }
+            channel = ctx.channel();
+            fill();
+            return this;
+        }
+
+        private void fill() {
+            while (!closed && requested < manifest.count && requested - next < ahead.length) {
+                int index = requested++;
+                CompletableFuture<byte[]> read = client.getAsync(manifest.chunkKey(index));
+                ahead[index % ahead.length] = read;
+                // never from inside readChunk, a read done right away would be written out of order
+                read.whenComplete((v, e) -> channel.eventLoop().execute(writer::resumeTransfer));
+                stats.count("chunk_reads");
+            }
+        }
+
+        @Override
+        public boolean isEndOfInput() {
+            return next >= manifest.count;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Deprecated
+        @Override
+        public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+            return readChunk(ctx.alloc());
+        }
+
+        @Override
+        public ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+            if (isEndOfInput()) {
+                return null;
+            }
+            CompletableFuture<byte[]> read = ahead[next % ahead.length];
+            if (!read.isDone()) {
+                return null;
+            }
+            byte[] chunk;
+            try {
+                chunk = read.join();
+            } catch (CompletionException e) {
+                channel.close();
+                throw new IOException("chunk read error " + printable(manifest.chunkKey(next)), e.getCause());
+            }
+            int expected = next < manifest.count - 1 ? manifest.chunkSize : size - manifest.chunkSize * next;
+            if (chunk == null || chunk.length != expected) {
+                channel.close();
+                throw new IOException("chunk missing " + printable(manifest.chunkKey(next)));
+            }
+            ahead[next % ahead.length] = null;
+            next++;
+            progress += chunk.length;
+            fill();
+            return Unpooled.wrappedBuffer(chunk);
+        }
+
+        @Override
+        public long length() {
+            return size;
+        }
+
+        @Override
+        public long progress() {
+            return progress;
+        }
+    }
+}
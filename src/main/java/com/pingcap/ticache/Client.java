@@ -1,78 +1,161 @@
 package com.pingcap.ticache;
 
-import shade.com.google.protobuf.ByteString;
 import java.nio.charset.StandardCharsets;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.stereotype.Component;
-import org.tikv.RawKVClient;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
- * tikv client wrapper
+ * Storage backend holding the items and the keyspace metadata
+ *
+ * Every operation is asynchronous, a future fails when the backend does.
+ * The blocking variants wait on the future and rethrow its cause.
+ *
+ * Keys are compared as strings, a key that does not exist reads as null.
  *
  */
-@Component
-public class Client {
+public interface Client extends AutoCloseable {
+
+    CompletableFuture<byte[]> getAsync(String key);
+
+    /**
+     * The value is handed to the backend without copying,
+     * callers must not modify it afterwards
+     */
+    CompletableFuture<Void> putAsync(String key, byte[] value);
+
+    CompletableFuture<Void> deleteAsync(String key);
+
+    /**
+     * Reads prefix + key for every key, keys that do not exist are absent from the returned map,
+     * which is keyed without the prefix
+     */
+    CompletableFuture<Map<String, byte[]>> batchGetAsync(String prefix, List<String> keys);
+
+    CompletableFuture<Void> batchPutAsync(Map<String, byte[]> pairs);
+
+    /**
+     * @return up to limit pairs of [startKey, endKey) in key order
+     */
+    CompletableFuture<Map<String, byte[]>> scanAsync(String startKey, String endKey, int limit);
+
+    /**
+     * Stores value only if the current value of key is still expected,
+     * a null expected value means the key must not exist
+     *
+     * @return false if the current value did not match
+     */
+    CompletableFuture<Boolean> compareAndSetAsync(String key, byte[] expected, byte[] value);
+
+    /**
+     * Deletes every key in [startKey, endKey)
+     */
+    CompletableFuture<Void> deleteRangeAsync(String startKey, String endKey);
+
+    /**
+     * @return true if the backend drops keys written with a ttl by itself
+     */
+    default boolean supportsTtl() {
+        return false;
+    }
 
-    private static Logger logger = LoggerFactory.getLogger(Client.class);
+    /**
+     * Like putAsync, a backend that supports ttl drops the key ttlSeconds
+     * from now, others ignore it. 0 never expires.
+     */
+    default CompletableFuture<Void> putAsync(String key, byte[] value, long ttlSeconds) {
+        return putAsync(key, value);
+    }
 
-    private RawKVClient client = null;
+    /**
+     * Like compareAndSetAsync, with the ttl of putAsync
+     */
+    default CompletableFuture<Boolean> compareAndSetAsync(String key, byte[] expected, byte[] value,
+                                                          long ttlSeconds) {
+        return compareAndSetAsync(key, expected, value);
+    }
 
-    public Client() {
+    /**
+     * Deletes key only if its current value is still expected. The default
+     * swaps in an empty value, a tombstone that reads as absent everywhere
+     * items are read but stays in the backend until the range delete of its
+     * generation; backends override it with a real delete.
+     *
+     * @return false if the current value did not match
+     */
+    default CompletableFuture<Boolean> deleteIfAsync(String key, byte[] expected) {
+        return compareAndSetAsync(key, expected, new byte[0]);
+    }
 
-        String address = "117.50.61.196:2379";
-        client = RawKVClient.create(address);
+    /**
+     * @return where key is served from, for tracing; may do a lookup, so keep it off the hot path
+     */
+    default String region(String key) {
+        return "-";
+    }
 
-        logger.info("init RawKVClient address=" + address + " client=" + client);
+    default byte[] getBytes(String key) {
+        return await(getAsync(key));
     }
 
-    public void putData(String key, String value) {
-        put("d_" + key, value);
+    default void putBytes(String key, byte[] value) {
+        await(putAsync(key, value));
     }
 
-    public String getData(String key) {
-        return get("d_" + key);
+    default String get(String key) {
+        byte[] value = getBytes(key);
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
     }
 
-    public void deleteData(String key) {
-        delete("d_" + key);
+    default void put(String key, String value) {
+        putBytes(key, value.getBytes(StandardCharsets.UTF_8));
     }
 
-    public void put(String key, String value) {
+    default void delete(String key) {
+        await(deleteAsync(key));
+    }
 
-        try {
-            logger.info("client put key=" + key + " val=" + value);
-            ByteString bKey = ByteString.copyFrom(key, StandardCharsets.UTF_8);
-            ByteString bValue = ByteString.copyFrom(value, StandardCharsets.UTF_8);
-            client.put(bKey, bValue);
-        } catch (Exception e) {
-            logger.error("client put error", e);
-        }
+    default Map<String, byte[]> batchGet(String prefix, List<String> keys) {
+        return await(batchGetAsync(prefix, keys));
+    }
+
+    default void batchPut(Map<String, byte[]> pairs) {
+        await(batchPutAsync(pairs));
     }
 
-    public String get(String key) {
+    default Map<String, byte[]> scan(String startKey, String endKey, int limit) {
+        return await(scanAsync(startKey, endKey, limit));
+    }
 
-        try {
-            logger.info("client get key=" + key);
-            ByteString bKey = ByteString.copyFrom(key, StandardCharsets.UTF_8);
-            ByteString bValue = client.get(bKey);
-            return bValue.toStringUtf8();
-        } catch (Exception e) {
-            logger.error("client get error", e);
-        }
+    default boolean compareAndSet(String key, byte[] expected, byte[] value) {
+        return await(compareAndSetAsync(key, expected, value));
+    }
 
-        return null;
+    default void putBytes(String key, byte[] value, long ttlSeconds) {
+        await(putAsync(key, value, ttlSeconds));
     }
 
-    public void delete(String key) {
+    default boolean compareAndSet(String key, byte[] expected, byte[] value, long ttlSeconds) {
+        return await(compareAndSetAsync(key, expected, value, ttlSeconds));
+    }
 
+    default boolean deleteIf(String key, byte[] expected) {
+        return await(deleteIfAsync(key, expected));
+    }
+
+    default void deleteRange(String startKey, String endKey) {
+        await(deleteRangeAsync(startKey, endKey));
+    }
+
+    static <T> T await(CompletableFuture<T> future) {
         try {
-            logger.info("client delete key=" + key);
-            ByteString bKey = ByteString.copyFrom(key, StandardCharsets.UTF_8);
-            client.delete(bKey);
-        } catch (Exception e) {
-            logger.error("client delete error", e);
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
         }
     }
-
 }
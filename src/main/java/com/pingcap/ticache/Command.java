@@ -3,6 +3,8 @@ package com.pingcap.ticache;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.util.List;
+
 /**
  * Memcache command
  *
@@ -15,15 +17,54 @@ public class Command {
 
     private String key;
 
+    /**
+     * all keys of a multi-key get, key is the first of them
+     */
+    private List<String> keys;
+
     private int flags;
 
     private int ttl;
 
     private int size;
 
-    private String val;
+    /**
+     * data block of storage commands, exactly size bytes without the trailing \r\n
+     */
+    private byte[] val;
+
+    /**
+     * chunks of a large data block already on their way to the backend, val is null then
+     */
+    private ChunkStore.Upload upload;
+
+    /**
+     * the client asked for no reply, the command still runs
+     */
+    private boolean noreply;
+
+    /**
+     * value incr and decr create a missing key with, null leaves it missing,
+     * only the binary protocol sends one
+     */
+    private Long initial;
+
+    /**
+     * unique of the version a cas command replaces
+     */
+    private long cas;
+
+    /**
+     * System.nanoTime() when the command line was decoded, 0 if it did not come from the decoder
+     */
+    private long startNanos;
+
+    /**
+     * from the command line until the whole command, data block included, was decoded
+     */
+    private long decodeNanos;
 
-    public Command(String cmd, String key, int flags, int ttl, int size, String val) {
+    public Command(String cmd, String key, int flags, int ttl, int size, byte[] val) {
         this.cmd = cmd;
         this.key = key;
         this.flags = flags;
@@ -1,15 +1,15 @@
 package com.pingcap.ticache;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
-import io.netty.channel.ChannelHandler;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ReplayingDecoder;
+import io.netty.handler.codec.ByteToMessageDecoder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -18,234 +18,633 @@ import java.util.List;
  * https://github.com/memcached/memcached/blob/master/doc/protocol.txt
  * https://lzone.de/cheat-sheet/memcached
  *
- * get key
- * set key flags ttl size\r\ndata
- * add newkey flags ttl size\r\ndata
- * replace key flags ttl size\r\ndata
- * append key flags ttl size\r\ndata
- * prepend key flags ttl size\r\ndata
- * incr key val
- * decr key val
- * delete key
+ * get key [key ...]
+ * gets key [key ...]
+ * set key flags ttl size [noreply]\r\ndata
+ * add newkey flags ttl size [noreply]\r\ndata
+ * replace key flags ttl size [noreply]\r\ndata
+ * append key flags ttl size [noreply]\r\ndata
+ * prepend key flags ttl size [noreply]\r\ndata
+ * cas key flags ttl size unique [noreply]\r\ndata
+ * incr key val [noreply]
+ * decr key val [noreply]
+ * delete key [noreply]
+ * touch key ttl [noreply]
  * flush_all
  * flush_all seconds
- * stats
+ * stats [args]
+ * slowlog [count|reset]
  * version
- * verbosity
+ * verbosity level
  * quit
  *
+ * Command lines are located with a single indexOf for the line feed and
+ * tokenized in place; numbers are parsed straight from the buffer. A
+ * data block is only read once all size + 2 bytes of it have arrived,
+ * except for values ChunkStore keeps in chunks: the command is held back
+ * until its data block is complete, but every chunk is written to the
+ * backend as soon as its bytes are in.
+ *
  */
-public class CommandDecoder extends ReplayingDecoder<Void> {
+public class CommandDecoder extends ByteToMessageDecoder {
 
     private static Logger logger = LoggerFactory.getLogger(CommandDecoder.class);
 
-    private String cmd;
+    public static final String[] cmds = new String[] {
+                                            "get", "set", "add",
+                                            "incr", "decr", "quit",
+                                            "stats",
+                                            "append", "delete",
+                                            "replace", "prepend", "version",
+                                            "flush_all", "verbosity", "slowlog",
+                                            "touch", "gets", "cas"};
 
-    private String key;
+    private static final byte[] NOREPLY = "noreply".getBytes(StandardCharsets.US_ASCII);
 
-    private int flags;
+    private static final byte[][] cmdBytes = new byte[cmds.length][];
 
-    private int ttl;
+    static {
+        for (int i = 0; i < cmds.length; i++) {
+            cmdBytes[i] = cmds[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
 
-    private int size;
+    public static final int MAX_LINE_LENGTH = 64 * 1024;
 
-    private StringBuilder valSb;
+    public static final int MAX_KEY_LENGTH = 250;
 
-    private String val;
+    public static final int MAX_VALUE_SIZE = 64 * 1024 * 1024;
 
-    public static final String[] cmds = new String[] {
-                                            "get", "set", "add",
-                                            "incr", "decr", "quit",
-                                            "stats\r\n",
-                                            "append", "delete",
-                                            "replace", "prepend", "version\r\n",
-                                            "flush_all\r\n", "verbosity\r\n"};
+    /**
+     * storage command waiting for its data block
+     */
+    private Command pending;
+
+    /**
+     * null when values are never stored in chunks
+     */
+    private final ChunkStore chunkStore;
+
+    private Channel channel;
+
+    /**
+     * bytes of a rejected data block still to be dropped
+     */
+    private long discardBytes;
+
+    /**
+     * drop everything up to the next line feed
+     */
+    private boolean discardLine;
+
+    private boolean quit;
+
+    /**
+     * start and end offsets of the tokens on the current line
+     */
+    private int[] tokens = new int[16];
 
+    private int tokenCount;
+
+    /**
+     * System.nanoTime() when the current command line was found
+     */
+    private long lineStart;
+
+    public CommandDecoder() {
+        this(null);
+    }
+
+    public CommandDecoder(ChunkStore chunkStore) {
+        this.chunkStore = chunkStore;
+    }
 
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        channel = ctx.channel();
+        if (quit) {
+            in.skipBytes(in.readableBytes());
+            return;
+        }
 
-        System.out.println("cmd=" + cmd);
-        if (cmd == null) {
-            char c;
-            StringBuilder sb = new StringBuilder();
-            while (true) {
-                c = (char) in.readByte();
-                if (c == ' ') {
-                    break;
-                }
-                sb.append(c);
-                if (sb.lastIndexOf("\r") > 0) {
-                    c = (char) in.readByte();
-                    sb.append(c);
-                    break;
-                }
-            }
-            String tmpCmd = sb.toString();
-            logger.info("tmpCmd=" + tmpCmd);
-            if (Arrays.stream(cmds).anyMatch(sb.toString()::equals)) {
-                cmd = tmpCmd;
-                logger.error("found cmd=" + cmd);
-            } else {
-                logger.error("tmpCmd error " + tmpCmd);
-                ByteBuf outBuf = Unpooled.copiedBuffer("ERROR\r\n".getBytes());
-                ctx.writeAndFlush(outBuf);
-            }
-
-            if (cmd.equals("version\r\n")) {
-                showVersion(ctx);
-            } else if (cmd.equals("flush_all\r\n")) {
-                Command command = new Command("flush_all", key, flags, ttl, size, val);
-                clean();
-                out.add(command);
-            } else if (cmd.equals("get")) {
-                decodeGet(in);
-                Command command = new Command(cmd, key, flags, ttl, size, val);
-                clean();
-                out.add(command);
-            } else if (cmd.equals("set") || cmd.equals("add") || cmd.equals("replace")
-                            || cmd.equals("append") || cmd.equals("prepend")) {
-                decodeSet(in);
-            } else if (cmd.equals("incr") || cmd.equals("decr")) {
-                decodeIncrDecr(in);
-                Command command = new Command(cmd, key, flags, ttl, size, val);
-                clean();
-                out.add(command);
-            } else if (cmd.equals("delete")) {
-                decodeDelete(in);
-                Command command = new Command(cmd, key, flags, ttl, size, val);
-                clean();
-                out.add(command);
-            } else {
-                clean();
-                ByteBuf outBuf = Unpooled.copiedBuffer("ERROR\r\n".getBytes());
-                ctx.writeAndFlush(outBuf);
-            }
-        } else {
-            String curVal = readEndString(in);
-            this.valSb.append(curVal);
-
-            if (this.valSb.length() < this.size + 2) {
-                checkpoint();
-            } else if (this.valSb.length() == this.size + 2) {
-                this.val = this.valSb.toString();
-                Command command = new Command(cmd, key, flags, ttl, size, val);
-                clean();
-                out.add(command);
+        if (discardBytes > 0) {
+            int n = (int) Math.min(discardBytes, in.readableBytes());
+            in.skipBytes(n);
+            discardBytes -= n;
+            return;
+        }
+
+        if (pending != null) {
+            int emitted = out.size();
+            decodeData(in, out);
+            stamp(out, emitted);
+            return;
+        }
+
+        int eol = in.indexOf(in.readerIndex(), in.writerIndex(), (byte) '\n');
+        if (discardLine) {
+            if (eol < 0) {
+                in.skipBytes(in.readableBytes());
             } else {
-                clean();
-                ByteBuf outBuf = Unpooled.copiedBuffer("CLIENT_ERROR bad data chunk\r\nERROR\r\n".getBytes());
-                ctx.writeAndFlush(outBuf);
+                in.readerIndex(eol + 1);
+                discardLine = false;
             }
+            return;
+        }
+        if (eol < 0) {
+            if (in.readableBytes() > MAX_LINE_LENGTH) {
+                in.skipBytes(in.readableBytes());
+                discardLine = true;
+                out.add(error("CLIENT_ERROR line too long\r\n"));
+            }
+            return;
+        }
+
+        int start = in.readerIndex();
+        int end = eol;
+        if (end > start && in.getByte(end - 1) == '\r') {
+            end--;
+        }
+        in.readerIndex(eol + 1);
+
+        lineStart = System.nanoTime();
+        DecodeEvent event = Jfr.AVAILABLE && DecodeEvent.enabled() ? new DecodeEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        int emitted = out.size();
+        decodeLine(in, start, end, out);
+        stamp(out, emitted);
+        if (event != null) {
+            event.cmd = pending != null ? pending.getCmd()
+                    : out.size() > emitted ? ((Command) out.get(out.size() - 1)).getCmd() : null;
+            event.bytes = end - start;
+            event.commit();
         }
     }
 
-    private void clean() {
-        this.cmd = null;
-        this.key = null;
-        this.cmd = null;
-        this.flags = 0;
-        this.ttl = 0;
-        this.size = 0;
-        this.valSb = null;
-        this.val = null;
+    /**
+     * Records when the commands added since emitted started and how long they took to decode
+     */
+    private void stamp(List<Object> out, int emitted) {
+        if (out.size() == emitted) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (int i = emitted; i < out.size(); i++) {
+            Command command = (Command) out.get(i);
+            if (command.getStartNanos() == 0) {
+                command.setStartNanos(lineStart);
+            }
+            command.setDecodeNanos(now - command.getStartNanos());
+        }
     }
 
-    private void showVersion(ChannelHandlerContext ctx) {
+    private void decodeLine(ByteBuf in, int start, int end, List<Object> out) {
+        tokenize(in, start, end);
+        String cmd = tokenCount == 0 ? null : lookup(in);
+        if (cmd == null) {
+            logger.debug("unknown command");
+            out.add(error("ERROR\r\n"));
+            return;
+        }
 
-        logger.info("show version");
-        ByteBuf outBuf = Unpooled.copiedBuffer("TICACHE VERSION 1.0.0\r\n".getBytes());
-        ctx.writeAndFlush(outBuf);
+        boolean noreply = acceptsNoreply(cmd) && tokenCount > 2 && isToken(in, tokenCount - 1, NOREPLY);
+        if (noreply) {
+            tokenCount--;
+        }
+        int emitted = out.size();
+        decodeCommand(cmd, in, out);
+        if (noreply) {
+            // errors in the command line itself are still answered
+            for (int i = emitted; i < out.size(); i++) {
+                Command command = (Command) out.get(i);
+                if (!command.getCmd().equals("error")) {
+                    command.setNoreply(true);
+                }
+            }
+            if (pending != null) {
+                pending.setNoreply(true);
+            }
+        }
     }
 
-    private void decodeSet(ByteBuf in) {
+    private static boolean acceptsNoreply(String cmd) {
+        switch (cmd) {
+            case "set":
+            case "add":
+            case "replace":
+            case "append":
+            case "prepend":
+            case "incr":
+            case "decr":
+            case "delete":
+            case "touch":
+            case "cas":
+                return true;
+            default:
+                return false;
+        }
+    }
 
-        this.key = readString(in);
+    private void decodeCommand(String cmd, ByteBuf in, List<Object> out) {
+        switch (cmd) {
+            case "get":
+            case "gets":
+                decodeGet(cmd, in, out);
+                break;
+            case "set":
+            case "add":
+            case "replace":
+            case "append":
+            case "prepend":
+            case "cas":
+                decodeSet(cmd, in, out);
+                break;
+            case "incr":
+            case "decr":
+                decodeIncrDecr(cmd, in, out);
+                break;
+            case "delete":
+                decodeDelete(in, out);
+                break;
+            case "touch":
+                decodeTouch(in, out);
+                break;
+            case "flush_all":
+                decodeFlushAll(in, out);
+                break;
+            case "stats":
+            case "slowlog":
+                decodeArgs(cmd, in, out);
+                break;
+            case "verbosity":
+                if (tokenCount != 2 || parseNumber(in, 1, Integer.MAX_VALUE) < 0) {
+                    out.add(formatError());
+                } else {
+                    out.add(new Command(cmd, null, 0, 0, 0, null));
+                }
+                break;
+            case "version":
+            case "quit":
+                if (tokenCount != 1) {
+                    out.add(error("ERROR\r\n"));
+                    break;
+                }
+                quit = cmd.equals("quit");
+                out.add(new Command(cmd, null, 0, 0, 0, null));
+                break;
+            default:
+                out.add(error("ERROR\r\n"));
+        }
+    }
 
-        this.flags = readInt(in);
+    private void decodeData(ByteBuf in, List<Object> out) {
+        if (pending.getUpload() != null) {
+            decodeChunks(in, out);
+            return;
+        }
+        int size = pending.getSize();
+        if (in.readableBytes() < size + 2) {
+            return;
+        }
 
-        this.ttl = readInt(in);
+        Command command = pending;
+        pending = null;
+
+        byte[] val = new byte[size];
+        in.readBytes(val);
+        byte cr = in.readByte();
+        byte lf = in.readByte();
+        if (cr != '\r' || lf != '\n') {
+            discardLine = lf != '\n';
+            out.add(error("CLIENT_ERROR bad data chunk\r\n"));
+            return;
+        }
+        command.setVal(val);
+        out.add(command);
+    }
 
-        this.size = readEndInt(in);
+    /**
+     * Hands every complete chunk of the data block to the upload, the
+     * command follows once the block and its \r\n are through
+     */
+    private void decodeChunks(ByteBuf in, List<Object> out) {
+        ChunkStore.Upload upload = pending.getUpload();
+        int n;
+        while ((n = upload.nextChunkSize()) > 0) {
+            if (in.readableBytes() < n) {
+                return;
+            }
+            byte[] chunk = new byte[n];
+            in.readBytes(chunk);
+            upload.write(chunk);
+        }
+        if (in.readableBytes() < 2) {
+            return;
+        }
 
-        this.valSb = new StringBuilder();
+        Command command = pending;
+        pending = null;
 
-        logger.info("read cmd " + this.cmd + " " + this.key + " " + this.flags + " " + this.ttl + " " + this.size);
+        byte cr = in.readByte();
+        byte lf = in.readByte();
+        if (cr != '\r' || lf != '\n') {
+            upload.abort();
+            discardLine = lf != '\n';
+            out.add(error("CLIENT_ERROR bad data chunk\r\n"));
+            return;
+        }
+        out.add(command);
+    }
 
-        checkpoint();
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        if (ReadThrottle.isPaused(ctx.channel())) {
+            // chunk writes or pipelined commands fell behind, no read until ReadThrottle resumes it
+            ctx.fireChannelReadComplete();
+            return;
+        }
+        super.channelReadComplete(ctx);
     }
 
-    private void decodeGet(ByteBuf in) {
-        String key = readEndString(in);
-        key = key.substring(0, key.length() - 2);
-        this.key = key;
+    @Override
+    protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
+        // the connection went away in the middle of a chunked data block
+        if (pending != null && pending.getUpload() != null) {
+            pending.getUpload().abort();
+            pending = null;
+        }
     }
 
-    private void decodeDelete(ByteBuf in) {
-        String key = readEndString(in);
-        key = key.substring(0, key.length() - 2);
-        this.key = key;
+    private void decodeGet(String cmd, ByteBuf in, List<Object> out) {
+        if (tokenCount < 2) {
+            out.add(error("ERROR\r\n"));
+            return;
+        }
+        List<String> keys = new ArrayList<>(tokenCount - 1);
+        for (int i = 1; i < tokenCount; i++) {
+            String key = key(in, i);
+            if (key == null) {
+                out.add(formatError());
+                return;
+            }
+            keys.add(key);
+        }
+        Command command = new Command(cmd, keys.get(0), 0, 0, 0, null);
+        command.setKeys(keys);
+        out.add(command);
     }
 
-    private void decodeIncrDecr(ByteBuf in) {
-        this.key = readString(in);
+    /**
+     * cas takes the unique of the version it replaces after the size
+     */
+    private void decodeSet(String cmd, ByteBuf in, List<Object> out) {
+        boolean cas = cmd.equals("cas");
+        long size = tokenCount == (cas ? 6 : 5) ? parseNumber(in, 4, Integer.MAX_VALUE) : -1;
+        if (size < 0) {
+            out.add(formatError());
+            return;
+        }
+        if (size > MAX_VALUE_SIZE) {
+            discardBytes = size + 2;
+            out.add(error("SERVER_ERROR object too large for cache\r\n"));
+            return;
+        }
+
+        String key = key(in, 1);
+        long flags = parseNumber(in, 2, 0xFFFFFFFFL);
+        long ttl = parseSigned(in, 3);
+        Long unique = cas ? parseUnsigned(in, 5) : null;
+        if (key == null || flags < 0 || ttl == Long.MIN_VALUE || (cas && unique == null)) {
+            discardBytes = size + 2;
+            out.add(formatError());
+            return;
+        }
+
+        pending = new Command(cmd, key, (int) flags, (int) ttl, (int) size, null);
+        pending.setStartNanos(lineStart);
+        if (cas) {
+            pending.setCas(unique);
+        }
+        if (chunkStore != null && chunkStore.isChunked(size) && !cmd.equals("append") && !cmd.equals("prepend")) {
+            pending.setUpload(chunkStore.begin(key, (int) size, channel));
+        }
+        decodeData(in, out);
+    }
 
-        this.val = String.valueOf(readEndInt(in));
+    private void decodeIncrDecr(String cmd, ByteBuf in, List<Object> out) {
+        String key = tokenCount == 3 ? key(in, 1) : null;
+        if (key == null) {
+            out.add(formatError());
+            return;
+        }
+        int start = tokens[4];
+        int len = tokens[5] - start;
+        if (len > 20 || !isDigits(in, start, len)) {
+            out.add(error("CLIENT_ERROR invalid numeric delta argument\r\n"));
+            return;
+        }
+        byte[] val = new byte[len];
+        in.getBytes(start, val);
+        out.add(new Command(cmd, key, 0, 0, 0, val));
     }
 
-    private String readString(ByteBuf in) {
+    private void decodeDelete(ByteBuf in, List<Object> out) {
+        // a trailing 0 is accepted for old clients, any other hold time is not supported
+        boolean legacyTime = tokenCount == 3 && parseNumber(in, 2, 0) == 0;
+        String key = tokenCount == 2 || legacyTime ? key(in, 1) : null;
+        if (key == null) {
+            out.add(error("CLIENT_ERROR bad command line format.  Usage: delete <key> [noreply]\r\n"));
+            return;
+        }
+        out.add(new Command("delete", key, 0, 0, 0, null));
+    }
 
-        char c;
-        StringBuilder sb = new StringBuilder();
-        while ((c = (char) in.readByte()) != ' ') {
-            sb.append(c);
+    private void decodeTouch(ByteBuf in, List<Object> out) {
+        String key = tokenCount == 3 ? key(in, 1) : null;
+        long ttl = tokenCount == 3 ? parseSigned(in, 2) : Long.MIN_VALUE;
+        if (key == null || ttl == Long.MIN_VALUE) {
+            out.add(formatError());
+            return;
         }
+        out.add(new Command("touch", key, 0, (int) ttl, 0, null));
+    }
 
-        return sb.toString();
+    /**
+     * the delay of flush_all is carried in ttl
+     */
+    private void decodeFlushAll(ByteBuf in, List<Object> out) {
+        long delay = tokenCount == 2 ? parseNumber(in, 1, Integer.MAX_VALUE) : 0;
+        if (tokenCount > 2 || delay < 0) {
+            out.add(formatError());
+            return;
+        }
+        out.add(new Command("flush_all", null, 0, (int) delay, 0, null));
     }
 
-    private String readEndString(ByteBuf in) {
+    /**
+     * the sub-command and arguments of stats and slowlog are carried in keys
+     */
+    private void decodeArgs(String cmd, ByteBuf in, List<Object> out) {
+        List<String> args = new ArrayList<>(tokenCount - 1);
+        for (int i = 1; i < tokenCount; i++) {
+            args.add(token(in, i));
+        }
+        Command command = new Command(cmd, null, 0, 0, 0, null);
+        command.setKeys(args);
+        out.add(command);
+    }
 
-        char c;
-        StringBuilder sb = new StringBuilder();
-        while (true) {
-            c = (char) in.readByte();
-            sb.append(c);
-            if (sb.lastIndexOf("\r") > 0) {
-                c = (char) in.readByte();
-                sb.append(c);
+    private void tokenize(ByteBuf in, int start, int end) {
+        tokenCount = 0;
+        int i = start;
+        while (i < end) {
+            while (i < end && in.getByte(i) == ' ') {
+                i++;
+            }
+            if (i == end) {
                 break;
             }
+            int tokenStart = i;
+            while (i < end && in.getByte(i) != ' ') {
+                i++;
+            }
+            if (tokenCount * 2 == tokens.length) {
+                tokens = Arrays.copyOf(tokens, tokens.length * 2);
+            }
+            tokens[tokenCount * 2] = tokenStart;
+            tokens[tokenCount * 2 + 1] = i;
+            tokenCount++;
         }
+    }
 
-        return sb.toString();
+    /**
+     * @return the name of the command in the first token, null if it is unknown
+     */
+    private String lookup(ByteBuf in) {
+        int start = tokens[0];
+        int len = tokens[1] - start;
+        for (int i = 0; i < cmdBytes.length; i++) {
+            byte[] name = cmdBytes[i];
+            if (name.length != len) {
+                continue;
+            }
+            int j = 0;
+            while (j < len && in.getByte(start + j) == name[j]) {
+                j++;
+            }
+            if (j == len) {
+                return cmds[i];
+            }
+        }
+        return null;
     }
 
-    private int readInt(ByteBuf in) {
+    private String token(ByteBuf in, int index) {
+        int start = tokens[index * 2];
+        return in.toString(start, tokens[index * 2 + 1] - start, StandardCharsets.US_ASCII);
+    }
 
-        char c;
-        int integer = 0;
-        while ((c = (char) in.readByte()) != ' ') {
-            integer = (integer * 10) + (c - '0');
+    /**
+     * @return the token as a key, null if it is longer than memcached allows
+     */
+    private String key(ByteBuf in, int index) {
+        int len = tokens[index * 2 + 1] - tokens[index * 2];
+        if (len > MAX_KEY_LENGTH) {
+            return null;
         }
-        return integer;
+        return token(in, index);
     }
 
-    private int readEndInt(ByteBuf in) {
+    /**
+     * @return the token as a non-negative number up to max, -1 if it is not one
+     */
+    private long parseNumber(ByteBuf in, int index, long max) {
+        int start = tokens[index * 2];
+        int end = tokens[index * 2 + 1];
+        if (start == end || end - start > 18) {
+            return -1;
+        }
+        long n = 0;
+        for (int i = start; i < end; i++) {
+            byte b = in.getByte(i);
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            n = n * 10 + (b - '0');
+        }
+        return n <= max ? n : -1;
+    }
 
-        char c;
-        int integer = 0;
-        while ((c = (char) in.readByte()) != '\r') {
-            if (c == ' ') {
-                while ((c = (char) in.readByte()) != '\r') {
-                    continue;
-                }
-                break;
+    /**
+     * @return the token as an int that may be negative, Long.MIN_VALUE if it is not one
+     */
+    private long parseSigned(ByteBuf in, int index) {
+        int start = tokens[index * 2];
+        boolean negative = start < tokens[index * 2 + 1] && in.getByte(start) == '-';
+        if (negative) {
+            tokens[index * 2]++;
+        }
+        long n = parseNumber(in, index, Integer.MAX_VALUE);
+        tokens[index * 2] = start;
+        if (n < 0) {
+            return Long.MIN_VALUE;
+        }
+        return negative ? -n : n;
+    }
+
+    /**
+     * @return the token as an unsigned 64 bit number, null if it is not one
+     */
+    private Long parseUnsigned(ByteBuf in, int index) {
+        int start = tokens[index * 2];
+        int end = tokens[index * 2 + 1];
+        if (start == end || end - start > 20) {
+            return null;
+        }
+        try {
+            return Long.parseUnsignedLong(in.toString(start, end - start, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private boolean isToken(ByteBuf in, int index, byte[] expected) {
+        int start = tokens[index * 2];
+        if (tokens[index * 2 + 1] - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (in.getByte(start + i) != expected[i]) {
+                return false;
             }
-            integer = (integer * 10) + (c - '0');
         }
-        in.skipBytes(1);
-        return integer;
+        return true;
     }
 
+    private static boolean isDigits(ByteBuf in, int start, int len) {
+        if (len == 0) {
+            return false;
+        }
+        for (int i = start; i < start + len; i++) {
+            byte b = in.getByte(i);
+            if (b < '0' || b > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Command formatError() {
+        return error("CLIENT_ERROR bad command line format\r\n");
+    }
+
+    /**
+     * Errors are passed on as commands, so they are answered in order with
+     * the replies to the commands before them
+     */
+    private static Command error(String reply) {
+        return new Command("error", null, 0, 0, 0, reply.getBytes(StandardCharsets.US_ASCII));
+    }
 }
@@ -1,13 +1,16 @@
 package com.pingcap.ticache;
 
-import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import lombok.RequiredArgsConstructor;
-import io.netty.buffer.Unpooled;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.GlobalEventExecutor;
 
+import org.HdrHistogram.Histogram;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -16,6 +19,19 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * Handle decoded commands
  */
@@ -26,8 +42,39 @@ public class CommandHandler extends SimpleChannelInboundHandler<Command> {
 
     private static Logger logger = LoggerFactory.getLogger(CommandHandler.class);
 
+    private static final AttributeKey<PipelinedConnection> PIPELINED_CONNECTION =
+            AttributeKey.valueOf("pipelinedConnection");
+
+    static final String VERSION = "1.0.0";
+
+    private static final Reply VERSION_REPLY = Reply.text("VERSION " + VERSION + "\r\n");
+
     private final Client client;
 
+    private final ServerProperties serverProperties;
+
+    private final ExecutorService commandExecutor;
+
+    private final Keyspace keyspace;
+
+    private final NearCache nearCache;
+
+    private final CasMetrics casMetrics;
+
+    private final WriteBatcher writeBatcher;
+
+    private final Stats stats;
+
+    private final SlowLog slowLog;
+
+    private final HotKeys hotKeys;
+
+    private final NegativeCache negativeCache;
+
+    private final Compression compression;
+
+    private final ChunkStore chunkStore;
+
     @Override
     public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
         ctx.flush();
@@ -35,300 +82,790 @@ public class CommandHandler extends SimpleChannelInboundHandler<Command> {
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, Command msg) throws Exception {
+        PipelinedConnection conn = ctx.channel().attr(PIPELINED_CONNECTION).get();
+        if (msg.getCmd().equals("quit")) {
+            if (conn != null) {
+                conn.closeWhenDrained();
+            } else {
+                // replies written earlier in this read are only flushed in channelReadComplete
+                ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+            }
+            return;
+        }
+
+        // a chunked set waits for its chunk writes off the event loop, the
+        // connection stays pipelined from then on so replies keep their order
+        if (!serverProperties.getAsync().isEnabled() && conn == null && msg.getUpload() == null) {
+            Reply reply = execute(msg);
+            if (reply != null) {
+                // flushed once the whole read has been handled, in channelReadComplete
+                ctx.write(reply);
+            }
+            return;
+        }
+
+        if (conn == null) {
+            conn = new PipelinedConnection(ctx, this::execute, commandExecutor,
+                    serverProperties.getAsync().getMaxInFlight());
+            ctx.channel().attr(PIPELINED_CONNECTION).set(conn);
+        }
+        conn.submit(msg);
+    }
+
+    /**
+     * Runs a command against the backend and returns its reply, null for
+     * a noreply command, may be called from any thread
+     */
+    Reply execute(Command msg) {
+        long start = System.nanoTime();
+        HandleEvent event = Jfr.AVAILABLE && HandleEvent.enabled() ? new HandleEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        RequestTrace trace = slowLog.isEnabled() ? RequestTrace.begin() : null;
+        try {
+            Reply reply = dispatch(msg);
+            if (msg.isNoreply()) {
+                if (isError(reply)) {
+                    stats.count("noreply_errors");
+                }
+                return null;
+            }
+            return reply;
+        } finally {
+            long end = System.nanoTime();
+            long queued = msg.getStartNanos() == 0 ? 0 : start - msg.getStartNanos() - msg.getDecodeNanos();
+            if (trace != null) {
+                RequestTrace.end();
+            }
+            if (!msg.getCmd().equals("error")) {
+                stats.recordCommand(msg.getCmd(), end - start);
+                if (trace != null && slowLog.isSlow(msg.getDecodeNanos() + queued + end - start)) {
+                    slowLog.offer(msg, queued, end - start, trace);
+                }
+            }
+            if (event != null) {
+                event.end();
+                event.cmd = msg.getCmd();
+                event.key = msg.getKey();
+                event.keys = msg.getKeys() == null ? 1 : msg.getKeys().size();
+                event.queuedNanos = queued;
+                event.commit();
+            }
+        }
+    }
+
+    private Reply dispatch(Command msg) {
 
         String cmd = msg.getCmd();
-        logger.info("command handler cmd=" + cmd);
 
         try {
+            if (isStorage(cmd)) {
+                stats.count("cmd_set");
+            }
             if (cmd.equals("set")) {
-                doSet(msg.getKey(), msg.getFlags(), msg.getTtl(), msg.getSize(), msg.getVal());
-                ByteBuf outBuf = Unpooled.copiedBuffer("STORED\r\n".getBytes());
-                ctx.writeAndFlush(outBuf);
+                doSet(msg.getKey(), newItem(msg));
+                return Reply.STORED;
             } else if (cmd.equals("add")) {
-                boolean ret = doAdd(msg.getKey(), msg.getFlags(), msg.getTtl(), msg.getSize(), msg.getVal());
-                if (ret) {
-                    ByteBuf outBuf = Unpooled.copiedBuffer("STORED\r\n".getBytes());
-                    ctx.writeAndFlush(outBuf);
-                } else {
-                    ByteBuf outBuf = Unpooled.copiedBuffer("NOT_STORED\r\n".getBytes());
-                    ctx.writeAndFlush(outBuf);
-                }
+                boolean ret = doAdd(msg.getKey(), newItem(msg));
+                return ret ? Reply.STORED : Reply.NOT_STORED;
             } else if (cmd.equals("replace")) {
-                boolean ret = doReplace(msg.getKey(), msg.getFlags(), msg.getTtl(), msg.getSize(), msg.getVal());
-                if (ret) {
-                    ByteBuf outBuf = Unpooled.copiedBuffer("STORED\r\n".getBytes());
-                    ctx.writeAndFlush(outBuf);
-                } else {
-                    ByteBuf outBuf = Unpooled.copiedBuffer("NOT_STORED\r\n".getBytes());
-                    ctx.writeAndFlush(outBuf);
-                }
+                boolean ret = doReplace(msg.getKey(), newItem(msg));
+                return ret ? Reply.STORED : Reply.NOT_STORED;
+            } else if (cmd.equals("cas")) {
+                Reply ret = doCas(msg);
+                stats.count(ret == Reply.STORED ? "cas_hits" : ret == Reply.EXISTS ? "cas_badval" : "cas_misses");
+                return ret;
             } else if (cmd.equals("prepend")) {
-                boolean ret = doPrepend(msg.getKey(), msg.getFlags(), msg.getTtl(), msg.getSize(), msg.getVal());
-                if (ret) {
-                    ByteBuf outBuf = Unpooled.copiedBuffer("STORED\r\n".getBytes());
-                    ctx.writeAndFlush(outBuf);
-                } else {
-                    ByteBuf outBuf = Unpooled.copiedBuffer("NOT_STORED\r\n".getBytes());
-                    ctx.writeAndFlush(outBuf);
-                }
+                return doConcat(msg, false);
             } else if (cmd.equals("append")) {
-                boolean ret = doAppend(msg.getKey(), msg.getFlags(), msg.getTtl(), msg.getSize(), msg.getVal());
-                if (ret) {
-                    ByteBuf outBuf = Unpooled.copiedBuffer("STORED\r\n".getBytes());
-                    ctx.writeAndFlush(outBuf);
-                } else {
-                    ByteBuf outBuf = Unpooled.copiedBuffer("NOT_STORED\r\n".getBytes());
-                    ctx.writeAndFlush(outBuf);
-                }
-            } else if (cmd.equals("incr")) {
-                try {
-                    boolean ret = doIncr(msg.getKey(), msg.getVal());
-                    if (ret) {
-                        ByteBuf outBuf = Unpooled.copiedBuffer("STORED\r\n".getBytes());
-                        ctx.writeAndFlush(outBuf);
-                    } else {
-                        ByteBuf outBuf = Unpooled.copiedBuffer("NOT_STORED\r\n".getBytes());
-                        ctx.writeAndFlush(outBuf);
-                    }
-                } catch (Exception e) {
-                    ByteBuf outBuf = Unpooled.copiedBuffer(e.getMessage().getBytes());
-                    ctx.writeAndFlush(outBuf);
-                }
-            } else if (cmd.equals("decr")) {
+                return doConcat(msg, true);
+            } else if (cmd.equals("incr") || cmd.equals("decr")) {
                 try {
-                    boolean ret = doDecr(msg.getKey(), msg.getVal());
-                    if (ret) {
-                        ByteBuf outBuf = Unpooled.copiedBuffer("STORED\r\n".getBytes());
-                        ctx.writeAndFlush(outBuf);
-                    } else {
-                        ByteBuf outBuf = Unpooled.copiedBuffer("NOT_STORED\r\n".getBytes());
-                        ctx.writeAndFlush(outBuf);
+                    Long ret = doIncrDecr(msg.getKey(), msg.getVal(), cmd.equals("incr"));
+                    if (ret == null && msg.getInitial() != null) {
+                        ret = doIncrDecrInitial(msg, cmd.equals("incr"));
                     }
+                    stats.count(ret != null ? cmd + "_hits" : cmd + "_misses");
+                    return ret != null ? new Reply.Number(ret) : Reply.NOT_FOUND;
                 } catch (Exception e) {
-                    ByteBuf outBuf = Unpooled.copiedBuffer(e.getMessage().getBytes());
-                    ctx.writeAndFlush(outBuf);
+                    return Reply.text(e.getMessage());
                 }
-            } else if (cmd.equals("get")) {
-                String retVal = doGet(msg.getKey());
-                if (retVal == null) {
-                    ByteBuf outBuf = Unpooled.copiedBuffer("END\r\n".getBytes());
-                    ctx.writeAndFlush(outBuf);
+            } else if (cmd.equals("get") || cmd.equals("gets")) {
+                if (msg.getKeys() == null || msg.getKeys().isEmpty()) {
+                    return Reply.ERROR;
                 } else {
-                    ByteBuf outBuf = Unpooled.copiedBuffer(retVal.getBytes());
-                    ctx.writeAndFlush(outBuf);
+                    return doGet(msg.getKeys(), cmd.equals("gets"));
                 }
             } else if (cmd.equals("delete")) {
-                boolean ret = doDelete(msg.getKey());
-                if (ret) {
-                    ByteBuf outBuf = Unpooled.copiedBuffer("DELETED\r\n".getBytes());
-                    ctx.writeAndFlush(outBuf);
-                } else {
-                    ByteBuf outBuf = Unpooled.copiedBuffer("NOT_FOUND\r\n".getBytes());
-                    ctx.writeAndFlush(outBuf);
+                Reply ret = doDelete(msg.getKey(), msg.getCas());
+                if (ret != Reply.EXISTS) {
+                    stats.count(ret == Reply.DELETED ? "delete_hits" : "delete_misses");
                 }
+                return ret;
+            } else if (cmd.equals("touch")) {
+                stats.count("cmd_touch");
+                boolean ret = doTouch(msg.getKey(), msg.getTtl());
+                stats.count(ret ? "touch_hits" : "touch_misses");
+                return ret ? Reply.TOUCHED : Reply.NOT_FOUND;
+            } else if (cmd.equals("version")) {
+                return VERSION_REPLY;
+            } else if (cmd.equals("verbosity") || cmd.equals("noop")) {
+                return Reply.OK;
+            } else if (cmd.equals("error")) {
+                return new Reply.Text(msg.getVal());
             } else if (cmd.equals("flush_all")) {
-                doFlushAll();
-                ByteBuf outBuf = Unpooled.copiedBuffer("OK\r\n".getBytes());
-                ctx.writeAndFlush(outBuf);
+                stats.count("cmd_flush");
+                if (msg.getTtl() > 0) {
+                    scheduleFlushAll(msg.getTtl());
+                } else {
+                    doFlushAll();
+                }
+                return Reply.OK;
+            } else if (cmd.equals("stats")) {
+                return Reply.text(doStats(msg.getKeys()));
+            } else if (cmd.equals("slowlog")) {
+                return Reply.text(doSlowlog(msg.getKeys()));
             } else {
-                ByteBuf outBuf = Unpooled.copiedBuffer("ERROR\r\n".getBytes());
-                ctx.writeAndFlush(outBuf);
+                return Reply.ERROR;
             }
         } catch (Exception e) {
             logger.error("cmd error", e);
 
-            ByteBuf outBuf = Unpooled.copiedBuffer("SERVER_ERROR\r\n".getBytes());
-            ctx.writeAndFlush(outBuf);
+            return Reply.SERVER_ERROR;
         }
-
     }
 
-    private String doGet(String key) throws Exception {
-        String oldVal = client.getData(key);
-        if (oldVal == null || oldVal.length() == 0) {
-            return null;
+    /**
+     * Serves a single or multi-key get. Keys missing from the hot key
+     * replica and the near cache and not known to be absent are read from
+     * the backend in one batch, then a VALUE block is written per hit, in
+     * the order the keys were requested, followed by a single END. gets
+     * adds the cas unique of each item to its VALUE line.
+     */
+    private Reply doGet(List<String> keys, boolean withCas) throws Exception {
+        Map<String, StoredVal> found = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String key : keys) {
+            hotKeys.record(key);
+            StoredVal storedVal = hotKeys.get(key);
+            if (storedVal == null) {
+                storedVal = nearCache.get(key);
+            }
+            if (storedVal != null) {
+                found.put(key, storedVal);
+            } else if (!negativeCache.isAbsent(key)) {
+                missing.add(key);
+            }
         }
-        StoredVal storedVal = new StoredVal(oldVal);
-        int flags = storedVal.getFlags();
-        int ttl = storedVal.getTtl();
-        int size = storedVal.getSize();
-        String val = storedVal.getVal();
 
-        int currTime = (int) (System.currentTimeMillis() / 1000);
-        if (ttl < currTime && ttl > 0) {
-            client.deleteData(key);
-            return null;
+        if (!missing.isEmpty()) {
+            long[] stamps = new long[missing.size()];
+            long[] missStamps = new long[missing.size()];
+            for (int i = 0; i < stamps.length; i++) {
+                stamps[i] = nearCache.stamp(missing.get(i));
+                missStamps[i] = negativeCache.stamp(missing.get(i));
+            }
+            Map<String, byte[]> values = missing.size() == 1
+                    ? singletonValue(missing.get(0), getData(missing.get(0)))
+                    : client.batchGet(keyspace.dataPrefix(), missing);
+
+            int currTime = (int) (System.currentTimeMillis() / 1000);
+            for (int i = 0; i < stamps.length; i++) {
+                String key = missing.get(i);
+                byte[] oldVal = values.get(key);
+                if (found.containsKey(key)) {
+                    continue;
+                }
+                if (oldVal == null || oldVal.length == 0) {
+                    negativeCache.recordMiss(key, missStamps[i]);
+                    continue;
+                }
+                StoredVal storedVal = compression.inflate(new StoredVal(oldVal));
+                int ttl = storedVal.getTtl();
+                if (ttl < currTime && ttl > 0) {
+                    // a write may have replaced the expired record since it was read
+                    if (client.deleteIf(keyspace.dataKey(key), oldVal)) {
+                        chunkStore.release(oldVal);
+                    }
+                    nearCache.invalidate(key);
+                    hotKeys.invalidate(key);
+                    stats.count("get_expired");
+                    continue;
+                }
+                if (!storedVal.isChunked()) {
+                    nearCache.put(key, storedVal, stamps[i]);
+                }
+                found.put(key, storedVal);
+            }
         }
 
-        StringBuilder sb = new StringBuilder();
-        sb.append("VALUE ");
-        sb.append(key);
-        sb.append(" ");
-        sb.append(flags);
-        sb.append(" ");
-        sb.append(size);
-        sb.append("\r\n");
-        sb.append(val);
-        sb.append("END\r\n");
+        Reply.Values reply = new Reply.Values(found.size(), withCas);
+        for (String key : keys) {
+            StoredVal storedVal = found.get(key);
+            if (storedVal != null && storedVal.isChunked()) {
+                reply.add(key, storedVal, chunkStore.stream(storedVal));
+            } else if (storedVal != null) {
+                reply.add(key, storedVal);
+            }
+        }
+        int hits = reply.size();
 
-        return sb.toString();
+        stats.count("cmd_get", keys.size());
+        stats.count("get_hits", hits);
+        stats.count("get_misses", keys.size() - hits);
+        return reply;
     }
 
-    private boolean doAdd(String key, int flags, int ttl, int size, String val) throws Exception {
-        String oldVal = client.getData(key);
+    private static boolean isError(Reply reply) {
+        return reply == Reply.ERROR || reply == Reply.SERVER_ERROR || reply instanceof Reply.Text;
+    }
 
-        boolean isValid = isValid(oldVal);
-        if (isValid) {
-            return false;
-        }
+    private static boolean isStorage(String cmd) {
+        return cmd.equals("set") || cmd.equals("add") || cmd.equals("replace") || cmd.equals("cas")
+                || cmd.equals("append") || cmd.equals("prepend");
+    }
 
-        doSet(key, flags, ttl, size, val);
-        return true;
+    /**
+     * stats            general counters, with near cache, cas and batching figures
+     * stats settings   configuration
+     * stats latency    per command latency percentiles, in micros
+     * stats backend    per backend operation latency percentiles, in micros
+     * stats hotkeys    hot keys, hottest first, with estimated gets per window
+     * stats reset      zeroes counters and histograms
+     */
+    private String doStats(List<String> args) {
+        StringBuilder sb = new StringBuilder();
+        String view = args == null || args.isEmpty() ? "" : args.get(0);
+        switch (view) {
+            case "":
+                generalStats(sb);
+                break;
+            case "settings":
+                settingsStats(sb);
+                break;
+            case "latency":
+                latencyStats(sb, stats.commandLatency());
+                break;
+            case "backend":
+                latencyStats(sb, stats.backendLatency());
+                break;
+            case "hotkeys":
+                hotKeysStats(sb);
+                break;
+            case "reset":
+                stats.reset();
+                return "RESET\r\n";
+            default:
+                return "ERROR\r\n";
+        }
+        sb.append("END\r\n");
+        return sb.toString();
     }
 
-    private boolean doReplace(String key, int flags, int ttl, int size, String val) throws Exception {
-        String oldVal = client.getData(key);
-        boolean isValid = isValid(oldVal);
-        if (!isValid) {
-            return false;
+    private void generalStats(StringBuilder sb) {
+        String runtime = ManagementFactory.getRuntimeMXBean().getName();
+        stat(sb, "pid", runtime.substring(0, Math.max(0, runtime.indexOf('@'))));
+        stat(sb, "uptime", stats.getUptime());
+        stat(sb, "time", System.currentTimeMillis() / 1000);
+        stat(sb, "version", VERSION);
+        stat(sb, "pointer_size", 64);
+        stat(sb, "curr_connections", stats.getCurrConnections());
+        stat(sb, "total_connections", stats.getTotalConnections());
+        for (Map.Entry<String, Long> counter : stats.counters().entrySet()) {
+            stat(sb, counter.getKey(), counter.getValue());
         }
+        stat(sb, "bytes_read", stats.getBytesRead());
+        stat(sb, "bytes_written", stats.getBytesWritten());
+        stat(sb, "threads", serverProperties.getWorkerCount());
+        stat(sb, "backend", serverProperties.getBackend().getType());
+        stat(sb, "keyspace_generation", keyspace.getGeneration());
+
+        stat(sb, "near_cache_items", nearCache.getItems());
+        stat(sb, "near_cache_bytes", nearCache.getBytes());
+        stat(sb, "near_cache_hits", nearCache.getHitCount());
+        stat(sb, "near_cache_misses", nearCache.getMissCount());
+        stat(sb, "near_cache_evictions", nearCache.getEvictionCount());
+
+        stat(sb, "hot_keys", hotKeys.getHotKeyCount());
+        stat(sb, "hot_replica_items", hotKeys.getReplicaItems());
+        stat(sb, "hot_replica_hits", hotKeys.getReplicaHits());
+        stat(sb, "hot_refreshes", hotKeys.getRefreshes());
+
+        stat(sb, "negative_cache_mode", negativeCache.getMode());
+        stat(sb, "negative_cache_hits", negativeCache.getHits());
+        stat(sb, "negative_cache_backend_misses", negativeCache.getBackendMisses());
+        stat(sb, "negative_cache_fpr", String.format("%.6f", negativeCache.getFalsePositiveRate()));
+        stat(sb, "negative_cache_expected_fpr", String.format("%.6f", negativeCache.getExpectedFalsePositiveRate()));
+        stat(sb, "negative_cache_items", negativeCache.getItems());
+        stat(sb, "negative_cache_bytes", negativeCache.getBytes());
+
+        long compressIn = stats.get("compress_bytes_in");
+        long compressOut = stats.get("compress_bytes_out");
+        stat(sb, "compression_ratio", String.format("%.2f", compressOut == 0 ? 1.0 : (double) compressIn / compressOut));
+        stat(sb, "compress_us", stats.get("compress_nanos") / 1000);
+        stat(sb, "decompress_us", stats.get("decompress_nanos") / 1000);
+
+        stat(sb, "cas_updates", casMetrics.getUpdates());
+        stat(sb, "cas_attempts", casMetrics.getAttempts());
+        stat(sb, "cas_conflicts", casMetrics.getConflicts());
+        stat(sb, "cas_exhausted", casMetrics.getExhausted());
+
+        stat(sb, "batch_batches", writeBatcher.getBatches());
+        stat(sb, "batch_size_mean", String.format("%.1f", writeBatcher.getBatchSizeMean()));
+        stat(sb, "batch_write_p99_us", writeBatcher.getWriteMicrosP99());
+    }
 
-        doSet(key, flags, ttl, size, val);
-        return true;
+    private void settingsStats(StringBuilder sb) {
+        ServerProperties p = serverProperties;
+        stat(sb, "tcpport", p.getTcpPort());
+        stat(sb, "num_threads", p.getWorkerCount());
+        stat(sb, "tcp_backlog", p.getBacklog());
+        stat(sb, "binding_protocol", p.getProtocol());
+        stat(sb, "item_size_max", CommandDecoder.MAX_VALUE_SIZE);
+        stat(sb, "key_max", CommandDecoder.MAX_KEY_LENGTH);
+        stat(sb, "backend", p.getBackend().getType());
+        stat(sb, "async", p.getAsync().isEnabled() ? "yes" : "no");
+        stat(sb, "async_threads", p.getAsync().getThreads());
+        stat(sb, "max_in_flight", p.getAsync().getMaxInFlight());
+        stat(sb, "near_cache", p.getNearCache().isEnabled() ? "yes" : "no");
+        stat(sb, "near_cache_max_bytes", p.getNearCache().getMaxBytes());
+        stat(sb, "near_cache_max_ttl", p.getNearCache().getMaxTtl());
+        stat(sb, "cas_max_retries", p.getCas().getMaxRetries());
+        stat(sb, "batch", p.getBatch().isEnabled() ? "yes" : "no");
+        stat(sb, "batch_window_us", p.getBatch().getWindowMicros());
+        stat(sb, "batch_max_count", p.getBatch().getMaxCount());
+        stat(sb, "batch_max_bytes", p.getBatch().getMaxBytes());
+        stat(sb, "single_flight", p.getBackend().isSingleFlight() ? "yes" : "no");
+        stat(sb, "native_ttl", client.supportsTtl() ? "yes" : "no");
+        stat(sb, "expiry_sweep", p.getExpiry().isSweep() && !client.supportsTtl() ? "yes" : "no");
+        stat(sb, "expiry_sweep_page_size", p.getExpiry().getPageSize());
+        stat(sb, "expiry_sweep_max_deletes_per_second", p.getExpiry().getMaxDeletesPerSecond());
+        stat(sb, "compression", p.getCompression().getCodec());
+        stat(sb, "compression_threshold", p.getCompression().getThreshold());
+        stat(sb, "chunked_storage", chunkStore.isEnabled() ? "yes" : "no");
+        stat(sb, "chunk_threshold", p.getChunk().getThreshold());
+        stat(sb, "chunk_size", p.getChunk().getChunkSize());
     }
 
-    private boolean doAppend(String key, int flags, int ttl, int size, String val) throws Exception {
-        String oldVal = client.getData(key);
-        boolean isValid = isValid(oldVal);
-        if (!isValid) {
-            return false;
+    /**
+     * STAT key:share percent of all gets, followed by STAT key the estimated gets per window
+     */
+    private void hotKeysStats(StringBuilder sb) {
+        for (HotKeys.Hot hot : hotKeys.hotKeys()) {
+            stat(sb, hot.key, hot.estimate);
+            stat(sb, hot.key + ":share", String.format("%.2f", hot.share * 100));
         }
-        StoredVal storedVal = new StoredVal(oldVal);
-        int newFlags = storedVal.getFlags();
-        int newTtl = storedVal.getTtl();
-        int newSize = storedVal.getSize() + size;
-        StringBuilder newValSb = new StringBuilder();
-        String oVal = storedVal.getVal();
-        newValSb.append(oVal.substring(0, oVal.length() - 2));
-        newValSb.append(val);
-        String newVal = newValSb.toString();
-
-        doSet(key, newFlags, newTtl, newSize, newVal);
-        return true;
     }
 
-    private boolean doPrepend(String key, int flags, int ttl, int size, String val) throws Exception {
-        String oldVal = client.getData(key);
-        boolean isValid = isValid(oldVal);
-        if (!isValid) {
-            return false;
+    private static void latencyStats(StringBuilder sb, Map<String, Histogram> histograms) {
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            String name = entry.getKey();
+            Histogram h = entry.getValue();
+            stat(sb, name + ":count", h.getTotalCount());
+            stat(sb, name + ":p50_us", h.getValueAtPercentile(50) / 1000);
+            stat(sb, name + ":p90_us", h.getValueAtPercentile(90) / 1000);
+            stat(sb, name + ":p99_us", h.getValueAtPercentile(99) / 1000);
+            stat(sb, name + ":p999_us", h.getValueAtPercentile(99.9) / 1000);
+            stat(sb, name + ":max_us", h.getMaxValue() / 1000);
         }
-        StoredVal storedVal = new StoredVal(oldVal);
-        int newFlags = storedVal.getFlags();
-        int newTtl = storedVal.getTtl();
-        int newSize = storedVal.getSize() + size;
-        StringBuilder newValSb = new StringBuilder();
-        newValSb.append(val.substring(0, val.length() - 2));
-        newValSb.append(storedVal.getVal());
-        String newVal = newValSb.toString();
-
-        doSet(key, newFlags, newTtl, newSize, newVal);
-        return true;
     }
 
-    private boolean doIncr(String key, String val) throws Exception {
-        String oldVal = client.getData(key);
-        boolean isValid = isValid(oldVal);
-        if (!isValid) {
-            return false;
+    /**
+     * slowlog [count]  the newest slow commands, phases in micros
+     * slowlog reset    drops all entries
+     */
+    private String doSlowlog(List<String> args) {
+        String arg = args == null || args.isEmpty() ? "" : args.get(0);
+        if (arg.equals("reset")) {
+            slowLog.reset();
+            return "RESET\r\n";
         }
-        StoredVal storedVal = new StoredVal(oldVal);
-        int newFlags = storedVal.getFlags();
-        int newTtl = storedVal.getTtl();
-
-        int tmpVal = 0;
+        int limit;
         try {
-            int nVal = Integer.parseInt(val);
-            String ooVal = storedVal.getVal();
-            int oVal = Integer.parseInt(ooVal.substring(0, ooVal.length() - 2));
-            tmpVal = oVal + nVal;
+            limit = arg.isEmpty() ? Integer.MAX_VALUE : Integer.parseInt(arg);
         } catch (NumberFormatException e) {
-            throw new Exception("CLIENT_ERROR cannot increment or decrement non-numeric value\r\n");
+            return "CLIENT_ERROR bad command line format\r\n";
         }
 
-        String newVal = Integer.toString(tmpVal);
-        int newSize = newVal.length();
-        newVal += "\r\n";
+        StringBuilder sb = new StringBuilder();
+        for (SlowLog.Entry entry : slowLog.entries(limit)) {
+            sb.append("SLOWLOG ").append(entry.seq)
+                    .append(' ').append(entry.time)
+                    .append(' ').append(entry.cmd)
+                    .append(' ').append(entry.key == null ? "-" : entry.key)
+                    .append(" total=").append(entry.totalNanos() / 1000)
+                    .append(" decode=").append(entry.decodeNanos / 1000)
+                    .append(" queue=").append(entry.queueNanos / 1000)
+                    .append(" handle=").append(entry.handleNanos / 1000)
+                    .append(" backend=").append(entry.backendNanos / 1000)
+                    .append(" backend_ops=").append(entry.backendOps)
+                    .append(" region=").append(entry.region)
+                    .append("\r\n");
+        }
+        sb.append("END\r\n");
+        return sb.toString();
+    }
 
-        doSet(key, newFlags, newTtl, newSize, newVal);
-        return true;
+    private static void stat(StringBuilder sb, String name, Object value) {
+        sb.append("STAT ").append(name).append(' ').append(value).append("\r\n");
     }
 
-    private boolean doDecr(String key, String val) throws Exception {
-        String oldVal = client.getData(key);
-        boolean isValid = isValid(oldVal);
-        if (!isValid) {
-            return false;
+    private static Map<String, byte[]> singletonValue(String key, byte[] val) {
+        return val == null ? Collections.<String, byte[]>emptyMap() : Collections.singletonMap(key, val);
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] joined = new byte[first.length + second.length];
+        System.arraycopy(first, 0, joined, 0, first.length);
+        System.arraycopy(second, 0, joined, first.length, second.length);
+        return joined;
+    }
+
+    /**
+     * Computes the new item of a key from its current one
+     */
+    private interface Mutation {
+
+        /**
+         * @param current the live item, null if the key is absent or expired
+         * @return the item to store, null to leave the key untouched
+         */
+        StoredVal apply(StoredVal current) throws Exception;
+    }
+
+    /**
+     * Applies mutation to the current item of key and stores the result with
+     * a compare-and-swap against the record it was computed from. When a
+     * concurrent write wins, the item is read again and mutation re-applied,
+     * at most cas.max-retries times.
+     *
+     * A mutation that returns a new item gives it a new cas unique, one
+     * that returns the current item keeps its unique.
+     *
+     * @return the stored item, null if mutation left the key untouched
+     */
+    private StoredVal update(String key, Mutation mutation) throws Exception {
+        int maxRetries = serverProperties.getCas().getMaxRetries();
+        negativeCache.beginWrite(key);
+        // an error in the compare-and-swap leaves it open whether it went through
+        boolean written = false;
+        try {
+            for (int attempt = 0; attempt <= maxRetries; attempt++) {
+                casMetrics.recordAttempt();
+                String dataKey = keyspace.dataKey(key);
+                byte[] oldVal = client.getBytes(dataKey);
+                if (oldVal != null && oldVal.length == 0) {
+                    oldVal = null;
+                }
+
+                StoredVal current = isValid(oldVal) ? compression.inflate(new StoredVal(oldVal)) : null;
+                StoredVal newVal = mutation.apply(current);
+                if (newVal == null) {
+                    casMetrics.recordUpdate();
+                    return null;
+                }
+                if (newVal != current) {
+                    newVal.setCas(newCas());
+                }
+                written = true;
+                if (client.compareAndSet(dataKey, oldVal, compression.deflate(newVal), ttlSeconds(newVal.getTtl()))) {
+                    chunkStore.replaced(oldVal, newVal);
+                    nearCache.invalidate(key);
+                    hotKeys.invalidate(key);
+                    casMetrics.recordUpdate();
+                    return newVal;
+                }
+                written = false;
+
+                casMetrics.recordConflict();
+                backoff(attempt);
+            }
+        } finally {
+            negativeCache.endWrite(key, written);
         }
-        StoredVal storedVal = new StoredVal(oldVal);
-        int newFlags = storedVal.getFlags();
-        int newTtl = storedVal.getTtl();
 
-        int tmpVal = 0;
+        casMetrics.recordExhausted();
+        throw new Exception("SERVER_ERROR too much contention on key\r\n");
+    }
+
+    /**
+     * Uniques are random rather than counted, nodes hand them out without
+     * coordinating and a restart can not hand out one seen before
+     *
+     * @return a cas unique for a new version of an item, never 0
+     */
+    private static long newCas() {
+        long cas;
+        do {
+            cas = ThreadLocalRandom.current().nextLong();
+        } while (cas == 0);
+        return cas;
+    }
+
+    private static void backoff(int attempt) {
+        long maxNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(1), 20000L << Math.min(attempt, 10));
+        LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(maxNanos));
+    }
+
+    /**
+     * @return the item a storage command writes, a large value is written to its chunks first
+     */
+    private StoredVal newItem(Command msg) throws Exception {
+        int expiry = absoluteTtl(msg.getTtl());
+        if (msg.getUpload() != null) {
+            // only run once the chunks are written, see PipelinedConnection
+            return Client.await(msg.getUpload().commit(msg.getFlags(), expiry));
+        }
+        if (chunkStore.isChunked(msg.getSize())) {
+            return chunkStore.store(msg.getKey(), msg.getFlags(), expiry, msg.getVal());
+        }
+        return new StoredVal(msg.getFlags(), expiry, msg.getSize(), msg.getVal());
+    }
+
+    private boolean doAdd(String key, StoredVal item) throws Exception {
+        return storeIf(key, item, false);
+    }
+
+    private boolean doReplace(String key, StoredVal item) throws Exception {
+        return storeIf(key, item, true);
+    }
+
+    /**
+     * Stores item if key is present, or absent, an item that was not stored gives its chunks back
+     */
+    private boolean storeIf(String key, StoredVal item, boolean present) throws Exception {
+        boolean stored = false;
         try {
-            int nVal = Integer.parseInt(val);
-            String ooVal = storedVal.getVal();
-            int oVal = Integer.parseInt(ooVal.substring(0, ooVal.length() - 2));
-            tmpVal = oVal - nVal;
-        } catch (NumberFormatException e) {
-            throw new Exception("CLIENT_ERROR cannot increment or decrement non-numeric value\r\n");
+            stored = update(key, current -> (current != null) == present ? item : null) != null;
+            return stored;
+        } finally {
+            if (!stored) {
+                chunkStore.discard(item);
+            }
+        }
+    }
+
+    /**
+     * Stores the item of a cas command if the key still holds the version
+     * the client read with gets. The unique is compared in the mutation and
+     * the item committed with a compare-and-swap against the record it was
+     * compared with, a write in between makes the cas fail with EXISTS.
+     * Touch keeps the unique, the cas is retried after it.
+     */
+    private Reply doCas(Command msg) throws Exception {
+        StoredVal item = newItem(msg);
+        Reply[] result = new Reply[1];
+        boolean stored = false;
+        try {
+            stored = update(msg.getKey(), current -> {
+                if (current == null) {
+                    result[0] = Reply.NOT_FOUND;
+                    return null;
+                }
+                if (current.getCas() != msg.getCas()) {
+                    result[0] = Reply.EXISTS;
+                    return null;
+                }
+                return item;
+            }) != null;
+            return stored ? Reply.STORED : result[0];
+        } finally {
+            if (!stored) {
+                chunkStore.discard(item);
+            }
         }
-        String newVal = Integer.toString(tmpVal);
-        int newSize = newVal.length();
-        if (tmpVal < 0) {
-            newVal = "0";
-            newSize = storedVal.getSize();
+    }
+
+    /**
+     * Appends or prepends the data block to the current value. Chunked items
+     * are not appended to, they answer NOT_STORED. A cas unique, only sent by
+     * the binary protocol, makes it conditional on the version as cas does.
+     */
+    private Reply doConcat(Command msg, boolean append) throws Exception {
+        byte[] val = msg.getVal();
+        long cas = msg.getCas();
+        Reply[] result = new Reply[1];
+        StoredVal stored = update(msg.getKey(), current -> {
+            if (current == null) {
+                result[0] = cas != 0 ? Reply.NOT_FOUND : Reply.NOT_STORED;
+                return null;
+            }
+            if (cas != 0 && current.getCas() != cas) {
+                result[0] = Reply.EXISTS;
+                return null;
+            }
+            if (current.isChunked()) {
+                result[0] = Reply.NOT_STORED;
+                return null;
+            }
+            return new StoredVal(current.getFlags(), current.getTtl(), current.getSize() + val.length,
+                    append ? concat(current.getVal(), val) : concat(val, current.getVal()));
+        });
+        return stored != null ? Reply.STORED : result[0];
+    }
+
+    /**
+     * incr wraps around at 2^64, decr stops at 0, as memcached does
+     *
+     * @return the new value, null if the key does not exist
+     */
+    private Long doIncrDecr(String key, byte[] val, boolean incr) throws Exception {
+        long delta;
+        try {
+            delta = Long.parseUnsignedLong(new String(val, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            throw new Exception("CLIENT_ERROR invalid numeric delta argument\r\n");
         }
-        newVal += "\r\n";
 
-        doSet(key, newFlags, newTtl, newSize, newVal);
-        return true;
+        long[] result = new long[1];
+        StoredVal storedVal = update(key, current -> {
+            if (current == null) {
+                return null;
+            }
+            if (current.isChunked()) {
+                throw new Exception("CLIENT_ERROR cannot increment or decrement non-numeric value\r\n");
+            }
+            long oVal;
+            try {
+                oVal = Long.parseUnsignedLong(new String(current.getVal(), StandardCharsets.US_ASCII).trim());
+            } catch (NumberFormatException e) {
+                throw new Exception("CLIENT_ERROR cannot increment or decrement non-numeric value\r\n");
+            }
+
+            long nVal;
+            if (incr) {
+                nVal = oVal + delta;
+            } else {
+                nVal = Long.compareUnsigned(oVal, delta) < 0 ? 0 : oVal - delta;
+            }
+            result[0] = nVal;
+            byte[] newVal = Long.toUnsignedString(nVal).getBytes(StandardCharsets.US_ASCII);
+            return new StoredVal(current.getFlags(), current.getTtl(), newVal.length, newVal);
+        });
+
+        return storedVal == null ? null : result[0];
     }
 
-    private void doSet(String key, int flags, int ttl, int size, String val) throws Exception {
-        logger.info("command handler doSet key=" + key + " flags=" + flags + " ttl=" + ttl + " size=" + size + " val=" + val);
+    /**
+     * Binary incr and decr of a missing key store the initial value instead,
+     * if another write creates the key first the delta is applied to it
+     *
+     * @return the value of the key afterwards, null if it vanished again
+     */
+    private Long doIncrDecrInitial(Command msg, boolean incr) throws Exception {
+        byte[] initial = Long.toUnsignedString(msg.getInitial()).getBytes(StandardCharsets.US_ASCII);
+        if (doAdd(msg.getKey(), new StoredVal(0, absoluteTtl(msg.getTtl()), initial.length, initial))) {
+            return msg.getInitial();
+        }
+        return doIncrDecr(msg.getKey(), msg.getVal(), incr);
+    }
 
+    /**
+     * ttl up to 30 days is relative to now, larger values are absolute unix
+     * times, negative values expire the item immediately
+     */
+    private static int absoluteTtl(int ttl) {
+        if (ttl < 0) {
+            return 1;
+        }
         if (ttl <= 2592000 && ttl > 0) {
             int currTime = (int) (System.currentTimeMillis() / 1000);
             ttl += currTime;
         }
+        return ttl;
+    }
 
-        StoredVal storedVal = new StoredVal(flags, ttl, size, val);
-        logger.info("command handler doSet key=" + key + " flags=" + flags + " ttl=" + ttl + " size=" + size + " val=" + val);
+    /**
+     * @return seconds from now until the absolute expiry, at least 1, 0 if it never expires
+     */
+    private static long ttlSeconds(int expiry) {
+        if (expiry <= 0) {
+            return 0;
+        }
+        return Math.max(1, expiry - System.currentTimeMillis() / 1000);
+    }
 
-        String fullVal = storedVal.getFullVal();
-        logger.info("command handler put key=" + key + " fullVal=" + fullVal);
-        client.putData(key, fullVal);
+    private void doSet(String key, StoredVal storedVal) throws Exception {
+        storedVal.setCas(newCas());
+        negativeCache.beginWrite(key);
+        try {
+            putData(key, compression.deflate(storedVal), ttlSeconds(storedVal.getTtl()));
+        } catch (RuntimeException e) {
+            chunkStore.discard(storedVal);
+            throw e;
+        } finally {
+            // a failed put may still have gone through
+            negativeCache.endWrite(key, true);
+        }
+        nearCache.invalidate(key);
+        hotKeys.invalidate(key);
+    }
 
-        doAddKey(key);
+    /**
+     * Gives an existing item a new ttl, its value is written back unchanged
+     */
+    private boolean doTouch(String key, int ttl) throws Exception {
+        int expiry = absoluteTtl(ttl);
+        return update(key, current -> {
+            if (current == null) {
+                return null;
+            }
+            current.setTtl(expiry);
+            return current;
+        }) != null;
     }
 
-    private boolean doDelete(String key) throws Exception {
-        String oldVal = client.getData(key);
-        logger.info("command handler doDelete key=" + key);
+    /**
+     * Removes the record of key with a conditional delete of the record just
+     * read. When a concurrent write wins, the fresh record is read and the
+     * delete retried, at most cas.max-retries times, so the chunks released
+     * are always those of the record that was really removed. A cas unique,
+     * only sent by the binary protocol, keeps a different version of the
+     * item from being deleted.
+     *
+     * @return DELETED if a live item was deleted, EXISTS if its cas did not match
+     */
+    private Reply doDelete(String key, long cas) throws Exception {
+        int maxRetries = serverProperties.getCas().getMaxRetries();
+        for (int attempt = 0; attempt <= maxRetries; attempt++) {
+            casMetrics.recordAttempt();
+            long generation = keyspace.getGeneration();
+            long stamp = negativeCache.stamp(key);
+            String dataKey = keyspace.dataKey(key);
+            byte[] oldVal = client.getBytes(dataKey);
+            if (oldVal == null || oldVal.length == 0) {
+                nearCache.invalidate(key);
+                hotKeys.invalidate(key);
+                casMetrics.recordUpdate();
+                return Reply.NOT_FOUND;
+            }
+            boolean live = isValid(oldVal);
+            if (cas != 0 && live && new StoredVal(oldVal).getCas() != cas) {
+                casMetrics.recordUpdate();
+                return Reply.EXISTS;
+            }
+
+            if (client.deleteIf(dataKey, oldVal)) {
+                // only the delete that really removed the item may take it out of the filter
+                negativeCache.recordDelete(key, generation, stamp);
+                chunkStore.release(oldVal);
+                nearCache.invalidate(key);
+                hotKeys.invalidate(key);
+                casMetrics.recordUpdate();
+                return live ? Reply.DELETED : Reply.NOT_FOUND;
+            }
 
-        boolean isValid = isValid(oldVal);
-        if (!isValid) {
-            client.deleteData(key);
-            return false;
+            casMetrics.recordConflict();
+            backoff(attempt);
         }
 
-        client.deleteData(key);
-        return true;
+        casMetrics.recordExhausted();
+        throw new Exception("SERVER_ERROR too much contention on key\r\n");
     }
 
-    private boolean isValid(String val) {
-        if (val == null || val.length() == 0) {
+    private boolean isValid(byte[] val) {
+        if (val == null || val.length == 0) {
             return false;
         }
         StoredVal storedVal = new StoredVal(val);
@@ -341,32 +878,36 @@ public class CommandHandler extends SimpleChannelInboundHandler<Command> {
         return true;
     }
 
+    private void scheduleFlushAll(int delay) {
+        GlobalEventExecutor.INSTANCE.schedule(() -> commandExecutor.execute(() -> {
+            try {
+                doFlushAll();
+            } catch (Exception e) {
+                logger.error("delayed flush_all error", e);
+            }
+        }), delay, TimeUnit.SECONDS);
+    }
+
     private void doFlushAll() throws Exception {
-        String curKeyCnt = "currKey";
-        String curKeyNum = client.get(curKeyCnt);
-        if (curKeyNum == null || curKeyNum.length() == 0) {
-            return;
-        }
-        for (int i = 0; i <= Integer.parseInt(curKeyNum); i++) {
-            String keySuffix = "k" + i;
-            String curKey = client.get(keySuffix);
-            client.delete(keySuffix);
-            client.deleteData(curKey);
-        }
-        client.put(curKeyCnt, "0");
+        keyspace.flush();
     }
 
-    private void doAddKey(String addkey) throws Exception {
-        String curKeyCnt = "currKey";
-        String curKeyNum = client.get(curKeyCnt);
-        if (curKeyNum == null || curKeyNum.length() == 0) {
-            curKeyNum = "0";
-        }
-        String keySuffix = "k" + curKeyNum;
-        client.put(keySuffix, addkey);
+    private byte[] getData(String key) {
+        return client.getBytes(keyspace.dataKey(key));
+    }
 
-        int num = Integer.parseInt(curKeyNum);
-        num++;
-        client.put(curKeyCnt, String.valueOf(num));
+    /**
+     * Blind writes go through the batcher when it is enabled, the
+     * compare-and-swap updates always go straight to the backend, as do
+     * writes the backend has to expire itself
+     */
+    private void putData(String key, byte[] val, long ttlSeconds) {
+        if (ttlSeconds > 0 && client.supportsTtl()) {
+            client.putBytes(keyspace.dataKey(key), val, ttlSeconds);
+        } else if (writeBatcher.isEnabled()) {
+            writeBatcher.put(keyspace.dataKey(key), val).join();
+        } else {
+            client.putBytes(keyspace.dataKey(key), val);
+        }
     }
 }
@@ -0,0 +1,133 @@
+package com.pingcap.ticache;
+
+import com.github.luben.zstd.Zstd;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Compresses large values before they are written to the backend
+ *
+ * Values of at least compression.threshold bytes are compressed with
+ * compression.codec, lz4 or zstd, and kept that way only if it saves at
+ * least an eighth. The codec goes in the header of the stored record, the
+ * memcached flags of the item are left alone, so records of any codec
+ * are read whatever compression is configured at the time.
+ *
+ */
+@Component
+public class Compression {
+
+    private static Logger logger = LoggerFactory.getLogger(Compression.class);
+
+    public static final byte NONE = 0;
+
+    public static final byte LZ4 = 1;
+
+    public static final byte ZSTD = 2;
+
+    private static final LZ4Factory LZ4_FACTORY = LZ4Factory.fastestInstance();
+
+    private final Stats stats;
+
+    private final ServerProperties.CompressionProperties properties;
+
+    private final byte codec;
+
+    public Compression(Stats stats, ServerProperties serverProperties) {
+        this.stats = stats;
+        this.properties = serverProperties.getCompression();
+        this.codec = codec(properties.getCodec());
+        logger.info("compression codec=" + properties.getCodec() + " threshold=" + properties.getThreshold());
+    }
+
+    /**
+     * @return the record of item to write to the backend, with the value compressed if that pays off
+     */
+    public byte[] deflate(StoredVal item) {
+        int size = item.getSize();
+        if (codec == NONE || item.isCompressed() || item.isChunked() || size < properties.getThreshold()) {
+            return item.getFullVal();
+        }
+
+        long start = System.nanoTime();
+        byte[] val = item.getVal();
+        byte[] block;
+        int length;
+        if (codec == LZ4) {
+            LZ4Compressor compressor = LZ4_FACTORY.fastCompressor();
+            block = new byte[compressor.maxCompressedLength(size)];
+            length = compressor.compress(val, 0, size, block, 0, block.length);
+        } else {
+            block = new byte[(int) Zstd.compressBound(size)];
+            long n = Zstd.compressByteArray(block, 0, block.length, val, 0, size, properties.getZstdLevel());
+            if (Zstd.isError(n)) {
+                throw new IllegalStateException("zstd compression failed " + Zstd.getErrorName(n));
+            }
+            length = (int) n;
+        }
+        stats.count("compress_nanos", System.nanoTime() - start);
+
+        if (length > size - size / 8) {
+            stats.count("compress_skipped");
+            return item.getFullVal();
+        }
+        stats.count("compressed_items");
+        stats.count("compress_bytes_in", size);
+        stats.count("compress_bytes_out", length);
+        return item.getFullVal(codec, block, 0, length);
+    }
+
+    /**
+     * @return item with its value uncompressed
+     */
+    public StoredVal inflate(StoredVal item) {
+        if (!item.isCompressed()) {
+            return item;
+        }
+        long start = System.nanoTime();
+        StoredVal inflated = item.inflate();
+        stats.count("decompress_nanos", System.nanoTime() - start);
+        stats.count("decompressed_items");
+        return inflated;
+    }
+
+    static byte[] decompress(byte codec, byte[] block, int offset, int length, int size) {
+        byte[] val = new byte[size];
+        switch (codec) {
+            case LZ4:
+                try {
+                    if (LZ4_FACTORY.fastDecompressor().decompress(block, offset, val, 0, size) != length) {
+                        throw new IllegalArgumentException("corrupt lz4 value");
+                    }
+                } catch (LZ4Exception e) {
+                    throw new IllegalArgumentException("corrupt lz4 value", e);
+                }
+                return val;
+            case ZSTD:
+                long n = Zstd.decompressByteArray(val, 0, size, block, offset, length);
+                if (Zstd.isError(n) || n != size) {
+                    throw new IllegalArgumentException("corrupt zstd value");
+                }
+                return val;
+            default:
+                throw new IllegalArgumentException("unknown compression codec " + codec);
+        }
+    }
+
+    private static byte codec(String name) {
+        switch (name) {
+            case "none":
+                return NONE;
+            case "lz4":
+                return LZ4;
+            case "zstd":
+                return ZSTD;
+            default:
+                throw new IllegalArgumentException("unknown compression codec " + name);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.pingcap.ticache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counting Bloom filter with 4 bit counters, 16 to a long
+ *
+ * A counter that reaches 15 stays there, removing a key never takes it
+ * below what the other keys sharing it added. Errors are therefore only
+ * ever false positives. Safe for concurrent use.
+ *
+ */
+class CountingBloomFilter {
+
+    private static final int MAX = 15;
+
+    private final AtomicLongArray words;
+
+    private final long counters;
+
+    private final int hashes;
+
+    private final AtomicLong items = new AtomicLong();
+
+    /**
+     * @param expectedItems items the filter is sized for
+     * @param countersPerItem counters per expected item, 10 gives about 1% false positives
+     */
+    CountingBloomFilter(long expectedItems, int countersPerItem) {
+        long words = Math.max(4, (expectedItems * countersPerItem + 15) / 16);
+        if (words > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("filter too large " + expectedItems + " x " + countersPerItem);
+        }
+        this.words = new AtomicLongArray((int) words);
+        this.counters = words * 16;
+        this.hashes = Math.max(1, (int) Math.round(countersPerItem * Math.log(2)));
+    }
+
+    void add(String key) {
+        long h = hash(key);
+        for (int i = 0; i < hashes; i++) {
+            update(index(h, i), 1);
+        }
+        items.incrementAndGet();
+    }
+
+    /**
+     * Only call for a key that was added
+     */
+    void remove(String key) {
+        long h = hash(key);
+        for (int i = 0; i < hashes; i++) {
+            update(index(h, i), -1);
+        }
+        items.decrementAndGet();
+    }
+
+    boolean mightContain(String key) {
+        long h = hash(key);
+        for (int i = 0; i < hashes; i++) {
+            long index = index(h, i);
+            if (counter(words.get((int) (index >>> 4)), index) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the false positive rate expected at the current number of items
+     */
+    double expectedFpp() {
+        double n = Math.max(0, items.get());
+        return Math.pow(1 - Math.exp(-hashes * n / counters), hashes);
+    }
+
+    long getItems() {
+        return Math.max(0, items.get());
+    }
+
+    long getBytes() {
+        return words.length() * 8L;
+    }
+
+    private void update(long index, int delta) {
+        int word = (int) (index >>> 4);
+        int shift = (int) (index & 15) * 4;
+        while (true) {
+            long current = words.get(word);
+            int count = (int) (current >>> shift) & MAX;
+            // saturated counters stick, empty ones are not taken below zero
+            if (count == MAX || (delta < 0 && count == 0)) {
+                return;
+            }
+            long next = current + ((long) delta << shift);
+            if (words.compareAndSet(word, current, next)) {
+                return;
+            }
+        }
+    }
+
+    private static int counter(long word, long index) {
+        return (int) (word >>> ((index & 15) * 4)) & MAX;
+    }
+
+    private long index(long h, int i) {
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        return Math.floorMod(h1 + (long) i * h2, counters);
+    }
+
+    /**
+     * 64 bit FNV-1a over the chars of key
+     */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h ^ (h >>> 29);
+    }
+}
@@ -0,0 +1,39 @@
+package com.pingcap.ticache;
+
+import jdk.jfr.Category;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event of a command line being decoded
+ *
+ */
+@Name("com.pingcap.ticache.Decode")
+@Label("Decode")
+@Category("ticache")
+@StackTrace(false)
+public class DecodeEvent extends jdk.jfr.Event {
+
+    /**
+     * Checked before creating an event, so nothing is allocated while no recording wants it
+     */
+    static boolean enabled() {
+        return Type.TYPE.isEnabled();
+    }
+
+    /**
+     * registers the event type once the event class itself is initialized
+     */
+    private static class Type {
+
+        static final EventType TYPE = EventType.getEventType(DecodeEvent.class);
+    }
+
+    @Label("Command")
+    String cmd;
+
+    @Label("Line Bytes")
+    int bytes;
+}
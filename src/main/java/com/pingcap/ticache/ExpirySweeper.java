@@ -0,0 +1,155 @@
+package com.pingcap.ticache;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes expired items that are never read again
+ *
+ * Reads only drop an expired item when they come across it. For backends
+ * without native ttl the sweeper walks the current generation a page at a
+ * time and deletes the expired items it finds, each with a conditional
+ * delete, so an item rewritten since the scan survives. Pages are spaced
+ * out to stay below expiry.max-deletes-per-second; after a full pass it
+ * waits expiry.pass-interval seconds. Empty tombstones, left by backends
+ * without a conditional delete, are skipped: only a blind delete could
+ * remove them and it would race with sets. They go with their generation.
+ *
+ */
+@Component
+@ManagedResource(objectName = "com.pingcap.ticache:type=ExpirySweeper")
+public class ExpirySweeper {
+
+    private static Logger logger = LoggerFactory.getLogger(ExpirySweeper.class);
+
+    private final Client client;
+
+    private final Keyspace keyspace;
+
+    private final Stats stats;
+
+    private final ServerProperties.ExpiryProperties properties;
+
+    private final boolean enabled;
+
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("ticache-sweeper", true));
+
+    /**
+     * next key to scan, null at the start of a pass
+     */
+    private volatile String cursor;
+
+    private volatile long passes;
+
+    public ExpirySweeper(Client client, Keyspace keyspace, Stats stats, ServerProperties serverProperties) {
+        this.client = client;
+        this.keyspace = keyspace;
+        this.stats = stats;
+        this.properties = serverProperties.getExpiry();
+        this.enabled = properties.isSweep() && !client.supportsTtl();
+
+        if (enabled) {
+            scheduler.schedule(this::sweep, properties.getPageInterval(), TimeUnit.MILLISECONDS);
+        }
+        logger.info("expiry sweeper enabled=" + enabled + " nativeTtl=" + client.supportsTtl());
+    }
+
+    @ManagedAttribute
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @ManagedAttribute
+    public String getCursor() {
+        return cursor;
+    }
+
+    @ManagedAttribute
+    public long getPasses() {
+        return passes;
+    }
+
+    private void sweep() {
+        long delay = properties.getPageInterval();
+        try {
+            delay = sweepPage();
+        } catch (Exception e) {
+            logger.error("expiry sweep error", e);
+        } finally {
+            if (!scheduler.isShutdown()) {
+                scheduler.schedule(this::sweep, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * @return millis until the next page
+     */
+    private long sweepPage() {
+        String prefix = keyspace.dataPrefix();
+        String start = cursor;
+        if (start == null || !start.startsWith(prefix)) {
+            // a new pass, or flush_all moved the keyspace to a new generation
+            start = prefix;
+        }
+
+        int pageSize = properties.getPageSize();
+        Map<String, byte[]> page = client.scan(start, Keyspace.prefixEnd(prefix), pageSize);
+        int now = (int) (System.currentTimeMillis() / 1000);
+        int expired = 0;
+        long reclaimed = 0;
+        String last = null;
+        for (Map.Entry<String, byte[]> entry : page.entrySet()) {
+            last = entry.getKey();
+            byte[] value = entry.getValue();
+            if (value == null || value.length == 0 || !isExpired(value, now)) {
+                continue;
+            }
+            // only the value, the key may stay behind as a tombstone
+            if (client.deleteIf(last, value)) {
+                expired++;
+                reclaimed += value.length;
+            }
+        }
+
+        stats.count("sweep_scanned", page.size());
+        stats.count("sweep_expired", expired);
+        stats.count("sweep_reclaimed_bytes", reclaimed);
+
+        if (page.size() < pageSize) {
+            cursor = null;
+            passes++;
+            stats.count("sweep_passes");
+            return TimeUnit.SECONDS.toMillis(properties.getPassInterval());
+        }
+        // the smallest key after last
+        cursor = last + '\0';
+        return Math.max(properties.getPageInterval(), expired * 1000L / Math.max(1, properties.getMaxDeletesPerSecond()));
+    }
+
+    private static boolean isExpired(byte[] value, int now) {
+        int ttl;
+        try {
+            ttl = new StoredVal(value).getTtl();
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return ttl > 0 && ttl < now;
+    }
+
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,45 @@
+package com.pingcap.ticache;
+
+import jdk.jfr.Category;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event of a command being executed by the handler
+ *
+ */
+@Name("com.pingcap.ticache.Handle")
+@Label("Handle")
+@Category("ticache")
+@StackTrace(false)
+public class HandleEvent extends jdk.jfr.Event {
+
+    /**
+     * Checked before creating an event, so nothing is allocated while no recording wants it
+     */
+    static boolean enabled() {
+        return Type.TYPE.isEnabled();
+    }
+
+    /**
+     * registers the event type once the event class itself is initialized
+     */
+    private static class Type {
+
+        static final EventType TYPE = EventType.getEventType(HandleEvent.class);
+    }
+
+    @Label("Command")
+    String cmd;
+
+    @Label("Key")
+    String key;
+
+    @Label("Keys")
+    int keys;
+
+    @Label("Queued Nanos")
+    long queuedNanos;
+}
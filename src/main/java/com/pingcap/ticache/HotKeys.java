@@ -0,0 +1,395 @@
+package com.pingcap.ticache;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Finds the keys taking an outsized share of gets and keeps a local replica of them
+ *
+ * A sample of the requested keys feeds a Count-Min sketch, whose
+ * estimates rank a small Space-Saving style candidate set. Counts are
+ * halved every window, so a key that cools down drops out again. A key is
+ * hot once its share of the sampled gets reaches hot-keys.min-share.
+ *
+ * Counting takes no lock, it sits on the get path: sketch counters are
+ * atomic and candidates live in a concurrent map. Once the set is full a
+ * new key only gets in with an estimate above the smallest one, which is
+ * cached, and the one get that scans for the coldest candidate does so
+ * under a tryLock, the others move on. Counts are approximate either way.
+ *
+ * With hot-keys.replicate, hot keys are served from a replica refreshed
+ * ahead of reads by a background thread with one batch get every
+ * hot-keys.refresh-interval. Writes on this node replace the replica of a
+ * key with a tombstone that a refresh started before the write can not
+ * overwrite, so a node reads its own writes; writes on other nodes show
+ * up with the next refresh.
+ *
+ */
+@Component
+@ManagedResource(objectName = "com.pingcap.ticache:type=HotKeys")
+public class HotKeys {
+
+    private static Logger logger = LoggerFactory.getLogger(HotKeys.class);
+
+    private static final int DEPTH = 4;
+
+    private static final int[] SEEDS = {0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F};
+
+    private final Client client;
+
+    private final Keyspace keyspace;
+
+    private final Compression compression;
+
+    private final ServerProperties.HotKeysProperties properties;
+
+    /**
+     * DEPTH rows of width counters
+     */
+    private final AtomicIntegerArray sketch;
+
+    private final int width;
+
+    /**
+     * candidate keys and their estimated sampled gets in the current window
+     */
+    private final ConcurrentMap<String, Candidate> candidates = new ConcurrentHashMap<>();
+
+    /**
+     * smallest estimate in a full candidate set, a new key needs more to get in
+     */
+    private volatile int floor;
+
+    private final ReentrantLock evicting = new ReentrantLock();
+
+    private final LongAdder sampled = new LongAdder();
+
+    private long windowStart = System.currentTimeMillis();
+
+    private volatile List<Hot> hot = Collections.emptyList();
+
+    private volatile Set<String> hotSet = Collections.emptySet();
+
+    /**
+     * replicas by backend key, so a new keyspace generation never reads an old one
+     */
+    private final Map<String, Replica> replicas = new ConcurrentHashMap<>();
+
+    private final AtomicLong seq = new AtomicLong();
+
+    private final LongAdder replicaHits = new LongAdder();
+
+    private final LongAdder refreshes = new LongAdder();
+
+    private final ScheduledExecutorService scheduler;
+
+    public HotKeys(Client client, Keyspace keyspace, Compression compression, ServerProperties serverProperties) {
+        this.client = client;
+        this.keyspace = keyspace;
+        this.compression = compression;
+        this.properties = serverProperties.getHotKeys();
+        this.width = Integer.highestOneBit(Math.max(16, properties.getSketchWidth() - 1)) << 1;
+        this.sketch = new AtomicIntegerArray(DEPTH * width);
+
+        if (!properties.isEnabled()) {
+            scheduler = null;
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("ticache-hotkeys", true));
+        long interval = properties.getRefreshInterval();
+        scheduler.scheduleWithFixedDelay(this::tick, interval, interval, TimeUnit.MILLISECONDS);
+        logger.info("hot keys enabled replicate=" + properties.isReplicate() + " sampleRate="
+                + properties.getSampleRate() + " minShare=" + properties.getMinShare());
+    }
+
+    /**
+     * Counts a get of key, one in hot-keys.sample-rate gets is looked at
+     */
+    public void record(String key) {
+        if (scheduler == null) {
+            return;
+        }
+        int sampleRate = properties.getSampleRate();
+        if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return;
+        }
+        sampled.increment();
+        int estimate = increment(key);
+        Candidate candidate = candidates.get(key);
+        if (candidate != null) {
+            candidate.estimate = estimate;
+            return;
+        }
+        if (candidates.size() < properties.getCapacity()) {
+            // racing gets may take the set a few keys over capacity, the next eviction brings it back
+            candidates.putIfAbsent(key, new Candidate(estimate));
+            return;
+        }
+        if (estimate <= floor || !evicting.tryLock()) {
+            return;
+        }
+        try {
+            evict(key, estimate);
+        } finally {
+            evicting.unlock();
+        }
+    }
+
+    /**
+     * Replaces the coldest candidates by key if it is hotter and caches the new smallest estimate
+     */
+    private void evict(String key, int estimate) {
+        while (candidates.size() >= properties.getCapacity()) {
+            String coldest = null;
+            int min = Integer.MAX_VALUE;
+            for (Map.Entry<String, Candidate> candidate : candidates.entrySet()) {
+                if (candidate.getValue().estimate < min) {
+                    min = candidate.getValue().estimate;
+                    coldest = candidate.getKey();
+                }
+            }
+            if (coldest == null || estimate <= min) {
+                floor = min;
+                return;
+            }
+            candidates.remove(coldest);
+        }
+        candidates.put(key, new Candidate(estimate));
+        int min = Integer.MAX_VALUE;
+        for (Candidate candidate : candidates.values()) {
+            min = Math.min(min, candidate.estimate);
+        }
+        floor = min;
+    }
+
+    /**
+     * @return the replica of a hot key, null if the key has to be read from the backend
+     */
+    public StoredVal get(String key) {
+        if (replicas.isEmpty()) {
+            return null;
+        }
+        Replica replica = replicas.get(keyspace.dataKey(key));
+        if (replica == null || replica.item == null) {
+            return null;
+        }
+        int ttl = replica.item.getTtl();
+        if (ttl > 0 && ttl < System.currentTimeMillis() / 1000) {
+            return null;
+        }
+        replicaHits.increment();
+        return replica.item;
+    }
+
+    /**
+     * Called after every write of key on this node
+     */
+    public void invalidate(String key) {
+        if (hotSet.contains(key)) {
+            replicas.put(keyspace.dataKey(key), new Replica(null, seq.incrementAndGet()));
+        }
+    }
+
+    /**
+     * @return the hot keys, hottest first
+     */
+    public List<Hot> hotKeys() {
+        return hot;
+    }
+
+    private void tick() {
+        try {
+            long now = System.currentTimeMillis();
+            if (now - windowStart >= properties.getWindow()) {
+                rank();
+                windowStart = now;
+            }
+            if (properties.isReplicate()) {
+                refresh();
+            }
+        } catch (Exception e) {
+            logger.error("hot keys refresh error", e);
+        }
+    }
+
+    /**
+     * Picks the hot keys of the window that just ended and halves all counts,
+     * gets keep counting meanwhile
+     */
+    void rank() {
+        List<Hot> ranked = new ArrayList<>();
+        long total = sampled.sum();
+        long threshold = Math.max(properties.getMinCount(), (long) Math.ceil(total * properties.getMinShare()));
+        for (Map.Entry<String, Candidate> candidate : candidates.entrySet()) {
+            int estimate = candidate.getValue().estimate;
+            if (estimate >= threshold) {
+                ranked.add(new Hot(candidate.getKey(), (long) estimate * properties.getSampleRate(),
+                        total == 0 ? 0 : (double) estimate / total));
+            }
+        }
+        ranked.sort((a, b) -> Long.compare(b.estimate, a.estimate));
+        if (ranked.size() > properties.getMaxPinned()) {
+            ranked = new ArrayList<>(ranked.subList(0, properties.getMaxPinned()));
+        }
+
+        Set<String> keys = new HashSet<>();
+        for (Hot h : ranked) {
+            keys.add(h.key);
+        }
+        hot = Collections.unmodifiableList(ranked);
+        hotSet = keys;
+
+        for (int i = 0; i < sketch.length(); i++) {
+            sketch.getAndUpdate(i, count -> count >>> 1);
+        }
+        Iterator<Candidate> it = candidates.values().iterator();
+        while (it.hasNext()) {
+            Candidate candidate = it.next();
+            candidate.estimate >>>= 1;
+            if (candidate.estimate == 0) {
+                it.remove();
+            }
+        }
+        floor = 0;
+        sampled.add(-(total - (total >>> 1)));
+    }
+
+    /**
+     * Reads every hot key again and drops the replicas of keys that cooled down
+     */
+    private void refresh() {
+        Set<String> keys = hotSet;
+        String prefix = keyspace.dataPrefix();
+        replicas.keySet().removeIf(dataKey -> !dataKey.startsWith(prefix)
+                || !keys.contains(dataKey.substring(prefix.length())));
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        long start = seq.get();
+        Map<String, byte[]> values = client.batchGet(prefix, new ArrayList<>(keys));
+        for (String key : keys) {
+            byte[] value = values.get(key);
+            StoredVal item = value == null || value.length == 0 || value.length > properties.getMaxValueBytes()
+                    ? null : compression.inflate(new StoredVal(value));
+            replicas.compute(prefix + key, (dataKey, current) ->
+                    current != null && current.seq > start ? current : new Replica(item, start));
+        }
+        refreshes.increment();
+    }
+
+    private int increment(String key) {
+        int h = key.hashCode();
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = i * width + (((h * SEEDS[i]) >>> 16 ^ (h * SEEDS[i])) & (width - 1));
+            int count = sketch.updateAndGet(index, c -> c < Integer.MAX_VALUE ? c + 1 : c);
+            min = Math.min(min, count);
+        }
+        return min;
+    }
+
+    @ManagedAttribute
+    public int getHotKeyCount() {
+        return hot.size();
+    }
+
+    @ManagedAttribute
+    public int getReplicaItems() {
+        int items = 0;
+        for (Replica replica : replicas.values()) {
+            if (replica.item != null) {
+                items++;
+            }
+        }
+        return items;
+    }
+
+    @ManagedAttribute
+    public long getReplicaHits() {
+        return replicaHits.sum();
+    }
+
+    @ManagedAttribute
+    public long getRefreshes() {
+        return refreshes.sum();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * A hot key with its estimated gets per window and share of all gets
+     *
+     */
+    public static final class Hot {
+
+        public final String key;
+
+        public final long estimate;
+
+        public final double share;
+
+        Hot(String key, long estimate, double share) {
+            this.key = key;
+            this.estimate = estimate;
+            this.share = share;
+        }
+    }
+
+    /**
+     * A candidate key, its estimate is written by gets and halved by rank without a lock
+     *
+     */
+    private static final class Candidate {
+
+        volatile int estimate;
+
+        Candidate(int estimate) {
+            this.estimate = estimate;
+        }
+    }
+
+    /**
+     * A replicated item, null for a key written since its last refresh
+     *
+     */
+    private static final class Replica {
+
+        final StoredVal item;
+
+        final long seq;
+
+        Replica(StoredVal item, long seq) {
+            this.item = item;
+            this.seq = seq;
+        }
+    }
+}
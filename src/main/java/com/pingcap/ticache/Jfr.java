@@ -0,0 +1,30 @@
+package com.pingcap.ticache;
+
+/**
+ * Whether the flight recorder event API is present
+ *
+ * It only exists on JDK 8u262 and later, the event classes must not be
+ * touched otherwise. Code creating events checks AVAILABLE and then the
+ * event's own enabled(), so while no recording asks for an event it costs
+ * two branches and no allocation.
+ *
+ */
+final class Jfr {
+
+    static final boolean AVAILABLE = isAvailable();
+
+    private Jfr() {
+    }
+
+    private static boolean isAvailable() {
+        if (!Boolean.parseBoolean(System.getProperty("ticache.jfr", "true"))) {
+            return false;
+        }
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.pingcap.ticache;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maps memcache keys to backend keys under the current generation
+ *
+ * Every item lives under a prefix naming the generation it was written
+ * in, generation 0 keeps the original "d_" prefix so existing items stay
+ * readable. The chunks of large values have a prefix per generation of
+ * their own. flush_all just bumps the generation stored in the backend;
+ * items of older generations are never addressed again and are removed
+ * afterwards by range deletes from a background thread.
+ *
+ * Other nodes pick up a new generation on their next refresh.
+ *
+ */
+@Component
+@ManagedResource(objectName = "com.pingcap.ticache:type=Keyspace")
+public class Keyspace {
+
+    private static Logger logger = LoggerFactory.getLogger(Keyspace.class);
+
+    static final String GENERATION_KEY = "m_generation";
+
+    static final String RECLAIMED_KEY = "m_reclaimed";
+
+    /**
+     * key index written by versions before generations, reclaimed with generation 0
+     */
+    private static final String LEGACY_INDEX_PREFIX = "k";
+
+    private static final String LEGACY_INDEX_COUNTER = "currKey";
+
+    private final Client client;
+
+    private final NearCache nearCache;
+
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("ticache-keyspace", true));
+
+    private volatile long generation;
+
+    public Keyspace(Client client, NearCache nearCache, ServerProperties serverProperties) {
+        this.client = client;
+        this.nearCache = nearCache;
+        this.generation = readLong(GENERATION_KEY);
+
+        long interval = serverProperties.getKeyspace().getRefreshInterval();
+        scheduler.scheduleWithFixedDelay(this::refresh, interval, interval, TimeUnit.MILLISECONDS);
+        logger.info("keyspace generation=" + generation);
+    }
+
+    @ManagedAttribute
+    public long getGeneration() {
+        return generation;
+    }
+
+    public String dataPrefix() {
+        return prefix(generation);
+    }
+
+    public String dataKey(String key) {
+        return prefix(generation) + key;
+    }
+
+    /**
+     * Makes every item written so far unreachable, the old generation is reclaimed in the background
+     */
+    public synchronized void flush() {
+        long next;
+        while (true) {
+            byte[] stored = client.getBytes(GENERATION_KEY);
+            long current = stored == null ? 0 : Long.parseLong(new String(stored, StandardCharsets.UTF_8));
+            next = Math.max(current, generation) + 1;
+            // concurrent flushes on other nodes must each move the generation forward
+            if (client.compareAndSet(GENERATION_KEY, stored, Long.toString(next).getBytes(StandardCharsets.UTF_8))) {
+                break;
+            }
+        }
+        generation = next;
+        nearCache.invalidateAll();
+        logger.info("keyspace flushed generation=" + next);
+
+        scheduler.execute(this::reclaim);
+    }
+
+    private void refresh() {
+        try {
+            long stored = readLong(GENERATION_KEY);
+            if (stored > generation) {
+                synchronized (this) {
+                    if (stored > generation) {
+                        generation = stored;
+                        nearCache.invalidateAll();
+                        logger.info("keyspace generation changed generation=" + stored);
+                    }
+                }
+                reclaim();
+            }
+        } catch (Exception e) {
+            logger.error("keyspace refresh error", e);
+        }
+    }
+
+    /**
+     * Range deletes every generation before the current one that is not reclaimed yet.
+     * Nodes may race on this, deleting a range twice is harmless.
+     */
+    private void reclaim() {
+        long current = generation;
+        String reclaimed = client.get(RECLAIMED_KEY);
+        long next = reclaimed == null || reclaimed.isEmpty() ? 0 : Long.parseLong(reclaimed) + 1;
+        for (long gen = next; gen < current; gen++) {
+            String prefix = prefix(gen);
+            client.deleteRange(prefix, prefixEnd(prefix));
+            String chunkPrefix = chunkPrefix(gen);
+            client.deleteRange(chunkPrefix, prefixEnd(chunkPrefix));
+            if (gen == 0) {
+                client.deleteRange(LEGACY_INDEX_PREFIX, prefixEnd(LEGACY_INDEX_PREFIX));
+                client.delete(LEGACY_INDEX_COUNTER);
+            }
+            client.put(RECLAIMED_KEY, Long.toString(gen));
+            logger.info("keyspace reclaimed generation=" + gen);
+        }
+    }
+
+    private long readLong(String key) {
+        String val = client.get(key);
+        return val == null || val.isEmpty() ? 0 : Long.parseLong(val);
+    }
+
+    static String prefix(long generation) {
+        return generation == 0 ? "d_" : "d" + generation + "_";
+    }
+
+    static String chunkPrefix(long generation) {
+        return generation == 0 ? "c_" : "c" + generation + "_";
+    }
+
+    /**
+     * @return the smallest key greater than every key starting with prefix
+     */
+    static String prefixEnd(String prefix) {
+        char last = prefix.charAt(prefix.length() - 1);
+        return prefix.substring(0, prefix.length() - 1) + (char) (last + 1);
+    }
+
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,490 @@
+package com.pingcap.ticache;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * Embedded backend keeping its data in memory mapped log files under a
+ * local directory
+ *
+ * Every write appends a record to the head segment and points the in
+ * memory index at it, a delete appends a tombstone. Once the head is full
+ * a new segment is started. Segments with less than half of their bytes
+ * still live are compacted in the background: live records are appended
+ * again and the file is removed. On startup the segments are replayed in
+ * order to rebuild the index, a torn record at the tail ends the replay.
+ *
+ * A record is
+ *
+ * keyLen int
+ * valLen int, -1 for a tombstone
+ * key
+ * value
+ * crc32 int, of key and value
+ *
+ * Reads go straight to the mapped files without locking, writes are
+ * serialized. Operations complete before they return.
+ *
+ */
+public class LocalClient implements Client {
+
+    private static Logger logger = LoggerFactory.getLogger(LocalClient.class);
+
+    private static final int RECORD_OVERHEAD = 12;
+
+    private static final int TOMBSTONE = -1;
+
+    private static final String SUFFIX = ".log";
+
+    private static class Segment {
+
+        final long id;
+
+        final File file;
+
+        final MappedByteBuffer buffer;
+
+        /**
+         * end of the last record
+         */
+        int position;
+
+        /**
+         * bytes of records the index still points at
+         */
+        long liveBytes;
+
+        Segment(long id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private static class Location {
+
+        final Segment segment;
+
+        final int offset;
+
+        final int length;
+
+        final int valOffset;
+
+        final int valLength;
+
+        Location(Segment segment, int offset, int length, int valOffset, int valLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.valOffset = valOffset;
+            this.valLength = valLength;
+        }
+    }
+
+    private final File dir;
+
+    private final int segmentBytes;
+
+    private final ConcurrentNavigableMap<String, Location> index = new ConcurrentSkipListMap<>();
+
+    /**
+     * guarded by this, as is head and every segment's position and liveBytes
+     */
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+
+    private Segment head;
+
+    private final ExecutorService compactor =
+            Executors.newSingleThreadExecutor(new DefaultThreadFactory("ticache-local-compact", true));
+
+    public LocalClient(String dataDir, int segmentBytes) throws IOException {
+        this.dir = new File(dataDir);
+        this.segmentBytes = segmentBytes;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create data dir " + dir.getAbsolutePath());
+        }
+
+        synchronized (this) {
+            recover();
+            if (head == null) {
+                head = createSegment(0, segmentBytes);
+            }
+        }
+        compactor.execute(this::compact);
+
+        logger.info("init LocalClient dir=" + dir.getAbsolutePath() + " segments=" + segments.size()
+                + " keys=" + index.size());
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getAsync(String key) {
+        return complete(() -> read(index.get(key)));
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(String key, byte[] value) {
+        return complete(() -> {
+            synchronized (this) {
+                write(key, value);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String key) {
+        return complete(() -> {
+            synchronized (this) {
+                remove(key);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Map<String, byte[]>> batchGetAsync(String prefix, List<String> keys) {
+        return complete(() -> {
+            Map<String, byte[]> values = new HashMap<>();
+            for (String key : keys) {
+                byte[] value = read(index.get(prefix + key));
+                if (value != null && value.length > 0) {
+                    values.put(key, value);
+                }
+            }
+            return values;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> batchPutAsync(Map<String, byte[]> pairs) {
+        return complete(() -> {
+            synchronized (this) {
+                for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+                    write(pair.getKey(), pair.getValue());
+                }
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Map<String, byte[]>> scanAsync(String startKey, String endKey, int limit) {
+        return complete(() -> {
+            Map<String, byte[]> values = new LinkedHashMap<>();
+            for (Map.Entry<String, Location> entry : index.subMap(startKey, endKey).entrySet()) {
+                if (values.size() >= limit) {
+                    break;
+                }
+                values.put(entry.getKey(), read(entry.getValue()));
+            }
+            return values;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> compareAndSetAsync(String key, byte[] expected, byte[] value) {
+        return complete(() -> {
+            synchronized (this) {
+                if (!Arrays.equals(read(index.get(key)), expected)) {
+                    return false;
+                }
+                write(key, value);
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteIfAsync(String key, byte[] expected) {
+        return complete(() -> {
+            synchronized (this) {
+                byte[] current = read(index.get(key));
+                if (current == null || !Arrays.equals(current, expected)) {
+                    return false;
+                }
+                remove(key);
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteRangeAsync(String startKey, String endKey) {
+        return complete(() -> {
+            synchronized (this) {
+                for (String key : new ArrayList<>(index.subMap(startKey, endKey).keySet())) {
+                    remove(key);
+                }
+            }
+            return null;
+        });
+    }
+
+    private static <T> CompletableFuture<T> complete(Callable<T> body) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            future.complete(body.call());
+        } catch (Exception e) {
+            logger.error("local client error", e);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private static byte[] read(Location location) {
+        if (location == null) {
+            return null;
+        }
+        byte[] value = new byte[location.valLength];
+        ByteBuffer buffer = location.segment.buffer.duplicate();
+        buffer.position(location.valOffset);
+        buffer.get(value);
+        return value;
+    }
+
+    private void write(String key, byte[] value) throws IOException {
+        Location location = append(key, value);
+        location.segment.liveBytes += location.length;
+        release(index.put(key, location));
+    }
+
+    private void remove(String key) throws IOException {
+        Location old = index.remove(key);
+        if (old != null) {
+            append(key, null);
+            release(old);
+        }
+    }
+
+    private static void release(Location old) {
+        if (old != null) {
+            old.segment.liveBytes -= old.length;
+        }
+    }
+
+    /**
+     * Appends a record to the head segment, starting a new one if it does not fit
+     */
+    private Location append(String key, byte[] value) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int valLength = value == null ? 0 : value.length;
+        int length = RECORD_OVERHEAD + keyBytes.length + valLength;
+        if (head.position + length > head.buffer.capacity()) {
+            head = createSegment(head.id + 1, Math.max(segmentBytes, length));
+            compactor.execute(this::compact);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(keyBytes);
+        if (value != null) {
+            crc.update(value);
+        }
+
+        int offset = head.position;
+        ByteBuffer buffer = head.buffer.duplicate();
+        buffer.position(offset);
+        buffer.putInt(keyBytes.length);
+        buffer.putInt(value == null ? TOMBSTONE : valLength);
+        buffer.put(keyBytes);
+        if (value != null) {
+            buffer.put(value);
+        }
+        buffer.putInt((int) crc.getValue());
+        head.position += length;
+
+        return new Location(head, offset, length, offset + 8 + keyBytes.length, valLength);
+    }
+
+    private Segment createSegment(long id, int size) throws IOException {
+        File file = new File(dir, String.format("%016d%s", id, SUFFIX));
+        Segment segment = new Segment(id, file, map(file, size));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, raf.length()));
+        }
+    }
+
+    /**
+     * Replays every segment in order, the last one becomes the head
+     */
+    private void recover() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparing(File::getName));
+        for (File file : files) {
+            long id = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+            Segment segment = new Segment(id, file, map(file, file.length()));
+            segments.put(id, segment);
+            replay(segment);
+            head = segment;
+        }
+    }
+
+    private void replay(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int pos = 0;
+        while (pos + RECORD_OVERHEAD <= buffer.capacity()) {
+            int keyLength = buffer.getInt(pos);
+            int valLength = buffer.getInt(pos + 4);
+            if (keyLength <= 0) {
+                break;
+            }
+            long length = (long) RECORD_OVERHEAD + keyLength + Math.max(valLength, 0);
+            if (valLength < TOMBSTONE || pos + length > buffer.capacity()) {
+                logger.warn("local client torn record segment=" + segment.file + " offset=" + pos);
+                zero(segment.buffer, pos);
+                break;
+            }
+
+            byte[] keyBytes = new byte[keyLength];
+            buffer.position(pos + 8);
+            buffer.get(keyBytes);
+            CRC32 crc = new CRC32();
+            crc.update(keyBytes);
+            int valOffset = buffer.position();
+            if (valLength > 0) {
+                byte[] value = new byte[valLength];
+                buffer.get(value);
+                crc.update(value);
+            }
+            if (buffer.getInt() != (int) crc.getValue()) {
+                logger.warn("local client checksum mismatch segment=" + segment.file + " offset=" + pos);
+                zero(segment.buffer, pos);
+                break;
+            }
+
+            String key = new String(keyBytes, StandardCharsets.UTF_8);
+            if (valLength == TOMBSTONE) {
+                release(index.remove(key));
+            } else {
+                Location location = new Location(segment, pos, (int) length, valOffset, valLength);
+                segment.liveBytes += length;
+                release(index.put(key, location));
+            }
+            pos += length;
+        }
+        segment.position = pos;
+    }
+
+    /**
+     * Clears everything after a torn record, so later appends are never followed by its remains
+     */
+    private static void zero(MappedByteBuffer buffer, int from) {
+        for (int i = from; i < buffer.capacity(); i++) {
+            buffer.put(i, (byte) 0);
+        }
+    }
+
+    /**
+     * Rewrites the live records of every sealed segment that is mostly
+     * garbage and removes its file. A tombstone is carried over while an
+     * older segment could still hold a value it hides.
+     */
+    private void compact() {
+        List<Segment> victims = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                if (segment != head && segment.liveBytes * 2 < segment.position) {
+                    victims.add(segment);
+                }
+            }
+        }
+
+        for (Segment victim : victims) {
+            try {
+                compact(victim);
+            } catch (Exception e) {
+                logger.error("local client compaction error segment=" + victim.file, e);
+                return;
+            }
+        }
+    }
+
+    private void compact(Segment victim) throws IOException {
+        ByteBuffer buffer = victim.buffer.duplicate();
+        int pos = 0;
+        while (pos < victim.position) {
+            int keyLength = buffer.getInt(pos);
+            int valLength = buffer.getInt(pos + 4);
+            byte[] keyBytes = new byte[keyLength];
+            buffer.position(pos + 8);
+            buffer.get(keyBytes);
+            String key = new String(keyBytes, StandardCharsets.UTF_8);
+
+            synchronized (this) {
+                Location location = index.get(key);
+                if (valLength != TOMBSTONE) {
+                    if (location != null && location.segment == victim && location.offset == pos) {
+                        write(key, read(location));
+                    }
+                } else if (location == null && segments.firstKey() < victim.id) {
+                    append(key, null);
+                }
+            }
+            pos += RECORD_OVERHEAD + keyLength + Math.max(valLength, 0);
+        }
+
+        synchronized (this) {
+            segments.remove(victim.id);
+        }
+        // readers still holding a location in the victim keep its mapping alive
+        if (!victim.file.delete()) {
+            logger.warn("local client cannot remove segment=" + victim.file);
+        }
+        logger.info("local client compacted segment=" + victim.file);
+    }
+
+    /**
+     * @return the segment holding the key's current record
+     */
+    @Override
+    public String region(String key) {
+        Location location = index.get(key);
+        return location == null ? "-" : "segment " + location.segment.id;
+    }
+
+    @Override
+    public void close() {
+        compactor.shutdownNow();
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                segment.buffer.force();
+            }
+        }
+    }
+}
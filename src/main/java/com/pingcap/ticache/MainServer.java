@@ -12,10 +12,15 @@ import org.springframework.stereotype.Component;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Main Server
  *
+ * Binds one server channel per acceptor of the transport, each registers
+ * on its own boss event loop.
+ *
  */
 @Getter
 @Setter
@@ -27,22 +32,23 @@ public class MainServer {
 
     private final InetSocketAddress tcpPort;
 
-    private Channel serverChannel;
+    private final Transport transport;
+
+    private final List<Channel> serverChannels = new ArrayList<>();
 
     public void start() throws Exception {
-        serverChannel = serverBootstrap.bind(tcpPort)
-                .sync()
-                .channel()
-                .closeFuture()
-                .sync()
-                .channel();
+        for (int i = 0; i < transport.acceptors(); i++) {
+            serverChannels.add(serverBootstrap.bind(tcpPort).sync().channel());
+        }
+        for (Channel serverChannel : serverChannels) {
+            serverChannel.closeFuture().sync();
+        }
     }
 
     @PreDestroy
     public void stop() {
-        if (serverChannel != null) {
+        for (Channel serverChannel : serverChannels) {
             serverChannel.close();
-            serverChannel.parent().close();
         }
     }
 }
@@ -0,0 +1,121 @@
+package com.pingcap.ticache;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Times every operation of a backend, from the call until its future completes,
+ * into Stats, the trace of the calling command and flight recorder events
+ *
+ */
+public class MeasuredClient implements Client {
+
+    private final Client client;
+
+    private final Stats stats;
+
+    public MeasuredClient(Client client, Stats stats) {
+        this.client = client;
+        this.stats = stats;
+    }
+
+    private <T> CompletableFuture<T> measure(String op, String key, Supplier<CompletableFuture<T>> call) {
+        RequestTrace trace = RequestTrace.current();
+        BackendEvent event = Jfr.AVAILABLE && BackendEvent.enabled() ? new BackendEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        long start = System.nanoTime();
+        return call.get().whenComplete((result, e) -> {
+            long nanos = System.nanoTime() - start;
+            stats.recordBackend(op, nanos);
+            if (e != null) {
+                stats.count("backend_errors");
+            }
+            if (trace != null) {
+                trace.recordBackend(key, nanos);
+            }
+            if (event != null) {
+                event.end();
+                event.op = op;
+                event.key = key;
+                event.failed = e != null;
+                event.commit();
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getAsync(String key) {
+        return measure("get", key, () -> client.getAsync(key));
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(String key, byte[] value) {
+        return measure("put", key, () -> client.putAsync(key, value));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String key) {
+        return measure("delete", key, () -> client.deleteAsync(key));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, byte[]>> batchGetAsync(String prefix, List<String> keys) {
+        return measure("batch_get", keys.isEmpty() ? null : prefix + keys.get(0),
+                () -> client.batchGetAsync(prefix, keys));
+    }
+
+    @Override
+    public CompletableFuture<Void> batchPutAsync(Map<String, byte[]> pairs) {
+        return measure("batch_put", pairs.isEmpty() ? null : pairs.keySet().iterator().next(),
+                () -> client.batchPutAsync(pairs));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, byte[]>> scanAsync(String startKey, String endKey, int limit) {
+        return measure("scan", startKey, () -> client.scanAsync(startKey, endKey, limit));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> compareAndSetAsync(String key, byte[] expected, byte[] value) {
+        return measure("cas", key, () -> client.compareAndSetAsync(key, expected, value));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteRangeAsync(String startKey, String endKey) {
+        return measure("delete_range", startKey, () -> client.deleteRangeAsync(startKey, endKey));
+    }
+
+    @Override
+    public boolean supportsTtl() {
+        return client.supportsTtl();
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(String key, byte[] value, long ttlSeconds) {
+        return measure("put", key, () -> client.putAsync(key, value, ttlSeconds));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> compareAndSetAsync(String key, byte[] expected, byte[] value, long ttlSeconds) {
+        return measure("cas", key, () -> client.compareAndSetAsync(key, expected, value, ttlSeconds));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteIfAsync(String key, byte[] expected) {
+        return measure("delete_if", key, () -> client.deleteIfAsync(key, expected));
+    }
+
+    @Override
+    public String region(String key) {
+        return client.region(key);
+    }
+
+    @Override
+    public void close() throws Exception {
+        client.close();
+    }
+}
@@ -0,0 +1,113 @@
+package com.pingcap.ticache;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Backend held in process memory, for running and load testing the
+ * server without a tikv cluster. Nothing survives a restart.
+ *
+ * Operations complete before they return.
+ *
+ */
+public class MemoryClient implements Client {
+
+    private final ConcurrentNavigableMap<String, byte[]> data = new ConcurrentSkipListMap<>();
+
+    @Override
+    public CompletableFuture<byte[]> getAsync(String key) {
+        return CompletableFuture.completedFuture(data.get(key));
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(String key, byte[] value) {
+        data.put(key, value);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String key) {
+        data.remove(key);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, byte[]>> batchGetAsync(String prefix, List<String> keys) {
+        Map<String, byte[]> values = new HashMap<>();
+        for (String key : keys) {
+            byte[] value = data.get(prefix + key);
+            if (value != null && value.length > 0) {
+                values.put(key, value);
+            }
+        }
+        return CompletableFuture.completedFuture(values);
+    }
+
+    @Override
+    public CompletableFuture<Void> batchPutAsync(Map<String, byte[]> pairs) {
+        data.putAll(pairs);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, byte[]>> scanAsync(String startKey, String endKey, int limit) {
+        Map<String, byte[]> values = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : data.subMap(startKey, endKey).entrySet()) {
+            if (values.size() >= limit) {
+                break;
+            }
+            values.put(entry.getKey(), entry.getValue());
+        }
+        return CompletableFuture.completedFuture(values);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> compareAndSetAsync(String key, byte[] expected, byte[] value) {
+        while (true) {
+            byte[] current = data.get(key);
+            if (!Arrays.equals(current, expected)) {
+                return CompletableFuture.completedFuture(false);
+            }
+            // arrays compare by identity here, so this only succeeds if current is still the mapped value
+            boolean swapped = current == null ? data.putIfAbsent(key, value) == null : data.replace(key, current, value);
+            if (swapped) {
+                return CompletableFuture.completedFuture(true);
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteIfAsync(String key, byte[] expected) {
+        while (true) {
+            byte[] current = data.get(key);
+            if (current == null || !Arrays.equals(current, expected)) {
+                return CompletableFuture.completedFuture(false);
+            }
+            if (data.remove(key, current)) {
+                return CompletableFuture.completedFuture(true);
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteRangeAsync(String startKey, String endKey) {
+        data.subMap(startKey, endKey).clear();
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public String region(String key) {
+        return "memory";
+    }
+
+    @Override
+    public void close() {
+        data.clear();
+    }
+}
@@ -0,0 +1,185 @@
+package com.pingcap.ticache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Policy;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-process L1 cache in front of Client
+ *
+ * Bounded by the total weight of keys and values, evicted by Caffeine's
+ * W-TinyLFU policy and expired no later than the ttl of the stored value.
+ *
+ * A reader takes a stamp before going to the backend and only populates
+ * the cache if no write invalidated the key in the meantime, so a slow
+ * read can not resurrect a value that has been overwritten.
+ *
+ */
+@Component
+@ManagedResource(objectName = "com.pingcap.ticache:type=NearCache")
+public class NearCache {
+
+    private static Logger logger = LoggerFactory.getLogger(NearCache.class);
+
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private static final int STRIPES = 1024;
+
+    private final Cache<String, StoredVal> cache;
+
+    private final AtomicLongArray stamps = new AtomicLongArray(STRIPES);
+
+    public NearCache(ServerProperties serverProperties) {
+        ServerProperties.NearCacheProperties props = serverProperties.getNearCache();
+        if (!props.isEnabled()) {
+            cache = null;
+            return;
+        }
+
+        long maxTtlNanos = TimeUnit.SECONDS.toNanos(props.getMaxTtl());
+        cache = Caffeine.newBuilder()
+                .maximumWeight(props.getMaxBytes())
+                .weigher((String key, StoredVal val) -> weigh(key, val))
+                .expireAfter(new Expiry<String, StoredVal>() {
+                    @Override
+                    public long expireAfterCreate(String key, StoredVal val, long currentTime) {
+                        return expireNanos(val, maxTtlNanos);
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, StoredVal val, long currentTime, long currentDuration) {
+                        return expireNanos(val, maxTtlNanos);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, StoredVal val, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+
+        logger.info("near cache enabled maxBytes=" + props.getMaxBytes() + " maxTtl=" + props.getMaxTtl());
+    }
+
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    public StoredVal get(String key) {
+        if (cache == null) {
+            return null;
+        }
+        return cache.getIfPresent(key);
+    }
+
+    /**
+     * Taken before reading key from the backend, passed back to put
+     */
+    public long stamp(String key) {
+        return stamps.get(stripe(key));
+    }
+
+    public void put(String key, StoredVal val, long stamp) {
+        if (cache == null || expireNanos(val, Long.MAX_VALUE) <= 0) {
+            return;
+        }
+        int stripe = stripe(key);
+        if (stamps.get(stripe) != stamp) {
+            return;
+        }
+        cache.put(key, val);
+        // an invalidate may have slipped in between the check and the put
+        if (stamps.get(stripe) != stamp) {
+            cache.invalidate(key);
+        }
+    }
+
+    public void invalidate(String key) {
+        if (cache == null) {
+            return;
+        }
+        stamps.incrementAndGet(stripe(key));
+        cache.invalidate(key);
+    }
+
+    public void invalidateAll() {
+        if (cache == null) {
+            return;
+        }
+        for (int i = 0; i < STRIPES; i++) {
+            stamps.incrementAndGet(i);
+        }
+        cache.invalidateAll();
+    }
+
+    @ManagedAttribute
+    public long getHitCount() {
+        return cache == null ? 0 : cache.stats().hitCount();
+    }
+
+    @ManagedAttribute
+    public long getMissCount() {
+        return cache == null ? 0 : cache.stats().missCount();
+    }
+
+    @ManagedAttribute
+    public double getHitRate() {
+        return cache == null ? 0 : cache.stats().hitRate();
+    }
+
+    @ManagedAttribute
+    public long getEvictionCount() {
+        return cache == null ? 0 : cache.stats().evictionCount();
+    }
+
+    @ManagedAttribute
+    public long getEvictionBytes() {
+        return cache == null ? 0 : cache.stats().evictionWeight();
+    }
+
+    @ManagedAttribute
+    public long getItems() {
+        return cache == null ? 0 : cache.estimatedSize();
+    }
+
+    @ManagedAttribute
+    public long getBytes() {
+        if (cache == null) {
+            return 0;
+        }
+        Optional<Policy.Eviction<String, StoredVal>> eviction = cache.policy().eviction();
+        return eviction.isPresent() ? eviction.get().weightedSize().orElse(0) : 0;
+    }
+
+    private static int stripe(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    private static int weigh(String key, StoredVal val) {
+        long weight = ENTRY_OVERHEAD + key.length() + val.getSize();
+        return (int) Math.min(weight, Integer.MAX_VALUE);
+    }
+
+    /**
+     * nanos until val expires, capped by maxNanos; ttl is an absolute unix time or 0
+     */
+    private static long expireNanos(StoredVal val, long maxNanos) {
+        int ttl = val.getTtl();
+        if (ttl <= 0) {
+            return maxNanos;
+        }
+        long remain = TimeUnit.SECONDS.toNanos(ttl) - TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        return Math.max(0, Math.min(remain, maxNanos));
+    }
+}
@@ -0,0 +1,352 @@
+package com.pingcap.ticache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Policy;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Answers gets of keys known to be absent without a backend read
+ *
+ * In cache mode confirmed misses are remembered for negative-cache.ttl
+ * millis, keyed by backend key so flush_all starts over. Like the near
+ * cache, a reader takes a stamp before going to the backend and a write
+ * on this node in the meantime keeps the miss from being remembered.
+ *
+ * In filter mode a counting Bloom filter holds every key of the current
+ * generation, built by a scan at startup and kept up to date by the
+ * writes and deletes of this node. A key the filter has never seen is
+ * absent. A write is added once it is done, or failed without knowing
+ * whether it went through. A key is only taken out again by the delete
+ * that removed it, and only if no write of a key on the same stripe
+ * started since the delete read the item or is still going on: a remove
+ * ahead of the add it cancels would take shared counters down for good.
+ * Skipped removes leave false positives, which cost a backend read. The
+ * filter can not see writes made through other nodes and is only correct
+ * while this node is the only one writing. A new generation starts empty.
+ *
+ */
+@Component
+@ManagedResource(objectName = "com.pingcap.ticache:type=NegativeCache")
+public class NegativeCache {
+
+    private static Logger logger = LoggerFactory.getLogger(NegativeCache.class);
+
+    private static final int ENTRY_OVERHEAD = 48;
+
+    private static final int STRIPES = 1024;
+
+    private final Client client;
+
+    private final Keyspace keyspace;
+
+    private final ServerProperties.NegativeCacheProperties properties;
+
+    private final Cache<String, Boolean> cache;
+
+    private final AtomicLongArray stamps = new AtomicLongArray(STRIPES);
+
+    /**
+     * writes in flight per stripe, filter mode only
+     */
+    private final AtomicIntegerArray writing = new AtomicIntegerArray(STRIPES);
+
+    private volatile Generation current;
+
+    private final ScheduledExecutorService builder;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder backendMisses = new LongAdder();
+
+    public NegativeCache(Client client, Keyspace keyspace, ServerProperties serverProperties) {
+        this.client = client;
+        this.keyspace = keyspace;
+        this.properties = serverProperties.getNegativeCache();
+
+        switch (properties.getMode()) {
+            case "off":
+                cache = null;
+                builder = null;
+                return;
+            case "cache":
+                cache = Caffeine.newBuilder()
+                        .maximumWeight(properties.getMaxBytes())
+                        .weigher((String key, Boolean absent) -> ENTRY_OVERHEAD + key.length() * 2)
+                        .expireAfterWrite(properties.getTtl(), TimeUnit.MILLISECONDS)
+                        .build();
+                builder = null;
+                break;
+            case "filter":
+                cache = null;
+                Generation initial = new Generation(keyspace.getGeneration(), newFilter());
+                current = initial;
+                builder = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("ticache-negative", true));
+                builder.execute(() -> build(initial));
+                break;
+            default:
+                throw new IllegalArgumentException("unknown negative-cache mode " + properties.getMode());
+        }
+        logger.info("negative cache mode=" + properties.getMode());
+    }
+
+    public boolean isFilter() {
+        return builder != null;
+    }
+
+    /**
+     * @return true if key is known to be absent, the get is a miss without a backend read
+     */
+    public boolean isAbsent(String key) {
+        boolean absent;
+        if (cache != null) {
+            absent = cache.getIfPresent(keyspace.dataKey(key)) != null;
+        } else if (builder != null) {
+            Generation generation = current();
+            absent = generation.ready && !generation.filter.mightContain(key);
+        } else {
+            return false;
+        }
+        if (absent) {
+            hits.increment();
+        }
+        return absent;
+    }
+
+    /**
+     * Taken before reading key from the backend, passed back to recordMiss or recordDelete
+     */
+    public long stamp(String key) {
+        return stamps.get(stripe(key));
+    }
+
+    /**
+     * Called when the backend had no item for key
+     */
+    public void recordMiss(String key, long stamp) {
+        if (cache != null) {
+            backendMisses.increment();
+            int stripe = stripe(key);
+            if (stamps.get(stripe) != stamp) {
+                return;
+            }
+            String dataKey = keyspace.dataKey(key);
+            cache.put(dataKey, Boolean.TRUE);
+            // a write may have slipped in between the check and the put
+            if (stamps.get(stripe) != stamp) {
+                cache.invalidate(dataKey);
+            }
+        } else if (builder != null && current().ready) {
+            // the filter let an absent key through
+            backendMisses.increment();
+        }
+    }
+
+    /**
+     * Called before a write of key goes to the backend, every call is followed by endWrite
+     */
+    public void beginWrite(String key) {
+        if (builder != null) {
+            int stripe = stripe(key);
+            writing.incrementAndGet(stripe);
+            stamps.incrementAndGet(stripe);
+        }
+    }
+
+    /**
+     * Called once a write of key is done
+     *
+     * @param written false only if the write certainly stored nothing
+     */
+    public void endWrite(String key, boolean written) {
+        if (cache != null) {
+            stamps.incrementAndGet(stripe(key));
+            cache.invalidate(keyspace.dataKey(key));
+        } else if (builder != null) {
+            if (written) {
+                current().filter.add(key);
+            }
+            writing.decrementAndGet(stripe(key));
+        }
+    }
+
+    /**
+     * Called after a conditional delete removed the item of key, generation
+     * and stamp are those taken before the item was read
+     */
+    public void recordDelete(String key, long generation, long stamp) {
+        if (builder == null) {
+            return;
+        }
+        int stripe = stripe(key);
+        // the item may be one whose write has not been added yet
+        if (writing.get(stripe) != 0 || stamps.get(stripe) != stamp) {
+            return;
+        }
+        Generation current = current();
+        // before the build is done the key may not have been added yet
+        if (current.generation == generation && current.ready) {
+            current.filter.remove(key);
+        }
+    }
+
+    /**
+     * @return the filter of the current generation, a new generation starts out empty
+     */
+    private Generation current() {
+        Generation current = this.current;
+        long generation = keyspace.getGeneration();
+        if (generation > current.generation) {
+            synchronized (this) {
+                if (generation > this.current.generation) {
+                    Generation next = new Generation(generation, newFilter());
+                    next.ready = true;
+                    this.current = next;
+                    logger.info("negative cache filter reset generation=" + generation);
+                }
+                current = this.current;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Adds every key of the generation, retried until it gets through or the generation is replaced
+     */
+    private void build(Generation generation) {
+        String prefix = Keyspace.prefix(generation.generation);
+        String start = prefix;
+        long keys = 0;
+        try {
+            while (current == generation) {
+                int pageSize = properties.getBuildPageSize();
+                Map<String, byte[]> page = client.scan(start, Keyspace.prefixEnd(prefix), pageSize);
+                String last = null;
+                for (Map.Entry<String, byte[]> entry : page.entrySet()) {
+                    last = entry.getKey();
+                    byte[] value = entry.getValue();
+                    if (value != null && value.length > 0) {
+                        generation.filter.add(last.substring(prefix.length()));
+                        keys++;
+                    }
+                }
+                if (page.size() < pageSize) {
+                    generation.ready = true;
+                    logger.info("negative cache filter built generation=" + generation.generation + " keys=" + keys);
+                    return;
+                }
+                // the smallest key after last
+                start = last + '\0';
+            }
+        } catch (Exception e) {
+            logger.error("negative cache filter build error", e);
+            if (!builder.isShutdown()) {
+                builder.schedule(() -> build(generation), 1, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private CountingBloomFilter newFilter() {
+        return new CountingBloomFilter(properties.getExpectedItems(), properties.getCountersPerItem());
+    }
+
+    @ManagedAttribute
+    public String getMode() {
+        return properties.getMode();
+    }
+
+    @ManagedAttribute
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @ManagedAttribute
+    public long getBackendMisses() {
+        return backendMisses.sum();
+    }
+
+    /**
+     * @return the share of absent keys that still went to the backend
+     */
+    @ManagedAttribute
+    public double getFalsePositiveRate() {
+        long hits = getHits();
+        long backendMisses = getBackendMisses();
+        return hits + backendMisses == 0 ? 0 : (double) backendMisses / (hits + backendMisses);
+    }
+
+    /**
+     * @return the false positive rate the filter is expected to have at its current load
+     */
+    @ManagedAttribute
+    public double getExpectedFalsePositiveRate() {
+        return builder == null ? 0 : current().filter.expectedFpp();
+    }
+
+    @ManagedAttribute
+    public boolean isReady() {
+        return cache != null || (builder != null && current().ready);
+    }
+
+    @ManagedAttribute
+    public long getItems() {
+        if (cache != null) {
+            return cache.estimatedSize();
+        }
+        return builder == null ? 0 : current().filter.getItems();
+    }
+
+    @ManagedAttribute
+    public long getBytes() {
+        if (cache != null) {
+            Optional<Policy.Eviction<String, Boolean>> eviction = cache.policy().eviction();
+            return eviction.isPresent() ? eviction.get().weightedSize().orElse(0) : 0;
+        }
+        return builder == null ? 0 : current().filter.getBytes();
+    }
+
+    private static int stripe(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (builder != null) {
+            builder.shutdownNow();
+        }
+    }
+
+    /**
+     * The filter of one keyspace generation, ready once every key written before startup is in it
+     *
+     */
+    private static final class Generation {
+
+        final long generation;
+
+        final CountingBloomFilter filter;
+
+        volatile boolean ready;
+
+        Generation(long generation, CountingBloomFilter filter) {
+            this.generation = generation;
+            this.filter = filter;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.pingcap.ticache;
+
+import io.netty.channel.ChannelHandlerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * In-flight commands of one connection
+ *
+ * Commands are dispatched to the command executor as soon as they are
+ * decoded, so many of them can wait on the backend at once. Replies are
+ * queued in request order and written once every earlier reply is out.
+ *
+ * Commands touching the same key still run one after the other, and
+ * flush_all runs after everything before it and before everything after
+ * it, so a pipelined "set k" / "get k" behaves as it does serially. A
+ * chunked set is only dispatched once its chunks are written.
+ *
+ * Apart from the completion callbacks, which hop back onto it, all state
+ * is only touched from the channel's event loop.
+ *
+ */
+public class PipelinedConnection {
+
+    private static Logger logger = LoggerFactory.getLogger(PipelinedConnection.class);
+
+    private final ChannelHandlerContext ctx;
+
+    private final Function<Command, Reply> handler;
+
+    private final Executor executor;
+
+    private final int maxInFlight;
+
+    private final ArrayDeque<CompletableFuture<Reply>> replies = new ArrayDeque<>();
+
+    private final Map<String, CompletableFuture<Reply>> lastByKey = new HashMap<>();
+
+    private CompletableFuture<Reply> barrier;
+
+    private boolean closing;
+
+    public PipelinedConnection(ChannelHandlerContext ctx, Function<Command, Reply> handler,
+                               Executor executor, int maxInFlight) {
+        this.ctx = ctx;
+        this.handler = handler;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+    }
+
+    public void submit(Command cmd) {
+        List<String> keys = keysOf(cmd);
+        boolean isBarrier = cmd.getCmd().equals("flush_all");
+
+        List<CompletableFuture<?>> deps = new ArrayList<>();
+        if (cmd.getUpload() != null) {
+            deps.add(cmd.getUpload().written());
+        }
+        if (barrier != null && !barrier.isDone()) {
+            deps.add(barrier);
+        }
+        if (isBarrier) {
+            for (CompletableFuture<Reply> reply : replies) {
+                if (!reply.isDone()) {
+                    deps.add(reply);
+                }
+            }
+        } else {
+            for (String key : keys) {
+                CompletableFuture<Reply> last = lastByKey.get(key);
+                if (last != null && !last.isDone()) {
+                    deps.add(last);
+                }
+            }
+        }
+
+        CompletableFuture<Reply> reply;
+        if (deps.isEmpty()) {
+            reply = CompletableFuture.supplyAsync(() -> handler.apply(cmd), executor);
+        } else {
+            reply = CompletableFuture.allOf(deps.toArray(new CompletableFuture[0]))
+                    .handle((v, e) -> null)
+                    .thenApplyAsync(v -> handler.apply(cmd), executor);
+        }
+
+        if (isBarrier) {
+            barrier = reply;
+        }
+        for (String key : keys) {
+            lastByKey.put(key, reply);
+        }
+        replies.addLast(reply);
+        if (replies.size() >= maxInFlight) {
+            ReadThrottle.pause(ctx.channel(), ReadThrottle.PIPELINE);
+        }
+
+        reply.whenComplete((r, e) -> ctx.executor().execute(() -> {
+            for (String key : keys) {
+                lastByKey.remove(key, reply);
+            }
+            drain();
+        }));
+    }
+
+    /**
+     * Closes the connection once every pending reply has been written
+     */
+    public void closeWhenDrained() {
+        closing = true;
+        ReadThrottle.pause(ctx.channel(), ReadThrottle.CLOSING);
+        if (replies.isEmpty()) {
+            ctx.close();
+        }
+    }
+
+    /**
+     * Writes every completed reply at the head of the queue
+     */
+    private void drain() {
+        boolean written = false;
+        while (!replies.isEmpty() && replies.peekFirst().isDone()) {
+            CompletableFuture<Reply> reply = replies.pollFirst();
+            Reply outReply;
+            try {
+                outReply = reply.join();
+            } catch (Exception e) {
+                logger.error("cmd error", e);
+                outReply = Reply.SERVER_ERROR;
+            }
+
+            // noreply commands only hold their place in the queue
+            if (outReply != null && ctx.channel().isActive()) {
+                ctx.write(outReply);
+                written = true;
+            }
+        }
+
+        if (written) {
+            ctx.flush();
+        }
+        if (closing) {
+            if (replies.isEmpty()) {
+                ctx.close();
+            }
+            return;
+        }
+        if (replies.size() <= maxInFlight / 2) {
+            ReadThrottle.resume(ctx.channel(), ReadThrottle.PIPELINE);
+        }
+    }
+
+    private static List<String> keysOf(Command cmd) {
+        if (cmd.getKeys() != null) {
+            return cmd.getKeys();
+        }
+        if (cmd.getKey() != null) {
+            return Collections.singletonList(cmd.getKey());
+        }
+        return Collections.emptyList();
+    }
+}
@@ -0,0 +1,43 @@
+package com.pingcap.ticache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+import java.util.List;
+
+/**
+ * Picks the protocol of a connection from its first byte
+ *
+ * Binary requests always start with the 0x80 magic, which no text command
+ * does. The detector replaces itself with the matching codec and passes on
+ * whatever it has buffered.
+ *
+ */
+public class ProtocolDetector extends ByteToMessageDecoder {
+
+    private final ReplyEncoder replyEncoder;
+
+    private final ChunkStore chunkStore;
+
+    public ProtocolDetector(ReplyEncoder replyEncoder, ChunkStore chunkStore) {
+        this.replyEncoder = replyEncoder;
+        this.chunkStore = chunkStore;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        if (!in.isReadable()) {
+            return;
+        }
+        ChannelPipeline pipeline = ctx.pipeline();
+        if (in.getByte(in.readerIndex()) == BinaryCodec.MAGIC_REQUEST) {
+            pipeline.addAfter(ctx.name(), "binaryCodec", new BinaryCodec());
+        } else {
+            pipeline.addAfter(ctx.name(), "commandDecoder", new CommandDecoder(chunkStore));
+            pipeline.addAfter("commandDecoder", "replyEncoder", replyEncoder);
+        }
+        pipeline.remove(this);
+    }
+}
@@ -0,0 +1,64 @@
+package com.pingcap.ticache;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+/**
+ * The one owner of auto read on a connection
+ *
+ * Reading is paused for independent reasons: too many pipelined commands
+ * in flight, chunk writes of an upload falling behind, a quit waiting for
+ * its replies. Each reason is set and cleared on its own and reading only
+ * resumes once none is left, so clearing one never undoes another.
+ *
+ * Only called on the event loop of the channel.
+ *
+ */
+final class ReadThrottle {
+
+    static final int PIPELINE = 1;
+
+    static final int UPLOAD = 1 << 1;
+
+    static final int CLOSING = 1 << 2;
+
+    private static final AttributeKey<ReadThrottle> READ_THROTTLE = AttributeKey.valueOf("readThrottle");
+
+    private int reasons;
+
+    private ReadThrottle() {
+    }
+
+    static void pause(Channel channel, int reason) {
+        of(channel).reasons |= reason;
+        channel.config().setAutoRead(false);
+    }
+
+    static void resume(Channel channel, int reason) {
+        ReadThrottle throttle = channel.attr(READ_THROTTLE).get();
+        if (throttle == null || (throttle.reasons & reason) == 0) {
+            return;
+        }
+        throttle.reasons &= ~reason;
+        if (throttle.reasons == 0) {
+            channel.config().setAutoRead(true);
+        }
+    }
+
+    /**
+     * @return true if reading is paused for any reason
+     */
+    static boolean isPaused(Channel channel) {
+        ReadThrottle throttle = channel.attr(READ_THROTTLE).get();
+        return throttle != null && throttle.reasons != 0;
+    }
+
+    private static ReadThrottle of(Channel channel) {
+        ReadThrottle throttle = channel.attr(READ_THROTTLE).get();
+        if (throttle == null) {
+            throttle = new ReadThrottle();
+            channel.attr(READ_THROTTLE).set(throttle);
+        }
+        return throttle;
+    }
+}
@@ -0,0 +1,210 @@
+package com.pingcap.ticache;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reply to a command, independent of the wire format
+ *
+ * Replies carrying no data are shared constants. The encoder of the
+ * connection turns a reply into bytes on the event loop, so the command
+ * executor never allocates network buffers.
+ *
+ */
+public abstract class Reply {
+
+    public static final Status STORED = new Status("STORED");
+
+    public static final Status NOT_STORED = new Status("NOT_STORED");
+
+    public static final Status EXISTS = new Status("EXISTS");
+
+    public static final Status NOT_FOUND = new Status("NOT_FOUND");
+
+    public static final Status DELETED = new Status("DELETED");
+
+    public static final Status TOUCHED = new Status("TOUCHED");
+
+    public static final Status OK = new Status("OK");
+
+    public static final Status RESET = new Status("RESET");
+
+    public static final Status END = new Status("END");
+
+    public static final Status ERROR = new Status("ERROR");
+
+    public static final Status SERVER_ERROR = new Status("SERVER_ERROR");
+
+    private Reply() {
+    }
+
+    /**
+     * @return every fixed reply
+     */
+    public static List<Status> statuses() {
+        return Arrays.asList(STORED, NOT_STORED, EXISTS, NOT_FOUND, DELETED, TOUCHED, OK, RESET, END,
+                ERROR, SERVER_ERROR);
+    }
+
+    /**
+     * @param line one or more complete lines, CRLF terminated
+     */
+    public static Text text(String line) {
+        return new Text(line.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * A fixed single word reply
+     *
+     */
+    public static final class Status extends Reply {
+
+        private final String word;
+
+        private final byte[] line;
+
+        private Status(String word) {
+            this.word = word;
+            this.line = (word + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+
+        public String getWord() {
+            return word;
+        }
+
+        /**
+         * @return the word followed by CRLF, callers must not modify it
+         */
+        public byte[] getLine() {
+            return line;
+        }
+
+        @Override
+        public String toString() {
+            return word;
+        }
+    }
+
+    /**
+     * Preformatted text, error lines with a message, version, stats and slowlog dumps
+     *
+     */
+    public static final class Text extends Reply {
+
+        private final byte[] bytes;
+
+        public Text(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, StandardCharsets.US_ASCII).trim();
+        }
+    }
+
+    /**
+     * The new value of incr or decr, unsigned
+     *
+     */
+    public static final class Number extends Reply {
+
+        private final long value;
+
+        public Number(long value) {
+            this.value = value;
+        }
+
+        public long getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return Long.toUnsignedString(value);
+        }
+    }
+
+    /**
+     * The items found by a get, in the order they were asked for, closed by END
+     *
+     */
+    public static final class Values extends Reply {
+
+        private final List<String> keys;
+
+        private final List<StoredVal> items;
+
+        /**
+         * values of chunked items by index, null until there is one
+         */
+        private Map<Integer, ChunkStore.Stream> streams;
+
+        /**
+         * the reply to gets, every value line carries the cas unique of its item
+         */
+        private final boolean withCas;
+
+        public Values(int expected) {
+            this(expected, false);
+        }
+
+        public Values(int expected, boolean withCas) {
+            this.keys = new ArrayList<>(expected);
+            this.items = new ArrayList<>(expected);
+            this.withCas = withCas;
+        }
+
+        public void add(String key, StoredVal item) {
+            keys.add(key);
+            items.add(item);
+        }
+
+        /**
+         * Adds a chunked item, its value is written from stream
+         */
+        public void add(String key, StoredVal item, ChunkStore.Stream stream) {
+            if (streams == null) {
+                streams = new HashMap<>();
+            }
+            streams.put(keys.size(), stream);
+            add(key, item);
+        }
+
+        public int size() {
+            return keys.size();
+        }
+
+        public boolean isWithCas() {
+            return withCas;
+        }
+
+        public String getKey(int i) {
+            return keys.get(i);
+        }
+
+        public StoredVal getItem(int i) {
+            return items.get(i);
+        }
+
+        /**
+         * @return the value of item i if it is chunked, null otherwise
+         */
+        public ChunkStore.Stream getStream(int i) {
+            return streams == null ? null : streams.get(i);
+        }
+
+        @Override
+        public String toString() {
+            return "VALUES " + keys;
+        }
+    }
+}
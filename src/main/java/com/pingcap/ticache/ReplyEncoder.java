@@ -0,0 +1,126 @@
+package com.pingcap.ticache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.EncoderException;
+import io.netty.handler.codec.MessageToMessageEncoder;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes replies in the text protocol
+ *
+ * Fixed replies are duplicates of shared read-only buffers, nothing is
+ * allocated for them. VALUE headers are written straight into a pooled
+ * buffer; small values are copied in after their header so a get becomes
+ * a single buffer, larger ones follow as a view of the stored record.
+ * Chunked values follow as a stream ChunkedWriteHandler reads them from.
+ *
+ */
+@ChannelHandler.Sharable
+public class ReplyEncoder extends MessageToMessageEncoder<Reply> {
+
+    /**
+     * values up to this many bytes are copied next to their header
+     */
+    static final int COPY_THRESHOLD = 1024;
+
+    private static final short CRLF = ('\r' << 8) | '\n';
+
+    private static final Map<Reply.Status, ByteBuf> STATUS_BUFS = new IdentityHashMap<>();
+
+    static {
+        for (Reply.Status status : Reply.statuses()) {
+            STATUS_BUFS.put(status, constant(status.getLine()));
+        }
+    }
+
+    private static final ByteBuf VALUE = constant("VALUE ".getBytes());
+
+    private static ByteBuf constant(byte[] bytes) {
+        ByteBuf buf = Unpooled.directBuffer(bytes.length, bytes.length).writeBytes(bytes);
+        return Unpooled.unreleasableBuffer(buf).asReadOnly();
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, Reply msg, List<Object> out) {
+        if (msg instanceof Reply.Status) {
+            out.add(STATUS_BUFS.get(msg).duplicate());
+        } else if (msg instanceof Reply.Values) {
+            encodeValues(ctx, (Reply.Values) msg, out);
+        } else if (msg instanceof Reply.Number) {
+            ByteBuf buf = ctx.alloc().ioBuffer(22);
+            writeUnsigned(buf, ((Reply.Number) msg).getValue());
+            buf.writeShort(CRLF);
+            out.add(buf);
+        } else if (msg instanceof Reply.Text) {
+            byte[] bytes = ((Reply.Text) msg).getBytes();
+            out.add(ctx.alloc().ioBuffer(bytes.length).writeBytes(bytes));
+        } else {
+            throw new EncoderException("unknown reply " + msg);
+        }
+    }
+
+    private static void encodeValues(ChannelHandlerContext ctx, Reply.Values values, List<Object> out) {
+        int capacity = 5;
+        for (int i = 0; i < values.size(); i++) {
+            int size = values.getItem(i).getSize();
+            boolean copied = size <= COPY_THRESHOLD && values.getStream(i) == null;
+            capacity += values.getKey(i).length() + (values.isWithCas() ? 53 : 32) + (copied ? size : 0);
+        }
+
+        ByteBuf buf = ctx.alloc().ioBuffer(capacity);
+        for (int i = 0; i < values.size(); i++) {
+            StoredVal item = values.getItem(i);
+            ChunkStore.Stream stream = values.getStream(i);
+            buf.writeBytes(VALUE, VALUE.readerIndex(), VALUE.readableBytes());
+            ByteBufUtil.writeAscii(buf, values.getKey(i));
+            buf.writeByte(' ');
+            writeUnsigned(buf, item.getFlags() & 0xFFFFFFFFL);
+            buf.writeByte(' ');
+            writeUnsigned(buf, item.getSize());
+            if (values.isWithCas()) {
+                buf.writeByte(' ');
+                writeUnsigned(buf, item.getCas());
+            }
+            buf.writeShort(CRLF);
+            if (item.getSize() <= COPY_THRESHOLD && stream == null) {
+                item.writeVal(buf);
+            } else {
+                capacity -= buf.writerIndex();
+                out.add(buf);
+                out.add(stream != null ? stream.open(ctx) : item.getValBuf());
+                buf = ctx.alloc().ioBuffer(Math.max(capacity, 8));
+            }
+            buf.writeShort(CRLF);
+        }
+        buf.writeBytes(Reply.END.getLine());
+        out.add(buf);
+    }
+
+    /**
+     * Writes value as unsigned decimal without going through a String
+     */
+    static void writeUnsigned(ByteBuf buf, long value) {
+        if (value < 0) {
+            ByteBufUtil.writeAscii(buf, Long.toUnsignedString(value));
+            return;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        buf.ensureWritable(digits);
+        int end = buf.writerIndex() + digits;
+        for (int i = end - 1; i >= buf.writerIndex(); i--) {
+            buf.setByte(i, '0' + (int) (value % 10));
+            value /= 10;
+        }
+        buf.writerIndex(end);
+    }
+}
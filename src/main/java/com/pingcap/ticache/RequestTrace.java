@@ -0,0 +1,48 @@
+package com.pingcap.ticache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Backend time spent on behalf of the command running on the current thread
+ *
+ * Set by the handler around a command while the slow log is on. A backend
+ * call captures the trace on the calling thread and adds to it when its
+ * future completes, possibly on another thread.
+ *
+ */
+public class RequestTrace {
+
+    private static final ThreadLocal<RequestTrace> CURRENT = new ThreadLocal<>();
+
+    final AtomicLong backendNanos = new AtomicLong();
+
+    final AtomicInteger backendOps = new AtomicInteger();
+
+    /**
+     * the first key sent to the backend
+     */
+    volatile String backendKey;
+
+    static RequestTrace current() {
+        return CURRENT.get();
+    }
+
+    static RequestTrace begin() {
+        RequestTrace trace = new RequestTrace();
+        CURRENT.set(trace);
+        return trace;
+    }
+
+    static void end() {
+        CURRENT.remove();
+    }
+
+    void recordBackend(String key, long nanos) {
+        backendNanos.addAndGet(nanos);
+        backendOps.incrementAndGet();
+        if (backendKey == null) {
+            backendKey = key;
+        }
+    }
+}
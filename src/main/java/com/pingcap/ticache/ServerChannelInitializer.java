@@ -5,6 +5,7 @@ import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
@@ -21,11 +22,38 @@ public class ServerChannelInitializer extends ChannelInitializer<SocketChannel>
     @Qualifier("commandHandler")
     private SimpleChannelInboundHandler commandHandler;
 
+    @Autowired
+    private ByteCountingHandler byteCountingHandler;
+
+    @Autowired
+    private ServerProperties serverProperties;
+
+    @Autowired
+    private ChunkStore chunkStore;
+
+    private final ReplyEncoder replyEncoder = new ReplyEncoder();
+
     @Override
     protected void initChannel(SocketChannel socketChannel) {
         ChannelPipeline pipeline = socketChannel.pipeline();
 
-        pipeline.addLast(new CommandDecoder());
+        int flushConsolidation = serverProperties.getSocket().getFlushConsolidation();
+        if (flushConsolidation > 0) {
+            // replies completing outside a read are flushed together once the event loop is idle
+            pipeline.addLast(new FlushConsolidationHandler(flushConsolidation, true));
+        }
+        pipeline.addLast(byteCountingHandler);
+        switch (serverProperties.getProtocol()) {
+            case "binary":
+                pipeline.addLast(new BinaryCodec());
+                break;
+            case "text":
+                pipeline.addLast(new CommandDecoder(chunkStore));
+                pipeline.addLast(replyEncoder);
+                break;
+            default:
+                pipeline.addLast(new ProtocolDetector(replyEncoder, chunkStore));
+        }
         //pipeline.addLast(new CommandHandler());
         pipeline.addLast(commandHandler);
 
@@ -18,4 +18,465 @@ public class ServerProperties {
     private boolean keepAlive;
 
     private int backlog;
+
+    /**
+     * auto, nio or epoll, auto takes epoll where the native library loads
+     */
+    private String transport = "auto";
+
+    /**
+     * with epoll bind one server socket per boss thread to the port
+     */
+    private boolean reusePort = true;
+
+    /**
+     * auto, text or binary, auto tells them apart by the first byte of a connection
+     */
+    private String protocol = "auto";
+
+    private final SocketProperties socket = new SocketProperties();
+
+    private final BackendProperties backend = new BackendProperties();
+
+    private final AsyncProperties async = new AsyncProperties();
+
+    private final NearCacheProperties nearCache = new NearCacheProperties();
+
+    private final KeyspaceProperties keyspace = new KeyspaceProperties();
+
+    private final CasProperties cas = new CasProperties();
+
+    private final BatchProperties batch = new BatchProperties();
+
+    private final SlowlogProperties slowlog = new SlowlogProperties();
+
+    private final ExpiryProperties expiry = new ExpiryProperties();
+
+    private final HotKeysProperties hotKeys = new HotKeysProperties();
+
+    private final NegativeCacheProperties negativeCache = new NegativeCacheProperties();
+
+    private final CompressionProperties compression = new CompressionProperties();
+
+    private final ChunkProperties chunk = new ChunkProperties();
+
+    /**
+     * Storage the items are kept in
+     *
+     */
+    @Getter
+    @Setter
+    public static class BackendProperties {
+
+        /**
+         * tikv, memory or local
+         */
+        private String type = "tikv";
+
+        /**
+         * placement driver of the tikv cluster
+         */
+        private String pdAddress = "117.50.61.196:2379";
+
+        /**
+         * threads blocking on the tikv client
+         */
+        private int threads = 64;
+
+        /**
+         * directory of the local backend's log files
+         */
+        private String dataDir = "data";
+
+        /**
+         * size of a local backend log file, larger values get a file of their own
+         */
+        private int segmentBytes = 64 * 1024 * 1024;
+
+        /**
+         * let tikv expire items itself, needs storage.enable-ttl on the cluster
+         */
+        private boolean nativeTtl = false;
+
+        /**
+         * concurrent gets of a key share one backend read
+         */
+        private boolean singleFlight = true;
+    }
+
+    /**
+     * Executes commands off the event loop, replies keep request order
+     *
+     */
+    @Getter
+    @Setter
+    public static class AsyncProperties {
+
+        private boolean enabled = true;
+
+        /**
+         * threads blocking on the backend, shared by all connections
+         */
+        private int threads = 64;
+
+        /**
+         * a connection stops reading once this many of its commands are in flight
+         */
+        private int maxInFlight = 1024;
+    }
+
+    /**
+     * In-process L1 cache in front of the backend
+     *
+     */
+    @Getter
+    @Setter
+    public static class NearCacheProperties {
+
+        private boolean enabled = false;
+
+        /**
+         * upper bound of keys + values held locally, in bytes
+         */
+        private long maxBytes = 64L * 1024 * 1024;
+
+        /**
+         * seconds an entry may be served locally before it is re-read,
+         * bounds staleness against writes made through other nodes
+         */
+        private int maxTtl = 10;
+    }
+
+    /**
+     * Generations of the keyspace, bumped by flush_all
+     *
+     */
+    @Getter
+    @Setter
+    public static class KeyspaceProperties {
+
+        /**
+         * millis between checks for a flush_all issued on another node
+         */
+        private long refreshInterval = 1000;
+    }
+
+    /**
+     * Compare-and-swap updates behind add, replace, append, prepend, incr and decr
+     *
+     */
+    @Getter
+    @Setter
+    public static class CasProperties {
+
+        /**
+         * retries after losing against a concurrent write before answering SERVER_ERROR
+         */
+        private int maxRetries = 16;
+    }
+
+    /**
+     * Coalescing of set from all connections into batch puts
+     *
+     */
+    @Getter
+    @Setter
+    public static class BatchProperties {
+
+        private boolean enabled = false;
+
+        /**
+         * micros a batch stays open after its first write
+         */
+        private long windowMicros = 200;
+
+        /**
+         * a batch is sent early once it holds this many writes
+         */
+        private int maxCount = 128;
+
+        /**
+         * a batch is sent early once its values add up to this many bytes
+         */
+        private long maxBytes = 1024 * 1024;
+
+        /**
+         * batches committing at the same time
+         */
+        private int commitThreads = 4;
+    }
+
+    /**
+     * Sampled log of slow commands, dumped by the slowlog command
+     *
+     */
+    @Getter
+    @Setter
+    public static class SlowlogProperties {
+
+        private boolean enabled = true;
+
+        /**
+         * micros from decoding a command to its reply above which it is slow
+         */
+        private long thresholdMicros = 10000;
+
+        /**
+         * one in this many slow commands is kept
+         */
+        private int sampleRate = 1;
+
+        /**
+         * entries kept, rounded up to a power of two
+         */
+        private int size = 128;
+    }
+
+    /**
+     * Options of accepted connections
+     *
+     */
+    @Getter
+    @Setter
+    public static class SocketProperties {
+
+        private boolean tcpNoDelay = true;
+
+        /**
+         * SO_SNDBUF in bytes, 0 keeps the OS default and its auto tuning
+         */
+        private int sendBuffer = 0;
+
+        /**
+         * SO_RCVBUF in bytes, 0 keeps the OS default and its auto tuning
+         */
+        private int receiveBuffer = 0;
+
+        /**
+         * bytes pending in the outbound buffer below which a connection is writable again
+         */
+        private int writeBufferLowWaterMark = 64 * 1024;
+
+        /**
+         * bytes pending in the outbound buffer above which a connection is no longer writable
+         */
+        private int writeBufferHighWaterMark = 256 * 1024;
+
+        /**
+         * pooled direct buffers instead of unpooled ones
+         */
+        private boolean pooledAllocator = true;
+
+        /**
+         * bounds and first guess of the adaptive size of a read
+         */
+        private int receiveBufferMin = 64;
+
+        private int receiveBufferInitial = 2048;
+
+        private int receiveBufferMax = 65536;
+
+        /**
+         * flushes merged into one write to the socket, 0 flushes every reply on its own
+         */
+        private int flushConsolidation = 256;
+    }
+
+    /**
+     * Background removal of expired items from backends without native ttl
+     *
+     */
+    @Getter
+    @Setter
+    public static class ExpiryProperties {
+
+        private boolean sweep = true;
+
+        /**
+         * keys scanned per page
+         */
+        private int pageSize = 256;
+
+        /**
+         * millis between two pages
+         */
+        private long pageInterval = 50;
+
+        /**
+         * upper bound on deletes, pages are spaced out further to stay below it
+         */
+        private int maxDeletesPerSecond = 2000;
+
+        /**
+         * seconds between the end of a pass over the keyspace and the start of the next
+         */
+        private long passInterval = 60;
+    }
+
+    /**
+     * Detection of keys taking an outsized share of gets, and their local replica
+     *
+     */
+    @Getter
+    @Setter
+    public static class HotKeysProperties {
+
+        private boolean enabled = true;
+
+        /**
+         * serve hot keys from a local replica, writes on other nodes show up one refresh later
+         */
+        private boolean replicate = false;
+
+        /**
+         * one in this many gets is counted
+         */
+        private int sampleRate = 8;
+
+        /**
+         * counters per row of the Count-Min sketch, rounded up to a power of two
+         */
+        private int sketchWidth = 4096;
+
+        /**
+         * candidate keys tracked
+         */
+        private int capacity = 64;
+
+        /**
+         * millis after which hot keys are picked again and all counts halved
+         */
+        private long window = 1000;
+
+        /**
+         * share of the sampled gets of a window that makes a key hot
+         */
+        private double minShare = 0.01;
+
+        /**
+         * sampled gets of a window a hot key needs at least
+         */
+        private int minCount = 16;
+
+        /**
+         * hot keys kept at most
+         */
+        private int maxPinned = 16;
+
+        /**
+         * millis between two refreshes of the replica
+         */
+        private long refreshInterval = 100;
+
+        /**
+         * larger values are not replicated
+         */
+        private int maxValueBytes = 64 * 1024;
+    }
+
+    /**
+     * Answers gets of keys known to be absent without going to the backend
+     *
+     */
+    @Getter
+    @Setter
+    public static class NegativeCacheProperties {
+
+        /**
+         * off, cache or filter. cache remembers recent misses for ttl millis,
+         * filter keeps a counting Bloom filter of the keys present and is
+         * only correct while this node is the only one writing
+         */
+        private String mode = "off";
+
+        /**
+         * millis a confirmed miss is remembered, bounds staleness against
+         * writes made through other nodes
+         */
+        private long ttl = 1000;
+
+        /**
+         * upper bound of the keys held in cache mode, in bytes
+         */
+        private long maxBytes = 16L * 1024 * 1024;
+
+        /**
+         * keys the filter is sized for
+         */
+        private long expectedItems = 1000000;
+
+        /**
+         * 4 bit counters per expected key, 10 gives about 1% false positives
+         */
+        private int countersPerItem = 10;
+
+        /**
+         * keys read per page while the filter is built at startup
+         */
+        private int buildPageSize = 1024;
+    }
+
+    /**
+     * Compression of large values on their way to the backend
+     *
+     */
+    @Getter
+    @Setter
+    public static class CompressionProperties {
+
+        /**
+         * none, lz4 or zstd
+         */
+        private String codec = "none";
+
+        /**
+         * smaller values are stored as they are, in bytes
+         */
+        private int threshold = 4096;
+
+        private int zstdLevel = 3;
+    }
+
+    /**
+     * Large values stored as a run of chunk keys plus a manifest
+     *
+     */
+    @Getter
+    @Setter
+    public static class ChunkProperties {
+
+        private boolean enabled = false;
+
+        /**
+         * values of this many bytes and more are stored in chunks
+         */
+        private int threshold = 1024 * 1024;
+
+        private int chunkSize = 256 * 1024;
+
+        /**
+         * chunk writes of one upload in flight before reading from the socket pauses
+         */
+        private int maxInFlight = 4;
+
+        /**
+         * chunks read ahead of the socket by a get
+         */
+        private int readAhead = 2;
+
+        /**
+         * seconds chunks no manifest points to are kept, longer than any upload or get of a chunked value takes
+         */
+        private long orphanGrace = 600;
+
+        /**
+         * millis between two groups of chunks looked at by the orphan scan
+         */
+        private long collectInterval = 50;
+
+        /**
+         * seconds between two passes of the orphan scan
+         */
+        private long collectPassInterval = 60;
+    }
 }
@@ -0,0 +1,175 @@
+package com.pingcap.ticache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Shares one backend read among concurrent gets of the same key
+ *
+ * The first get of a key starts the read and parks it in the in-flight
+ * table, every get of the key arriving before it completes is handed the
+ * same future instead of going to the backend again. A batch get joins
+ * the reads of its keys already in flight and fetches the others in one
+ * batch, registered in the table like single reads.
+ *
+ * A write drops the key from the table once it completes, so a get
+ * starting after a write on this node never joins a read that may have
+ * missed it. Callers share the returned array and must not modify it.
+ *
+ */
+public class SingleFlightClient implements Client {
+
+    private final Client client;
+
+    private final Stats stats;
+
+    private final ConcurrentMap<String, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+
+    public SingleFlightClient(Client client, Stats stats) {
+        this.client = client;
+        this.stats = stats;
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getAsync(String key) {
+        CompletableFuture<byte[]> flight = new CompletableFuture<>();
+        CompletableFuture<byte[]> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            stats.count("single_flight_saved");
+            return existing;
+        }
+        stats.count("single_flight_reads");
+        client.getAsync(key).whenComplete((value, e) -> {
+            inFlight.remove(key, flight);
+            if (e != null) {
+                flight.completeExceptionally(e);
+            } else {
+                flight.complete(value);
+            }
+        });
+        return flight;
+    }
+
+    private <T> CompletableFuture<T> write(String key, Supplier<CompletableFuture<T>> call) {
+        return call.get().whenComplete((result, e) -> inFlight.remove(key));
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(String key, byte[] value) {
+        return write(key, () -> client.putAsync(key, value));
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(String key, byte[] value, long ttlSeconds) {
+        return write(key, () -> client.putAsync(key, value, ttlSeconds));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String key) {
+        return write(key, () -> client.deleteAsync(key));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, byte[]>> batchGetAsync(String prefix, List<String> keys) {
+        Map<String, CompletableFuture<byte[]>> joined = new HashMap<>();
+        Map<String, CompletableFuture<byte[]>> started = new LinkedHashMap<>();
+        for (String key : keys) {
+            if (joined.containsKey(key) || started.containsKey(key)) {
+                continue;
+            }
+            CompletableFuture<byte[]> flight = new CompletableFuture<>();
+            CompletableFuture<byte[]> existing = inFlight.putIfAbsent(prefix + key, flight);
+            if (existing != null) {
+                stats.count("single_flight_saved");
+                joined.put(key, existing);
+            } else {
+                started.put(key, flight);
+            }
+        }
+
+        CompletableFuture<Map<String, byte[]>> batch;
+        if (started.isEmpty()) {
+            batch = CompletableFuture.completedFuture(new HashMap<>());
+        } else {
+            stats.count("single_flight_reads", started.size());
+            batch = client.batchGetAsync(prefix, new ArrayList<>(started.keySet()));
+            batch.whenComplete((values, e) -> started.forEach((key, flight) -> {
+                inFlight.remove(prefix + key, flight);
+                if (e != null) {
+                    flight.completeExceptionally(e);
+                } else {
+                    flight.complete(values.get(key));
+                }
+            }));
+        }
+        if (joined.isEmpty()) {
+            return batch;
+        }
+
+        List<CompletableFuture<?>> waits = new ArrayList<>(joined.values());
+        waits.add(batch);
+        return CompletableFuture.allOf(waits.toArray(new CompletableFuture[0])).thenApply(v -> {
+            Map<String, byte[]> values = new HashMap<>(batch.join());
+            joined.forEach((key, flight) -> {
+                byte[] value = flight.join();
+                if (value != null) {
+                    values.put(key, value);
+                }
+            });
+            return values;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> batchPutAsync(Map<String, byte[]> pairs) {
+        return client.batchPutAsync(pairs).whenComplete((result, e) -> inFlight.keySet().removeAll(pairs.keySet()));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, byte[]>> scanAsync(String startKey, String endKey, int limit) {
+        return client.scanAsync(startKey, endKey, limit);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> compareAndSetAsync(String key, byte[] expected, byte[] value) {
+        return write(key, () -> client.compareAndSetAsync(key, expected, value));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> compareAndSetAsync(String key, byte[] expected, byte[] value, long ttlSeconds) {
+        return write(key, () -> client.compareAndSetAsync(key, expected, value, ttlSeconds));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteIfAsync(String key, byte[] expected) {
+        return write(key, () -> client.deleteIfAsync(key, expected));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteRangeAsync(String startKey, String endKey) {
+        return client.deleteRangeAsync(startKey, endKey).whenComplete((result, e) -> inFlight.keySet()
+                .removeIf(key -> key.compareTo(startKey) >= 0 && key.compareTo(endKey) < 0));
+    }
+
+    @Override
+    public boolean supportsTtl() {
+        return client.supportsTtl();
+    }
+
+    @Override
+    public String region(String key) {
+        return client.region(key);
+    }
+
+    @Override
+    public void close() throws Exception {
+        client.close();
+    }
+}
@@ -0,0 +1,150 @@
+package com.pingcap.ticache;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Ring buffer of recent slow commands, dumped by the slowlog command
+ *
+ * A command is slow once it took threshold-micros from being decoded to
+ * its reply; one in sample-rate of those is kept. Writers claim a slot
+ * with a single increment and overwrite the oldest entry, nothing blocks.
+ *
+ */
+@Component
+@ManagedResource(objectName = "com.pingcap.ticache:type=SlowLog")
+public class SlowLog {
+
+    /**
+     * One slow command, phases in nanos
+     */
+    public static class Entry {
+
+        final long seq;
+
+        final long time;
+
+        final String cmd;
+
+        final String key;
+
+        final long decodeNanos;
+
+        final long queueNanos;
+
+        final long handleNanos;
+
+        final long backendNanos;
+
+        final int backendOps;
+
+        final String region;
+
+        Entry(long seq, String cmd, String key, long decodeNanos, long queueNanos, long handleNanos,
+              long backendNanos, int backendOps, String region) {
+            this.seq = seq;
+            this.time = System.currentTimeMillis();
+            this.cmd = cmd;
+            this.key = key;
+            this.decodeNanos = decodeNanos;
+            this.queueNanos = queueNanos;
+            this.handleNanos = handleNanos;
+            this.backendNanos = backendNanos;
+            this.backendOps = backendOps;
+            this.region = region;
+        }
+
+        long totalNanos() {
+            return decodeNanos + queueNanos + handleNanos;
+        }
+    }
+
+    private final boolean enabled;
+
+    private final long thresholdNanos;
+
+    private final int sampleRate;
+
+    private final AtomicReferenceArray<Entry> ring;
+
+    private final int mask;
+
+    private final AtomicLong cursor = new AtomicLong();
+
+    private final AtomicLong slow = new AtomicLong();
+
+    private final Client client;
+
+    public SlowLog(ServerProperties serverProperties, Client client) {
+        ServerProperties.SlowlogProperties props = serverProperties.getSlowlog();
+        this.enabled = props.isEnabled();
+        this.thresholdNanos = TimeUnit.MICROSECONDS.toNanos(props.getThresholdMicros());
+        this.sampleRate = Math.max(1, props.getSampleRate());
+        int size = Integer.highestOneBit(Math.max(1, props.getSize() - 1)) << 1;
+        this.ring = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.client = client;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isSlow(long totalNanos) {
+        return totalNanos >= thresholdNanos;
+    }
+
+    /**
+     * Called for commands isSlow accepted, keeps one in sample-rate of them
+     */
+    public void offer(Command cmd, long queueNanos, long handleNanos, RequestTrace trace) {
+        slow.incrementAndGet();
+        if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return;
+        }
+        String backendKey = trace == null ? null : trace.backendKey;
+        long seq = cursor.getAndIncrement();
+        Entry entry = new Entry(seq, cmd.getCmd(), cmd.getKey(), cmd.getDecodeNanos(), queueNanos, handleNanos,
+                trace == null ? 0 : trace.backendNanos.get(), trace == null ? 0 : trace.backendOps.get(),
+                backendKey == null ? "-" : client.region(backendKey));
+        ring.set((int) seq & mask, entry);
+    }
+
+    /**
+     * @return up to limit entries, newest first
+     */
+    public List<Entry> entries(int limit) {
+        List<Entry> entries = new ArrayList<>();
+        long end = cursor.get();
+        for (long seq = end - 1; seq >= 0 && seq >= end - ring.length() && entries.size() < limit; seq--) {
+            Entry entry = ring.get((int) seq & mask);
+            // a slot being overwritten holds a newer entry, skip it
+            if (entry != null && entry.seq == seq) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    public void reset() {
+        for (int i = 0; i < ring.length(); i++) {
+            ring.set(i, null);
+        }
+    }
+
+    /**
+     * commands over the threshold, sampled or not
+     */
+    @ManagedAttribute
+    public long getSlowCount() {
+        return slow.get();
+    }
+}
@@ -0,0 +1,200 @@
+package com.pingcap.ticache;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server wide counters and latency histograms behind the stats command
+ *
+ * Counters are LongAdders, so connections never contend on them.
+ * Latencies are kept per command and per backend operation in nanos and
+ * reported in micros.
+ *
+ */
+@Component
+@ManagedResource(objectName = "com.pingcap.ticache:type=Stats")
+public class Stats {
+
+    private final long startTime = System.currentTimeMillis();
+
+    private final LongAdder currConnections = new LongAdder();
+
+    private final LongAdder totalConnections = new LongAdder();
+
+    private final LongAdder bytesRead = new LongAdder();
+
+    private final LongAdder bytesWritten = new LongAdder();
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    private final Map<String, Histogram> commandLatency = new ConcurrentHashMap<>();
+
+    private final Map<String, Histogram> backendLatency = new ConcurrentHashMap<>();
+
+    /**
+     * names of the counters reported by plain stats, in memcached's order
+     */
+    static final String[] COUNTERS = new String[] {
+            "cmd_get", "cmd_set", "cmd_flush", "get_hits", "get_misses", "get_expired",
+            "delete_misses", "delete_hits", "incr_misses", "incr_hits", "decr_misses", "decr_hits",
+            "cmd_touch", "touch_hits", "touch_misses", "noreply_errors", "backend_errors",
+            "sweep_passes", "sweep_scanned", "sweep_expired", "sweep_reclaimed_bytes",
+            "single_flight_reads", "single_flight_saved", "compressed_items", "compress_skipped",
+            "compress_bytes_in", "compress_bytes_out", "compress_nanos", "decompressed_items", "decompress_nanos",
+            "chunked_sets", "chunk_writes", "chunk_reads", "chunk_aborts", "chunk_releases", "chunk_orphans",
+            "chunk_collect_passes", "cas_misses", "cas_hits", "cas_badval"};
+
+    public Stats() {
+        for (String name : COUNTERS) {
+            counters.put(name, new LongAdder());
+        }
+    }
+
+    public void connectionOpened() {
+        currConnections.increment();
+        totalConnections.increment();
+    }
+
+    public void connectionClosed() {
+        currConnections.decrement();
+    }
+
+    public void bytesRead(long n) {
+        bytesRead.add(n);
+    }
+
+    public void bytesWritten(long n) {
+        bytesWritten.add(n);
+    }
+
+    public void count(String name) {
+        counter(name).increment();
+    }
+
+    public void count(String name, long n) {
+        counter(name).add(n);
+    }
+
+    private LongAdder counter(String name) {
+        // a plain get first, computeIfAbsent locks the bin even when the key is present
+        LongAdder counter = counters.get(name);
+        return counter != null ? counter : counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    public void recordCommand(String cmd, long nanos) {
+        record(commandLatency, cmd, nanos);
+    }
+
+    public void recordBackend(String op, long nanos) {
+        record(backendLatency, op, nanos);
+    }
+
+    private static void record(Map<String, Histogram> histograms, String name, long nanos) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = histograms.computeIfAbsent(name, k -> new ConcurrentHistogram(3));
+        }
+        histogram.recordValue(Math.max(0, nanos));
+    }
+
+    public long get(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    public long getUptime() {
+        return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startTime);
+    }
+
+    @ManagedAttribute
+    public long getCurrConnections() {
+        return currConnections.sum();
+    }
+
+    @ManagedAttribute
+    public long getTotalConnections() {
+        return totalConnections.sum();
+    }
+
+    @ManagedAttribute
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @ManagedAttribute
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @ManagedAttribute
+    public long getCmdGet() {
+        return get("cmd_get");
+    }
+
+    @ManagedAttribute
+    public long getCmdSet() {
+        return get("cmd_set");
+    }
+
+    @ManagedAttribute
+    public long getGetHits() {
+        return get("get_hits");
+    }
+
+    @ManagedAttribute
+    public long getGetMisses() {
+        return get("get_misses");
+    }
+
+    /**
+     * @return every counter by name, in a stable order
+     */
+    public Map<String, Long> counters() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (String name : COUNTERS) {
+            values.put(name, get(name));
+        }
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            values.putIfAbsent(counter.getKey(), counter.getValue().sum());
+        }
+        return values;
+    }
+
+    public Map<String, Histogram> commandLatency() {
+        return commandLatency;
+    }
+
+    public Map<String, Histogram> backendLatency() {
+        return backendLatency;
+    }
+
+    /**
+     * Zeroes counters and histograms, as "stats reset" does, current connections are left alone
+     */
+    @ManagedOperation
+    public void reset() {
+        totalConnections.reset();
+        totalConnections.add(currConnections.sum());
+        bytesRead.reset();
+        bytesWritten.reset();
+        for (LongAdder counter : counters.values()) {
+            counter.reset();
+        }
+        for (Histogram histogram : commandLatency.values()) {
+            histogram.reset();
+        }
+        for (Histogram histogram : backendLatency.values()) {
+            histogram.reset();
+        }
+    }
+}
@@ -1,60 +1,260 @@
 package com.pingcap.ticache;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.util.Arrays;
+
 /**
- * Memcache command
+ * Memcache item as stored in the backend
+ *
+ * Records are written with a fixed-width big-endian header followed by
+ * the raw value bytes:
+ *
+ *  0  magic 0xE7
+ *  1  format version
+ *  2  codec, 0 uncompressed, see Compression
+ *  3  1 if data is the manifest of a value stored in chunks, see ChunkStore
+ *  4  flags   int
+ *  8  ttl     int, absolute unix time or 0
+ * 12  size    int, of the uncompressed value
+ * 16  cas     long
+ * 24  data, compressed by codec
+ *
+ * Records written before the binary format are plain text and are still
+ * read, their first byte is always an ASCII digit:
+ *
+ * flags ttl size\r\n
+ * data\r\n
+ *
+ * The value is kept as a view into the record it was decoded from, it is
+ * only copied when a caller asks for it as a standalone array. A
+ * compressed item has to be inflated before its value can be read, the
+ * value of a chunked item is only read through ChunkStore.
  *
  */
 @Getter
 @Setter
 public class StoredVal {
 
+    public static final byte MAGIC = (byte) 0xE7;
+
+    public static final byte VERSION = 1;
+
+    public static final int HEADER_SIZE = 24;
+
     private int flags;
 
     private int ttl;
 
     private int size;
 
-    private String val;
+    private long cas;
+
+    @Setter(AccessLevel.NONE)
+    private byte codec;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private boolean chunked;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private byte[] data;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private int offset;
 
-    public StoredVal(int flags, int ttl, int size, String val) {
+    /**
+     * bytes of data the value takes up, less than size when compressed
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private int length;
+
+    public StoredVal(int flags, int ttl, int size, byte[] val) {
         this.flags = flags;
         this.ttl = ttl;
         this.size = size;
-        this.val = val;
+        this.data = val;
+        this.offset = 0;
+        this.length = size;
+    }
+
+    public StoredVal(byte[] fullVal) {
+        if (fullVal.length >= HEADER_SIZE && fullVal[0] == MAGIC) {
+            decodeBinary(fullVal);
+        } else {
+            decodeText(fullVal);
+        }
+    }
+
+    private void decodeBinary(byte[] fullVal) {
+        if (fullVal[1] != VERSION) {
+            throw new IllegalArgumentException("unknown stored format version " + fullVal[1]);
+        }
+        this.codec = fullVal[2];
+        this.chunked = fullVal[3] == 1;
+        this.flags = getInt(fullVal, 4);
+        this.ttl = getInt(fullVal, 8);
+        this.cas = getLong(fullVal, 16);
+        this.data = fullVal;
+        this.offset = HEADER_SIZE;
+        if (codec == Compression.NONE && !chunked) {
+            this.size = Math.max(0, Math.min(getInt(fullVal, 12), fullVal.length - HEADER_SIZE));
+            this.length = size;
+        } else {
+            this.size = getInt(fullVal, 12);
+            this.length = fullVal.length - HEADER_SIZE;
+            if (size < 0) {
+                throw new IllegalArgumentException("bad compressed size " + size);
+            }
+        }
+    }
+
+    private void decodeText(byte[] fullVal) {
+        int pos = 0;
+        int[] fields = new int[3];
+        for (int i = 0; i < fields.length; i++) {
+            int n = 0;
+            while (pos < fullVal.length && fullVal[pos] >= '0' && fullVal[pos] <= '9') {
+                n = n * 10 + (fullVal[pos++] - '0');
+            }
+            fields[i] = n;
+            // separator, or the end of the header line
+            pos++;
+        }
+        if (pos < fullVal.length && fullVal[pos - 1] == '\r' && fullVal[pos] == '\n') {
+            pos++;
+        }
+
+        this.flags = fields[0];
+        this.ttl = fields[1];
+        this.size = Math.max(0, Math.min(fields[2], fullVal.length - pos));
+        this.data = fullVal;
+        this.offset = pos;
+        this.length = size;
     }
 
-    public StoredVal(String fullVal) {
+    /**
+     * @return an item of size bytes whose value is stored in chunks described by manifest
+     */
+    static StoredVal chunked(int flags, int ttl, int size, byte[] manifest) {
+        StoredVal item = new StoredVal(flags, ttl, size, manifest);
+        item.length = manifest.length;
+        item.chunked = true;
+        return item;
+    }
+
+    public boolean isCompressed() {
+        return codec != Compression.NONE;
+    }
+
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    /**
+     * @return the manifest of a chunked item
+     */
+    byte[] getManifest() {
+        return Arrays.copyOfRange(data, offset, offset + length);
+    }
+
+    /**
+     * @return a copy holding the value uncompressed, this item if it is not compressed
+     */
+    public StoredVal inflate() {
+        if (codec == Compression.NONE) {
+            return this;
+        }
+        StoredVal inflated = new StoredVal(flags, ttl, size, Compression.decompress(codec, data, offset, length, size));
+        inflated.cas = cas;
+        return inflated;
+    }
+
+    /**
+     * @return the value as its own array, copied only if it is part of a larger record
+     */
+    public byte[] getVal() {
+        checkInflated();
+        if (offset == 0 && size == data.length) {
+            return data;
+        }
+        return Arrays.copyOfRange(data, offset, offset + size);
+    }
 
-        String[] lines = fullVal.split("\\r?\\n");
+    /**
+     * @return the value wrapped without copying
+     */
+    public ByteBuf getValBuf() {
+        checkInflated();
+        return Unpooled.wrappedBuffer(data, offset, size);
+    }
 
-        String extVal = lines[0];
-        String[] subLines = extVal.split(" ");
-        this.flags = Integer.parseInt(subLines[0]);
-        this.ttl = Integer.parseInt(subLines[1]);
-        this.size = Integer.parseInt(subLines[2]);
+    /**
+     * Copies the value to the end of out
+     */
+    public void writeVal(ByteBuf out) {
+        checkInflated();
+        out.writeBytes(data, offset, size);
+    }
 
-        StringBuilder valSb = new StringBuilder();
-        int len = lines.length;
-        for (int i = 1; i < len; i++) {
-            valSb.append(lines[i]);
-            valSb.append("\r\n");
+    private void checkInflated() {
+        if (codec != Compression.NONE) {
+            throw new IllegalStateException("value is compressed, inflate first");
+        }
+        if (chunked) {
+            throw new IllegalStateException("value is stored in chunks");
         }
-        this.val = valSb.toString();
     }
 
-    public String getFullVal() {
-        StringBuilder sb = new StringBuilder();
-        sb.append(flags);
-        sb.append(" ");
-        sb.append(ttl);
-        sb.append(" ");
-        sb.append(size);
-        sb.append("\r\n");
-        sb.append(val);
+    /**
+     * @return the record in the binary format, a compressed value stays compressed
+     */
+    public byte[] getFullVal() {
+        return getFullVal(codec, data, offset, length);
+    }
+
+    /**
+     * @return the record in the binary format, with block as the value compressed by codec
+     */
+    byte[] getFullVal(byte codec, byte[] block, int blockOffset, int blockLength) {
+        byte[] fullVal = new byte[HEADER_SIZE + blockLength];
+        fullVal[0] = MAGIC;
+        fullVal[1] = VERSION;
+        fullVal[2] = codec;
+        fullVal[3] = (byte) (chunked ? 1 : 0);
+        putInt(fullVal, 4, flags);
+        putInt(fullVal, 8, ttl);
+        putInt(fullVal, 12, size);
+        putLong(fullVal, 16, cas);
+        System.arraycopy(block, blockOffset, fullVal, HEADER_SIZE, blockLength);
+
+        return fullVal;
+    }
+
+    private static int getInt(byte[] b, int i) {
+        return (b[i] & 0xff) << 24 | (b[i + 1] & 0xff) << 16 | (b[i + 2] & 0xff) << 8 | (b[i + 3] & 0xff);
+    }
+
+    private static long getLong(byte[] b, int i) {
+        return (getInt(b, i) & 0xffffffffL) << 32 | (getInt(b, i + 4) & 0xffffffffL);
+    }
+
+    private static void putInt(byte[] b, int i, int v) {
+        b[i] = (byte) (v >>> 24);
+        b[i + 1] = (byte) (v >>> 16);
+        b[i + 2] = (byte) (v >>> 8);
+        b[i + 3] = (byte) v;
+    }
 
-        return sb.toString();
+    private static void putLong(byte[] b, int i, long v) {
+        putInt(b, i, (int) (v >>> 32));
+        putInt(b, i + 4, (int) v);
     }
 }
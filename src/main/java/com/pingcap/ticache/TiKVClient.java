@@ -0,0 +1,244 @@
+package com.pingcap.ticache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tikv.common.TiConfiguration;
+import org.tikv.common.TiSession;
+import org.tikv.common.exception.RawCASConflictException;
+import org.tikv.common.region.TiRegion;
+import org.tikv.kvproto.Kvrpcpb;
+import org.tikv.raw.RawKVClient;
+import org.tikv.shade.com.google.protobuf.ByteString;
+import org.tikv.shade.com.google.protobuf.UnsafeByteOperations;
+
+/**
+ * tikv client wrapper
+ *
+ * The raw client blocks, its calls run on a pool of their own so callers
+ * only ever wait on futures.
+ *
+ */
+public class TiKVClient implements Client {
+
+    private static Logger logger = LoggerFactory.getLogger(TiKVClient.class);
+
+    /**
+     * seconds a tombstone lives with native ttl
+     */
+    private static final long TOMBSTONE_TTL = 1;
+
+    private TiSession session = null;
+
+    private RawKVClient client = null;
+
+    private final ExecutorService executor;
+
+    /**
+     * write ttls through to tikv, which needs storage.enable-ttl on the cluster
+     */
+    private final boolean nativeTtl;
+
+    public TiKVClient(String address, int threads, boolean nativeTtl) {
+
+        TiConfiguration conf = TiConfiguration.createRawDefault(address);
+        // compare-and-swap is only linearizable with other writes when every write takes the atomic path
+        conf.setEnableAtomicForCAS(true);
+        session = TiSession.create(conf);
+        client = session.createRawClient();
+        executor = Executors.newFixedThreadPool(threads, new DefaultThreadFactory("ticache-tikv", true));
+        this.nativeTtl = nativeTtl;
+
+        logger.info("init RawKVClient address=" + address + " client=" + client + " nativeTtl=" + nativeTtl);
+    }
+
+    private <T> CompletableFuture<T> call(String op, Supplier<T> body) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return body.get();
+            } catch (RuntimeException e) {
+                logger.error("client " + op + " error", e);
+                throw e;
+            }
+        }, executor);
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(String key, byte[] value) {
+        return call("put", () -> {
+            client.put(ByteString.copyFromUtf8(key), UnsafeByteOperations.unsafeWrap(value));
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getAsync(String key) {
+        return call("get", () -> {
+            Optional<ByteString> bValue = client.get(ByteString.copyFromUtf8(key));
+            return bValue.isPresent() ? bValue.get().toByteArray() : null;
+        });
+    }
+
+    /**
+     * Reads all keys with a single batch request, the tikv client splits it
+     * by region and sends the per-region requests concurrently.
+     */
+    @Override
+    public CompletableFuture<Map<String, byte[]>> batchGetAsync(String prefix, List<String> keys) {
+        return call("batchGet", () -> {
+            List<ByteString> bKeys = new ArrayList<>(keys.size());
+            for (String key : new LinkedHashSet<>(keys)) {
+                bKeys.add(ByteString.copyFromUtf8(prefix + key));
+            }
+            Map<String, byte[]> values = new HashMap<>();
+            for (Kvrpcpb.KvPair pair : client.batchGet(bKeys)) {
+                if (pair.getValue().isEmpty()) {
+                    continue;
+                }
+                String key = pair.getKey().toStringUtf8().substring(prefix.length());
+                values.put(key, pair.getValue().toByteArray());
+            }
+            return values;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String key) {
+        return call("delete", () -> {
+            client.delete(ByteString.copyFromUtf8(key));
+            return null;
+        });
+    }
+
+    /**
+     * Writes all pairs with a single batch request, split by region by the tikv client.
+     * Values are handed over without copying.
+     */
+    @Override
+    public CompletableFuture<Void> batchPutAsync(Map<String, byte[]> pairs) {
+        return call("batchPut", () -> {
+            Map<ByteString, ByteString> bPairs = new HashMap<>(pairs.size() * 2);
+            for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+                bPairs.put(ByteString.copyFromUtf8(pair.getKey()), UnsafeByteOperations.unsafeWrap(pair.getValue()));
+            }
+            client.batchPut(bPairs);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Map<String, byte[]>> scanAsync(String startKey, String endKey, int limit) {
+        return call("scan", () -> {
+            Map<String, byte[]> values = new LinkedHashMap<>();
+            List<Kvrpcpb.KvPair> pairs =
+                    client.scan(ByteString.copyFromUtf8(startKey), ByteString.copyFromUtf8(endKey), limit);
+            for (Kvrpcpb.KvPair pair : pairs) {
+                values.put(pair.getKey().toStringUtf8(), pair.getValue().toByteArray());
+            }
+            return values;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> compareAndSetAsync(String key, byte[] expected, byte[] value) {
+        return call("compareAndSet", () -> {
+            Optional<ByteString> prevValue = expected == null
+                    ? Optional.empty() : Optional.of(UnsafeByteOperations.unsafeWrap(expected));
+            try {
+                client.compareAndSet(ByteString.copyFromUtf8(key), prevValue, UnsafeByteOperations.unsafeWrap(value));
+                return true;
+            } catch (RawCASConflictException e) {
+                return false;
+            }
+        });
+    }
+
+    @Override
+    public boolean supportsTtl() {
+        return nativeTtl;
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(String key, byte[] value, long ttlSeconds) {
+        if (!nativeTtl || ttlSeconds <= 0) {
+            return putAsync(key, value);
+        }
+        return call("put", () -> {
+            client.put(ByteString.copyFromUtf8(key), UnsafeByteOperations.unsafeWrap(value), ttlSeconds);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> compareAndSetAsync(String key, byte[] expected, byte[] value, long ttlSeconds) {
+        if (!nativeTtl || ttlSeconds <= 0) {
+            return compareAndSetAsync(key, expected, value);
+        }
+        return call("compareAndSet", () -> {
+            Optional<ByteString> prevValue = expected == null
+                    ? Optional.empty() : Optional.of(UnsafeByteOperations.unsafeWrap(expected));
+            try {
+                client.compareAndSet(ByteString.copyFromUtf8(key), prevValue,
+                        UnsafeByteOperations.unsafeWrap(value), ttlSeconds);
+                return true;
+            } catch (RawCASConflictException e) {
+                return false;
+            }
+        });
+    }
+
+    /**
+     * The raw client has no conditional delete, the value is swapped for an
+     * empty tombstone as in Client. With native ttl the tombstone expires a
+     * second later. It is never deleted blindly afterwards, that would also
+     * drop a set landing in between; tombstones read as absent and go with
+     * the range delete of their generation.
+     */
+    @Override
+    public CompletableFuture<Boolean> deleteIfAsync(String key, byte[] expected) {
+        if (!nativeTtl) {
+            return compareAndSetAsync(key, expected, new byte[0]);
+        }
+        return compareAndSetAsync(key, expected, new byte[0], TOMBSTONE_TTL);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteRangeAsync(String startKey, String endKey) {
+        return call("deleteRange", () -> {
+            client.deleteRange(ByteString.copyFromUtf8(startKey), ByteString.copyFromUtf8(endKey));
+            return null;
+        });
+    }
+
+    /**
+     * @return region id and the store of its leader, from the region cache of the tikv client
+     */
+    @Override
+    public String region(String key) {
+        try {
+            TiRegion region = session.getRegionManager().getRegionByKey(ByteString.copyFromUtf8(key));
+            return region.getId() + "@" + region.getLeader().getStoreId();
+        } catch (Exception e) {
+            return "?";
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        executor.shutdown();
+        client.close();
+        session.close();
+    }
+}
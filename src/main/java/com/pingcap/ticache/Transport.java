@@ -0,0 +1,82 @@
+package com.pingcap.ticache;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Netty transport the server runs on
+ *
+ * transport auto picks native epoll when it is available and falls back
+ * to nio, epoll insists on it. With epoll and reuse-port every boss thread
+ * binds the port with its own server socket, so the kernel spreads
+ * incoming connections over them instead of a single acceptor.
+ *
+ */
+@Component
+public class Transport {
+
+    private static Logger logger = LoggerFactory.getLogger(Transport.class);
+
+    private final boolean epoll;
+
+    private final boolean reusePort;
+
+    private final int bossCount;
+
+    public Transport(ServerProperties serverProperties) {
+        String transport = serverProperties.getTransport();
+        switch (transport) {
+            case "auto":
+                epoll = Epoll.isAvailable();
+                break;
+            case "epoll":
+                if (!Epoll.isAvailable()) {
+                    throw new IllegalStateException("epoll transport is not available", Epoll.unavailabilityCause());
+                }
+                epoll = true;
+                break;
+            case "nio":
+                epoll = false;
+                break;
+            default:
+                throw new IllegalArgumentException("unknown transport " + transport);
+        }
+        this.reusePort = epoll && serverProperties.isReusePort();
+        this.bossCount = serverProperties.getBossCount();
+
+        logger.info("transport " + (epoll ? "epoll" : "nio") + " reusePort=" + reusePort + " acceptors=" + acceptors());
+    }
+
+    public boolean isEpoll() {
+        return epoll;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * @return the number of server sockets bound to the port
+     */
+    public int acceptors() {
+        return reusePort ? Math.max(1, bossCount) : 1;
+    }
+
+    public Class<? extends ServerSocketChannel> serverChannelClass() {
+        return epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    public EventLoopGroup newEventLoopGroup(int threads, String name) {
+        DefaultThreadFactory threadFactory = new DefaultThreadFactory(name);
+        return epoll ? new EpollEventLoopGroup(threads, threadFactory) : new NioEventLoopGroup(threads, threadFactory);
+    }
+}
@@ -0,0 +1,269 @@
+package com.pingcap.ticache;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces plain writes from all connections into batch puts
+ *
+ * A write opens a batch; the batch is sent once the window has passed
+ * since then, or earlier when it reaches the count or byte limit. Several
+ * batches may be committing at once. Each write's future completes when
+ * the batch holding it has committed.
+ *
+ * Writes to the same key within one batch collapse to the last of them.
+ * Commands of one connection touching the same key never overlap, so a
+ * batch never reorders writes a single client can observe.
+ *
+ */
+@Component
+@ManagedResource(objectName = "com.pingcap.ticache:type=WriteBatcher")
+public class WriteBatcher {
+
+    private static Logger logger = LoggerFactory.getLogger(WriteBatcher.class);
+
+    private static class Write {
+
+        final String key;
+
+        final byte[] value;
+
+        final long enqueuedAt = System.nanoTime();
+
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Write(String key, byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final Client client;
+
+    private final boolean enabled;
+
+    private final long windowNanos;
+
+    private final int maxCount;
+
+    private final long maxBytes;
+
+    private final BlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+
+    private final ExecutorService collector;
+
+    private final ExecutorService committers;
+
+    private volatile boolean running = true;
+
+    private final Histogram batchSizes = new ConcurrentHistogram(3);
+
+    private final Histogram batchBytes = new ConcurrentHistogram(3);
+
+    private final Histogram commitMicros = new ConcurrentHistogram(3);
+
+    private final Histogram writeMicros = new ConcurrentHistogram(3);
+
+    public WriteBatcher(Client client, ServerProperties serverProperties) {
+        ServerProperties.BatchProperties props = serverProperties.getBatch();
+        this.client = client;
+        this.enabled = props.isEnabled();
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(props.getWindowMicros());
+        this.maxCount = props.getMaxCount();
+        this.maxBytes = props.getMaxBytes();
+
+        if (!enabled) {
+            collector = null;
+            committers = null;
+            return;
+        }
+        collector = Executors.newSingleThreadExecutor(new DefaultThreadFactory("ticache-batch", true));
+        committers = Executors.newFixedThreadPool(props.getCommitThreads(),
+                new DefaultThreadFactory("ticache-batch-commit", true));
+        collector.execute(this::collect);
+        logger.info("write batching enabled window=" + props.getWindowMicros() + "us maxCount=" + maxCount
+                + " maxBytes=" + maxBytes);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queues a write for the next batch, the value must not be modified afterwards
+     */
+    public CompletableFuture<Void> put(String key, byte[] value) {
+        Write write = new Write(key, value);
+        queue.add(write);
+        return write.done;
+    }
+
+    private void collect() {
+        List<Write> batch = new ArrayList<>();
+        while (running) {
+            try {
+                Write first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long bytes = first.value.length;
+                long deadline = first.enqueuedAt + windowNanos;
+                while (batch.size() < maxCount && bytes < maxBytes) {
+                    Write next = queue.poll();
+                    if (next == null) {
+                        long wait = deadline - System.nanoTime();
+                        if (wait <= 0) {
+                            break;
+                        }
+                        next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                    }
+                    batch.add(next);
+                    bytes += next.value.length;
+                }
+
+                List<Write> sealed = batch;
+                long sealedBytes = bytes;
+                batch = new ArrayList<>();
+                committers.execute(() -> commit(sealed, sealedBytes));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                logger.error("write batch error", e);
+                for (Write write : batch) {
+                    write.done.completeExceptionally(e);
+                }
+                batch = new ArrayList<>();
+            }
+        }
+    }
+
+    private void commit(List<Write> batch, long bytes) {
+        Map<String, byte[]> pairs = new LinkedHashMap<>(batch.size() * 2);
+        for (Write write : batch) {
+            pairs.put(write.key, write.value);
+        }
+
+        long start = System.nanoTime();
+        try {
+            client.batchPut(pairs);
+        } catch (Exception e) {
+            for (Write write : batch) {
+                write.done.completeExceptionally(e);
+            }
+            return;
+        }
+        long end = System.nanoTime();
+
+        batchSizes.recordValue(batch.size());
+        batchBytes.recordValue(bytes);
+        commitMicros.recordValue(TimeUnit.NANOSECONDS.toMicros(end - start));
+        for (Write write : batch) {
+            writeMicros.recordValue(TimeUnit.NANOSECONDS.toMicros(end - write.enqueuedAt));
+            write.done.complete(null);
+        }
+    }
+
+    @ManagedAttribute
+    public long getBatches() {
+        return batchSizes.getTotalCount();
+    }
+
+    @ManagedAttribute
+    public double getBatchSizeMean() {
+        return batchSizes.getMean();
+    }
+
+    @ManagedAttribute
+    public long getBatchSizeP50() {
+        return batchSizes.getValueAtPercentile(50);
+    }
+
+    @ManagedAttribute
+    public long getBatchSizeP99() {
+        return batchSizes.getValueAtPercentile(99);
+    }
+
+    @ManagedAttribute
+    public long getBatchSizeMax() {
+        return batchSizes.getMaxValue();
+    }
+
+    @ManagedAttribute
+    public double getBatchBytesMean() {
+        return batchBytes.getMean();
+    }
+
+    @ManagedAttribute
+    public long getCommitMicrosP50() {
+        return commitMicros.getValueAtPercentile(50);
+    }
+
+    @ManagedAttribute
+    public long getCommitMicrosP99() {
+        return commitMicros.getValueAtPercentile(99);
+    }
+
+    /**
+     * from queueing a write to its batch being committed
+     */
+    @ManagedAttribute
+    public long getWriteMicrosP50() {
+        return writeMicros.getValueAtPercentile(50);
+    }
+
+    @ManagedAttribute
+    public long getWriteMicrosP99() {
+        return writeMicros.getValueAtPercentile(99);
+    }
+
+    @ManagedAttribute
+    public long getWriteMicrosP999() {
+        return writeMicros.getValueAtPercentile(99.9);
+    }
+
+    @ManagedAttribute
+    public long getWriteMicrosMax() {
+        return writeMicros.getMaxValue();
+    }
+
+    @ManagedOperation
+    public void resetHistograms() {
+        batchSizes.reset();
+        batchBytes.reset();
+        commitMicros.reset();
+        writeMicros.reset();
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (collector != null) {
+            collector.shutdownNow();
+            committers.shutdown();
+        }
+    }
+}
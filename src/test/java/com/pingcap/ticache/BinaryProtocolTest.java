@@ -0,0 +1,143 @@
+package com.pingcap.ticache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static com.pingcap.ticache.BinaryCodec.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Binary protocol requests through the codec and handler
+ *
+ */
+public class BinaryProtocolTest {
+
+    private TestHandler handler;
+
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() {
+        handler = new TestHandler(new MemoryClient(), new ServerProperties());
+        channel = new EmbeddedChannel(new BinaryCodec(), handler.getHandler());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        channel.finishAndReleaseAll();
+        handler.close();
+    }
+
+    @Test
+    public void quitIsAnsweredBeforeTheClose() {
+        ByteBuf replies = request(request(QUIT, "", 0, new byte[0], new byte[0]));
+
+        assertEquals(HEADER_SIZE, replies.readableBytes());
+        assertEquals(MAGIC_RESPONSE, replies.getByte(0));
+        assertEquals(QUIT, replies.getUnsignedByte(1));
+        assertEquals(STATUS_OK, replies.getShort(6));
+        replies.release();
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void quietQuitClosesSilently() {
+        ByteBuf replies = request(request(QUITQ, "", 0, new byte[0], new byte[0]));
+
+        assertEquals(0, replies.readableBytes());
+        replies.release();
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void setWithCasOnlyReplacesTheVersionItWasGiven() {
+        assertEquals(STATUS_OK, status(request(request(SET, "k", 0, new byte[8], bytes("v1")))));
+        long cas = casOf(request(request(GET, "k", 0, new byte[0], new byte[0])));
+        assertNotEquals(0, cas);
+
+        assertEquals(STATUS_KEY_EXISTS, status(request(request(SET, "k", cas + 1, new byte[8], bytes("v2")))));
+        assertEquals(STATUS_OK, status(request(request(SET, "k", cas, new byte[8], bytes("v2")))));
+        // the set gave the item a new version
+        assertEquals(STATUS_KEY_EXISTS, status(request(request(REPLACE, "k", cas, new byte[8], bytes("v3")))));
+        assertEquals(STATUS_KEY_NOT_FOUND, status(request(request(SET, "missing", cas, new byte[8], bytes("v")))));
+
+        ByteBuf get = request(request(GET, "k", 0, new byte[0], new byte[0]));
+        assertEquals("v2", get.toString(HEADER_SIZE + 4, get.readableBytes() - HEADER_SIZE - 4,
+                StandardCharsets.US_ASCII));
+        get.release();
+    }
+
+    @Test
+    public void deleteAndAppendWithCasAreConditional() {
+        request(request(SET, "k", 0, new byte[8], bytes("v"))).release();
+        long cas = casOf(request(request(GET, "k", 0, new byte[0], new byte[0])));
+
+        assertEquals(STATUS_KEY_EXISTS, status(request(request(APPEND, "k", cas + 1, new byte[0], bytes("x")))));
+        assertEquals(STATUS_OK, status(request(request(APPEND, "k", cas, new byte[0], bytes("x")))));
+        cas = casOf(request(request(GET, "k", 0, new byte[0], new byte[0])));
+
+        assertEquals(STATUS_KEY_EXISTS, status(request(request(DELETE, "k", cas + 1, new byte[0], new byte[0]))));
+        assertEquals(STATUS_OK, status(request(request(DELETE, "k", cas, new byte[0], new byte[0]))));
+        assertEquals(STATUS_KEY_NOT_FOUND, status(request(request(DELETE, "k", cas, new byte[0], new byte[0]))));
+    }
+
+    @Test
+    public void mutationsWithoutCasSupportRejectOne() {
+        assertEquals(STATUS_INVALID_ARGUMENTS, status(request(request(ADD, "k", 1, new byte[8], bytes("v")))));
+        assertEquals(STATUS_KEY_NOT_FOUND, status(request(request(GET, "k", 0, new byte[0], new byte[0]))));
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static short status(ByteBuf reply) {
+        short status = reply.getShort(6);
+        reply.release();
+        return status;
+    }
+
+    private static long casOf(ByteBuf reply) {
+        assertEquals(STATUS_OK, reply.getShort(6));
+        long cas = reply.getLong(16);
+        reply.release();
+        return cas;
+    }
+
+    static ByteBuf request(int opcode, String key, long cas, byte[] extras, byte[] value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.US_ASCII);
+        ByteBuf buf = Unpooled.buffer();
+        buf.writeByte(MAGIC_REQUEST);
+        buf.writeByte(opcode);
+        buf.writeShort(keyBytes.length);
+        buf.writeByte(extras.length);
+        buf.writeByte(0);
+        buf.writeShort(0);
+        buf.writeInt(extras.length + keyBytes.length + value.length);
+        buf.writeInt(0);
+        buf.writeLong(cas);
+        return buf.writeBytes(extras).writeBytes(keyBytes).writeBytes(value);
+    }
+
+    /**
+     * @return every reply byte written in answer to request
+     */
+    private ByteBuf request(ByteBuf request) {
+        channel.writeInbound(request);
+        ByteBuf replies = Unpooled.buffer();
+        ByteBuf reply;
+        while ((reply = channel.readOutbound()) != null) {
+            replies.writeBytes(reply);
+            reply.release();
+        }
+        return replies;
+    }
+}
@@ -0,0 +1,223 @@
+package com.pingcap.ticache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Gets of chunked values streamed chunk by chunk, also while other
+ * connections replace or delete the key
+ *
+ */
+public class ChunkStreamTest {
+
+    private static final String VALUE = String.join("", Collections.nCopies(10, "0123456789"));
+
+    private final HeldClient client = new HeldClient(new MemoryClient());
+
+    private TestHandler handler;
+
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() {
+        ServerProperties serverProperties = new ServerProperties();
+        serverProperties.getChunk().setEnabled(true);
+        serverProperties.getChunk().setThreshold(64);
+        serverProperties.getChunk().setChunkSize(16);
+        serverProperties.getChunk().setReadAhead(2);
+        handler = new TestHandler(client, serverProperties);
+        channel = new EmbeddedChannel(new CommandDecoder(handler.getChunkStore()), handler.getReplyEncoder(),
+                handler.getHandler());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        channel.finishAndReleaseAll();
+        handler.close();
+    }
+
+    @Test
+    public void getStreamsTheChunksInOrder() {
+        assertEquals("STORED\r\n", request("set big 0 0 100\r\n" + VALUE + "\r\n"));
+
+        assertEquals("VALUE big 0 100\r\n" + VALUE + "\r\nEND\r\n", request("get big\r\n"));
+        assertEquals("VALUE big 0 100\r\n" + VALUE + "\r\nEND\r\n", request("get big\r\n"));
+    }
+
+    @Test
+    public void getWaitsForChunkReadsStillOnTheirWay() {
+        assertEquals("STORED\r\n", request("set big 0 0 100\r\n" + VALUE + "\r\n"));
+
+        client.holdReads();
+        String replies = request("get big\r\n");
+        assertEquals(2, client.held());
+        assertEquals("VALUE big 0 100\r\n", replies);
+
+        client.release();
+        replies += replies();
+        assertEquals("VALUE big 0 100\r\n" + VALUE + "\r\nEND\r\n", replies);
+        assertTrue(channel.isOpen());
+    }
+
+    @Test
+    public void streamSurvivesAReplaceAndDeleteOfTheKey() {
+        assertEquals("STORED\r\n", request("set big 0 0 100\r\n" + VALUE + "\r\n"));
+
+        client.holdReads();
+        String replies = request("get big\r\n");
+        assertEquals(2, client.held());
+
+        byte[] other = VALUE.toUpperCase().getBytes(StandardCharsets.US_ASCII);
+        assertEquals(Reply.STORED, handler.execute(new Command("replace", "big", 0, 0, other.length, other)));
+        assertEquals(Reply.DELETED, handler.execute(new Command("delete", "big", 0, 0, 0, null)));
+
+        client.release();
+        replies += replies();
+        assertEquals("VALUE big 0 100\r\n" + VALUE + "\r\nEND\r\n", replies);
+        assertTrue(channel.isOpen());
+    }
+
+    @Test
+    public void streamSurvivesACasOverTheKey() {
+        assertEquals("STORED\r\n", request("set big 0 0 100\r\n" + VALUE + "\r\n"));
+        String gets = request("gets big\r\n");
+        long cas = Long.parseUnsignedLong(gets.substring("VALUE big 0 100 ".length(), gets.indexOf("\r\n")));
+
+        client.holdReads();
+        String replies = request("get big\r\n");
+        Command command = new Command("cas", "big", 0, 0, 1, "x".getBytes(StandardCharsets.US_ASCII));
+        command.setCas(cas);
+        assertEquals(Reply.STORED, handler.execute(command));
+
+        client.release();
+        replies += replies();
+        assertEquals("VALUE big 0 100\r\n" + VALUE + "\r\nEND\r\n", replies);
+        assertEquals("VALUE big 0 1\r\nx\r\nEND\r\n", request("get big\r\n"));
+    }
+
+    @Test(timeout = 10000)
+    public void setWaitsForItsChunksOffTheEventLoop() {
+        client.holdWrites();
+        assertEquals("", request("set big 0 0 100\r\n" + VALUE + "\r\nget small\r\n"));
+        assertEquals(7, client.held());
+
+        client.release();
+        assertEquals("STORED\r\nEND\r\n", replies());
+        assertEquals("VALUE big 0 100\r\n" + VALUE + "\r\nEND\r\n", request("get big\r\n"));
+    }
+
+    @Test(timeout = 10000)
+    public void failedChunkWriteAnswersServerError() {
+        client.fail();
+        assertEquals("SERVER_ERROR\r\nEND\r\n", request("set big 0 0 100\r\n" + VALUE + "\r\nget big\r\n"));
+    }
+
+    private String request(String lines) {
+        channel.writeInbound(Unpooled.copiedBuffer(lines, StandardCharsets.US_ASCII));
+        return replies();
+    }
+
+    private String replies() {
+        channel.runPendingTasks();
+        StringBuilder sb = new StringBuilder();
+        ByteBuf reply;
+        while ((reply = channel.readOutbound()) != null) {
+            sb.append(reply.toString(StandardCharsets.US_ASCII));
+            reply.release();
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Holds chunk reads and writes back until released, reads then read what
+     * is stored at that time, or fails chunk writes
+     */
+    static class HeldClient extends ForwardingClient {
+
+        private final String chunkPrefix = Keyspace.chunkPrefix(0);
+
+        private final List<Runnable> held = new ArrayList<>();
+
+        private boolean holdingReads;
+
+        private boolean holdingWrites;
+
+        private boolean failing;
+
+        HeldClient(Client backend) {
+            super(backend);
+        }
+
+        synchronized void holdReads() {
+            holdingReads = true;
+        }
+
+        synchronized void holdWrites() {
+            holdingWrites = true;
+        }
+
+        synchronized void fail() {
+            failing = true;
+        }
+
+        synchronized int held() {
+            return held.size();
+        }
+
+        void release() {
+            List<Runnable> reads;
+            synchronized (this) {
+                holdingReads = false;
+                holdingWrites = false;
+                reads = new ArrayList<>(held);
+                held.clear();
+            }
+            reads.forEach(Runnable::run);
+        }
+
+        @Override
+        public CompletableFuture<byte[]> getAsync(String key) {
+            synchronized (this) {
+                if (holdingReads && key.startsWith(chunkPrefix)) {
+                    CompletableFuture<byte[]> read = new CompletableFuture<>();
+                    held.add(() -> read.complete(backend.getBytes(key)));
+                    return read;
+                }
+            }
+            return backend.getAsync(key);
+        }
+
+        @Override
+        public CompletableFuture<Void> putAsync(String key, byte[] value) {
+            synchronized (this) {
+                if (failing && key.startsWith(chunkPrefix)) {
+                    CompletableFuture<Void> write = new CompletableFuture<>();
+                    write.completeExceptionally(new IllegalStateException("chunk write failed"));
+                    return write;
+                }
+                if (holdingWrites && key.startsWith(chunkPrefix)) {
+                    CompletableFuture<Void> write = new CompletableFuture<>();
+                    held.add(() -> {
+                        backend.putBytes(key, value);
+                        write.complete(null);
+                    });
+                    return write;
+                }
+            }
+            return backend.putAsync(key, value);
+        }
+    }
+}
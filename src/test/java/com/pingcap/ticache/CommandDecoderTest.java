@@ -0,0 +1,152 @@
+package com.pingcap.ticache;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Text protocol lines and data blocks into Command, as whole requests and torn into pieces
+ *
+ */
+public class CommandDecoderTest {
+
+    private final EmbeddedChannel channel = new EmbeddedChannel(new CommandDecoder());
+
+    @After
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void storageCommandArrivingOneByteAtATime() {
+        byte[] request = ascii("set k 5 10 3 noreply\r\nabc\r\n");
+        for (byte b : request) {
+            channel.writeInbound(Unpooled.wrappedBuffer(new byte[] {b}));
+        }
+
+        List<Command> commands = commands();
+        assertEquals(1, commands.size());
+        Command set = commands.get(0);
+        assertEquals("set", set.getCmd());
+        assertEquals("k", set.getKey());
+        assertEquals(5, set.getFlags());
+        assertEquals(10, set.getTtl());
+        assertEquals(3, set.getSize());
+        assertArrayEquals(ascii("abc"), set.getVal());
+        assertTrue(set.isNoreply());
+    }
+
+    @Test
+    public void pipelinedCommandsInOneRead() {
+        List<Command> commands = decode("get a b c\r\ngets d\r\nincr n 5\r\ndelete k noreply\r\n"
+                + "touch k -1\r\nflush_all 10\r\nverbosity 1\r\nversion\r\nstats latency\r\n");
+
+        assertEquals(Arrays.asList("get", "gets", "incr", "delete", "touch", "flush_all", "verbosity",
+                "version", "stats"), names(commands));
+        assertEquals(Arrays.asList("a", "b", "c"), commands.get(0).getKeys());
+        assertEquals(Collections.singletonList("d"), commands.get(1).getKeys());
+        assertArrayEquals(ascii("5"), commands.get(2).getVal());
+        assertTrue(commands.get(3).isNoreply());
+        assertEquals(-1, commands.get(4).getTtl());
+        assertEquals(10, commands.get(5).getTtl());
+        assertEquals(Collections.singletonList("latency"), commands.get(8).getKeys());
+    }
+
+    @Test
+    public void casTakesAnUnsigned64BitUnique() {
+        Command cas = decode("cas k 0 0 1 18446744073709551615\r\nx\r\n").get(0);
+
+        assertEquals("cas", cas.getCmd());
+        assertEquals(-1L, cas.getCas());
+        assertArrayEquals(ascii("x"), cas.getVal());
+    }
+
+    @Test
+    public void valueSplitAcrossReadsWaitsForTheWholeBlock() {
+        assertEquals(0, decode("set k 0 0 10\r\n01234").size());
+        assertEquals(0, decode("56789\r").size());
+
+        List<Command> commands = decode("\nget k\r\n");
+        assertEquals(Arrays.asList("set", "get"), names(commands));
+        assertArrayEquals(ascii("0123456789"), commands.get(0).getVal());
+    }
+
+    @Test
+    public void errorsAreAnsweredAndDecodingGoesOn() {
+        List<Command> commands = decode("bogus\r\nset k 0 0 3\r\nabcd\r\nget " + repeat('k', 251) + "\r\n"
+                + "set k x 0 1\r\nv\r\ndelete k 10\r\nget k\r\n");
+
+        assertEquals(Arrays.asList("ERROR\r\n", "CLIENT_ERROR bad data chunk\r\n",
+                "CLIENT_ERROR bad command line format\r\n", "CLIENT_ERROR bad command line format\r\n",
+                "CLIENT_ERROR bad command line format.  Usage: delete <key> [noreply]\r\n"), errors(commands));
+        assertEquals("get", commands.get(commands.size() - 1).getCmd());
+    }
+
+    @Test
+    public void lineTooLongIsDropped() {
+        List<Command> commands = decode(repeat('x', CommandDecoder.MAX_LINE_LENGTH + 1));
+        assertEquals(Collections.singletonList("CLIENT_ERROR line too long\r\n"), errors(commands));
+
+        commands = decode("still the same line\r\nversion\r\n");
+        assertEquals(Collections.singletonList("version"), names(commands));
+    }
+
+    @Test
+    public void nothingIsDecodedAfterQuit() {
+        List<Command> commands = decode("quit\r\nget k\r\n");
+
+        assertEquals(Collections.singletonList("quit"), names(commands));
+        assertEquals(0, decode("get k\r\n").size());
+    }
+
+    private List<Command> decode(String request) {
+        channel.writeInbound(Unpooled.copiedBuffer(request, StandardCharsets.US_ASCII));
+        return commands();
+    }
+
+    private List<Command> commands() {
+        List<Command> commands = new ArrayList<>();
+        Command command;
+        while ((command = channel.readInbound()) != null) {
+            commands.add(command);
+        }
+        return commands;
+    }
+
+    private static List<String> names(List<Command> commands) {
+        List<String> names = new ArrayList<>();
+        for (Command command : commands) {
+            names.add(command.getCmd());
+        }
+        return names;
+    }
+
+    private static List<String> errors(List<Command> commands) {
+        List<String> errors = new ArrayList<>();
+        for (Command command : commands) {
+            if (command.getCmd().equals("error")) {
+                errors.add(new String(command.getVal(), StandardCharsets.US_ASCII));
+            }
+        }
+        return errors;
+    }
+
+    private static String repeat(char c, int n) {
+        return String.join("", Collections.nCopies(n, String.valueOf(c)));
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,163 @@
+package com.pingcap.ticache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Concurrent incr and add through CommandHandler against the local backends,
+ * no update may be lost and exactly one add may win
+ *
+ */
+@RunWith(Parameterized.class)
+public class CommandHandlerConcurrencyTest {
+
+    private static final int THREADS = 8;
+
+    private static final int INCRS_PER_THREAD = 250;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> backends() {
+        return Arrays.asList(new Object[][] {{"memory"}, {"local"}});
+    }
+
+    @Parameterized.Parameter
+    public String backend;
+
+    @Rule
+    public TemporaryFolder dataDir = new TemporaryFolder();
+
+    private TestHandler handler;
+
+    private ExecutorService threads;
+
+    @Before
+    public void setUp() throws Exception {
+        Client client = backend.equals("local")
+                ? new LocalClient(dataDir.getRoot().getAbsolutePath(), 1024 * 1024)
+                : new MemoryClient();
+        ServerProperties serverProperties = new ServerProperties();
+        // every thread hits the same key, conflicts must end in a retry and never in an error
+        serverProperties.getCas().setMaxRetries(100000);
+        handler = new TestHandler(client, serverProperties);
+        threads = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        threads.shutdownNow();
+        handler.close();
+    }
+
+    @Test
+    public void concurrentIncrsAreNotLost() throws Exception {
+        assertEquals(Reply.STORED, handler.execute(set("counter", "0")));
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            results.add(threads.submit(() -> {
+                start.await();
+                for (int i = 0; i < INCRS_PER_THREAD; i++) {
+                    Reply reply = handler.execute(incr("counter", "1"));
+                    assertTrue("incr answered " + reply, reply instanceof Reply.Number);
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> result : results) {
+            result.get(2, TimeUnit.MINUTES);
+        }
+
+        assertEquals(String.valueOf(THREADS * INCRS_PER_THREAD), get("counter"));
+    }
+
+    @Test
+    public void exactlyOneConcurrentAddIsStored() throws Exception {
+        int adders = 32;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Reply>> results = new ArrayList<>();
+        for (int t = 0; t < adders; t++) {
+            String value = "v" + t;
+            results.add(threads.submit(() -> {
+                start.await();
+                return handler.execute(add("contended", value));
+            }));
+        }
+        start.countDown();
+
+        int stored = 0;
+        for (Future<Reply> result : results) {
+            Reply reply = result.get(2, TimeUnit.MINUTES);
+            if (reply == Reply.STORED) {
+                stored++;
+            } else {
+                assertEquals(Reply.NOT_STORED, reply);
+            }
+        }
+        assertEquals(1, stored);
+        assertNotNull(get("contended"));
+    }
+
+    @Test
+    public void incrWrapsAroundAt64Bits() {
+        assertEquals(Reply.STORED, handler.execute(set("wrap", "18446744073709551614")));
+
+        Reply reply = handler.execute(incr("wrap", "1"));
+        assertEquals("18446744073709551615", reply.toString());
+        reply = handler.execute(incr("wrap", "3"));
+        assertEquals("2", reply.toString());
+        assertEquals("2", get("wrap"));
+    }
+
+    private static Command set(String key, String value) {
+        return storage("set", key, value);
+    }
+
+    private static Command add(String key, String value) {
+        return storage("add", key, value);
+    }
+
+    private static Command storage(String cmd, String key, String value) {
+        byte[] val = value.getBytes(StandardCharsets.US_ASCII);
+        return new Command(cmd, key, 0, 0, val.length, val);
+    }
+
+    private static Command incr(String key, String delta) {
+        return new Command("incr", key, 0, 0, 0, delta.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @return the value of key, null on a miss
+     */
+    private String get(String key) {
+        Command command = new Command("get", key, 0, 0, 0, null);
+        command.setKeys(Collections.singletonList(key));
+        Reply.Values values = (Reply.Values) handler.execute(command);
+        if (values.size() == 0) {
+            return null;
+        }
+        return new String(values.getItem(0).getVal(), StandardCharsets.US_ASCII);
+    }
+}
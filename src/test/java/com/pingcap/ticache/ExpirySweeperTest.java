@@ -0,0 +1,62 @@
+package com.pingcap.ticache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * The sweeper against the memory backend
+ *
+ */
+public class ExpirySweeperTest {
+
+    private final MemoryClient client = new MemoryClient();
+
+    private final Stats stats = new Stats();
+
+    private Keyspace keyspace;
+
+    private ExpirySweeper sweeper;
+
+    @Before
+    public void setUp() {
+        ServerProperties serverProperties = new ServerProperties();
+        serverProperties.getExpiry().setPageInterval(10);
+        keyspace = new Keyspace(client, new NearCache(serverProperties), serverProperties);
+
+        int now = (int) (System.currentTimeMillis() / 1000);
+        byte[] val = "v".getBytes(StandardCharsets.US_ASCII);
+        client.putBytes(keyspace.dataKey("expired"), new StoredVal(0, now - 10, val.length, val).getFullVal());
+        client.putBytes(keyspace.dataKey("live"), new StoredVal(0, now + 3600, val.length, val).getFullVal());
+        client.putBytes(keyspace.dataKey("tombstone"), new byte[0]);
+
+        sweeper = new ExpirySweeper(client, keyspace, stats, serverProperties);
+    }
+
+    @After
+    public void tearDown() {
+        sweeper.stop();
+        keyspace.stop();
+    }
+
+    @Test
+    public void removesExpiredItemsAndLeavesTombstones() throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (sweeper.getPasses() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertNull(client.getBytes(keyspace.dataKey("expired")));
+        assertNotNull(client.getBytes(keyspace.dataKey("live")));
+        // a blind delete of the tombstone could race with a set, it goes with its generation
+        assertEquals(0, client.getBytes(keyspace.dataKey("tombstone")).length);
+        assertEquals(1, stats.get("sweep_expired"));
+        assertEquals(StoredVal.HEADER_SIZE + 1, stats.get("sweep_reclaimed_bytes"));
+    }
+}
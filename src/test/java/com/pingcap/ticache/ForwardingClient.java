@@ -0,0 +1,64 @@
+package com.pingcap.ticache;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Passes every call to a backend, tests override the calls they are after.
+ * Default methods of Client are not forwarded, they run on top of the others.
+ *
+ */
+class ForwardingClient implements Client {
+
+    protected final Client backend;
+
+    ForwardingClient(Client backend) {
+        this.backend = backend;
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getAsync(String key) {
+        return backend.getAsync(key);
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(String key, byte[] value) {
+        return backend.putAsync(key, value);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String key) {
+        return backend.deleteAsync(key);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, byte[]>> batchGetAsync(String prefix, List<String> keys) {
+        return backend.batchGetAsync(prefix, keys);
+    }
+
+    @Override
+    public CompletableFuture<Void> batchPutAsync(Map<String, byte[]> pairs) {
+        return backend.batchPutAsync(pairs);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, byte[]>> scanAsync(String startKey, String endKey, int limit) {
+        return backend.scanAsync(startKey, endKey, limit);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> compareAndSetAsync(String key, byte[] expected, byte[] value) {
+        return backend.compareAndSetAsync(key, expected, value);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteRangeAsync(String startKey, String endKey) {
+        return backend.deleteRangeAsync(startKey, endKey);
+    }
+
+    @Override
+    public void close() throws Exception {
+        backend.close();
+    }
+}
@@ -0,0 +1,82 @@
+package com.pingcap.ticache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Hot key detection under gets from many threads
+ *
+ */
+public class HotKeysTest {
+
+    private static final int THREADS = 4;
+
+    private static final int GETS_PER_THREAD = 5000;
+
+    private final MemoryClient client = new MemoryClient();
+
+    private Keyspace keyspace;
+
+    private HotKeys hotKeys;
+
+    private ExecutorService threads;
+
+    @Before
+    public void setUp() {
+        ServerProperties serverProperties = new ServerProperties();
+        serverProperties.getHotKeys().setSampleRate(1);
+        serverProperties.getHotKeys().setCapacity(8);
+        serverProperties.getHotKeys().setWindow(60000);
+        serverProperties.getHotKeys().setRefreshInterval(10);
+        keyspace = new Keyspace(client, new NearCache(serverProperties), serverProperties);
+        hotKeys = new HotKeys(client, keyspace, new Compression(new Stats(), serverProperties), serverProperties);
+        threads = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        threads.shutdownNow();
+        hotKeys.stop();
+        keyspace.stop();
+    }
+
+    @Test
+    public void findsTheHotKeyAmongManyColdOnes() throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            results.add(threads.submit(() -> {
+                start.await();
+                for (int i = 0; i < GETS_PER_THREAD; i++) {
+                    hotKeys.record("hot");
+                    // every cold key is asked for once, far more of them than candidate slots
+                    hotKeys.record("cold-" + thread + "-" + i);
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> result : results) {
+            result.get(1, TimeUnit.MINUTES);
+        }
+
+        // the window is long enough for no tick to rank in between
+        hotKeys.rank();
+        List<HotKeys.Hot> hot = hotKeys.hotKeys();
+        assertEquals(1, hot.size());
+        assertEquals("hot", hot.get(0).key);
+        assertEquals(0.5, hot.get(0).share, 0.05);
+    }
+}
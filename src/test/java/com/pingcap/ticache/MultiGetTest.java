@@ -0,0 +1,155 @@
+package com.pingcap.ticache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * get and gets of many keys: one batch read, values in the order asked for
+ *
+ */
+public class MultiGetTest {
+
+    private final CountingClient client = new CountingClient(new MemoryClient());
+
+    private TestHandler handler;
+
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() {
+        ServerProperties serverProperties = new ServerProperties();
+        serverProperties.getChunk().setEnabled(true);
+        serverProperties.getChunk().setThreshold(64);
+        serverProperties.getChunk().setChunkSize(16);
+        handler = new TestHandler(client, serverProperties);
+        channel = new EmbeddedChannel(new CommandDecoder(handler.getChunkStore()), handler.getReplyEncoder(),
+                handler.getHandler());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        channel.finishAndReleaseAll();
+        handler.close();
+    }
+
+    @Test
+    public void valuesComeInRequestOrderFromOneBatch() {
+        request("set a 1 0 2\r\nva\r\nset b 2 0 2\r\nvb\r\nset c 3 0 2\r\nvc\r\n");
+        client.clear();
+
+        assertEquals("VALUE c 3 2\r\nvc\r\nVALUE a 1 2\r\nva\r\nVALUE b 2 2\r\nvb\r\nEND\r\n",
+                request("get c missing a b\r\n"));
+        assertEquals(Collections.singletonList(Arrays.asList("c", "missing", "a", "b")), client.batches);
+        assertEquals(0, client.gets);
+    }
+
+    @Test
+    public void singleKeyIsAPlainGet() {
+        request("set a 0 0 2\r\nva\r\n");
+        client.clear();
+
+        assertEquals("VALUE a 0 2\r\nva\r\nEND\r\n", request("get a\r\n"));
+        assertEquals(0, client.batches.size());
+        assertEquals(1, client.gets);
+    }
+
+    @Test
+    public void noneFoundIsASingleEnd() {
+        assertEquals("END\r\n", request("get x y z\r\n"));
+    }
+
+    @Test
+    public void keyAskedForTwiceIsAnsweredTwice() {
+        request("set a 0 0 2\r\nva\r\n");
+
+        assertEquals("VALUE a 0 2\r\nva\r\nVALUE a 0 2\r\nva\r\nEND\r\n", request("get a a\r\n"));
+    }
+
+    @Test
+    public void getsCarriesTheCasOfEachItem() {
+        request("set a 0 0 2\r\nva\r\nset b 0 0 2\r\nvb\r\n");
+
+        String[] lines = request("gets a b\r\n").split("\r\n");
+        assertEquals(5, lines.length);
+        String[] a = lines[0].split(" ");
+        String[] b = lines[2].split(" ");
+        assertEquals(Arrays.asList("VALUE", "a", "0", "2"), Arrays.asList(a).subList(0, 4));
+        assertEquals(Arrays.asList("VALUE", "b", "0", "2"), Arrays.asList(b).subList(0, 4));
+        assertEquals(5, a.length);
+        assertNotEquals(a[4], b[4]);
+        assertEquals("END", lines[4]);
+
+        // the cas of a multi-get is the one a single gets sees
+        assertEquals("VALUE a 0 2 " + a[4] + "\r\nva\r\nEND\r\n", request("gets a\r\n"));
+        assertEquals("STORED\r\n", request("cas b 0 0 3 " + b[4] + "\r\nvb2\r\n"));
+    }
+
+    @Test
+    public void chunkedValuesKeepTheirPlaceAmongSmallOnes() {
+        String big = String.join("", Collections.nCopies(10, "0123456789"));
+        request("set small 0 0 1\r\ns\r\nset big 0 0 100\r\n" + big + "\r\nset tail 0 0 1\r\nt\r\n");
+
+        assertEquals("VALUE small 0 1\r\ns\r\nVALUE big 0 100\r\n" + big + "\r\nVALUE tail 0 1\r\nt\r\nEND\r\n",
+                request("get small big tail\r\n"));
+    }
+
+    private String request(String lines) {
+        channel.writeInbound(Unpooled.copiedBuffer(lines, StandardCharsets.US_ASCII));
+        channel.runPendingTasks();
+        StringBuilder sb = new StringBuilder();
+        ByteBuf reply;
+        while ((reply = channel.readOutbound()) != null) {
+            sb.append(reply.toString(StandardCharsets.US_ASCII));
+            reply.release();
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Counts the reads of items, chunk reads aside
+     */
+    static class CountingClient extends ForwardingClient {
+
+        final List<List<String>> batches = new ArrayList<>();
+
+        int gets;
+
+        CountingClient(Client backend) {
+            super(backend);
+        }
+
+        void clear() {
+            batches.clear();
+            gets = 0;
+        }
+
+        @Override
+        public CompletableFuture<byte[]> getAsync(String key) {
+            if (!key.startsWith(Keyspace.chunkPrefix(0))) {
+                gets++;
+            }
+            return super.getAsync(key);
+        }
+
+        @Override
+        public CompletableFuture<Map<String, byte[]>> batchGetAsync(String prefix, List<String> keys) {
+            batches.add(new ArrayList<>(keys));
+            return super.batchGetAsync(prefix, keys);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.pingcap.ticache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The negative cache in filter mode through CommandHandler
+ *
+ */
+public class NegativeCacheTest {
+
+    private TestHandler handler;
+
+    private NegativeCache negativeCache;
+
+    @Before
+    public void setUp() throws Exception {
+        ServerProperties serverProperties = new ServerProperties();
+        serverProperties.getNegativeCache().setMode("filter");
+        serverProperties.getNegativeCache().setExpectedItems(1000);
+        handler = new TestHandler(new MemoryClient(), serverProperties);
+        negativeCache = handler.getNegativeCache();
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!negativeCache.isReady() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(negativeCache.isReady());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        handler.close();
+    }
+
+    @Test
+    public void absentKeysAreAnsweredByTheFilter() {
+        assertEquals(0, get("never"));
+        assertEquals(1, negativeCache.getHits());
+
+        assertEquals(Reply.STORED, handler.execute(set("k")));
+        assertFalse(negativeCache.isAbsent("k"));
+        assertEquals(1, get("k"));
+
+        assertEquals(Reply.DELETED, handler.execute(new Command("delete", "k", 0, 0, 0, null)));
+        assertTrue(negativeCache.isAbsent("k"));
+        assertEquals(0, negativeCache.getItems());
+    }
+
+    @Test
+    public void deleteRacingAWriteLeavesTheKeyIn() {
+        assertEquals(Reply.STORED, handler.execute(set("k")));
+        long generation = handler.getKeyspace().getGeneration();
+
+        // a set of k is on its way while a delete removes what it read
+        negativeCache.beginWrite("k");
+        long stamp = negativeCache.stamp("k");
+        negativeCache.recordDelete("k", generation, stamp);
+        negativeCache.endWrite("k", true);
+        assertEquals(2, negativeCache.getItems());
+
+        // a set that started and ended after the delete read the item
+        stamp = negativeCache.stamp("k");
+        negativeCache.beginWrite("k");
+        negativeCache.endWrite("k", true);
+        negativeCache.recordDelete("k", generation, stamp);
+        assertEquals(3, negativeCache.getItems());
+
+        // nothing in between
+        stamp = negativeCache.stamp("k");
+        negativeCache.recordDelete("k", generation, stamp);
+        assertEquals(2, negativeCache.getItems());
+        assertFalse(negativeCache.isAbsent("k"));
+    }
+
+    private static Command set(String key) {
+        byte[] val = "v".getBytes(StandardCharsets.US_ASCII);
+        return new Command("set", key, 0, 0, val.length, val);
+    }
+
+    /**
+     * @return the number of items found
+     */
+    private int get(String key) {
+        Command command = new Command("get", key, 0, 0, 0, null);
+        command.setKeys(Collections.singletonList(key));
+        return ((Reply.Values) handler.execute(command)).size();
+    }
+}
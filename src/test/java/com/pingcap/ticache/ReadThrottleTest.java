@@ -0,0 +1,34 @@
+package com.pingcap.ticache;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pause reasons of independent owners do not undo each other
+ *
+ */
+public class ReadThrottleTest {
+
+    @Test
+    public void readingOnlyResumesOnceEveryReasonIsCleared() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+
+        ReadThrottle.pause(channel, ReadThrottle.PIPELINE);
+        ReadThrottle.pause(channel, ReadThrottle.UPLOAD);
+        ReadThrottle.resume(channel, ReadThrottle.UPLOAD);
+        assertFalse(channel.config().isAutoRead());
+        assertTrue(ReadThrottle.isPaused(channel));
+
+        // clearing a reason that is not set changes nothing
+        ReadThrottle.resume(channel, ReadThrottle.UPLOAD);
+        assertFalse(channel.config().isAutoRead());
+
+        ReadThrottle.resume(channel, ReadThrottle.PIPELINE);
+        assertTrue(channel.config().isAutoRead());
+        assertFalse(ReadThrottle.isPaused(channel));
+        channel.finishAndReleaseAll();
+    }
+}
@@ -0,0 +1,124 @@
+package com.pingcap.ticache;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Single and batch gets sharing backend reads
+ *
+ */
+public class SingleFlightClientTest {
+
+    private final HeldClient backend = new HeldClient(new MemoryClient());
+
+    private final Stats stats = new Stats();
+
+    private final SingleFlightClient client = new SingleFlightClient(backend, stats);
+
+    @Test
+    public void batchGetJoinsReadsInFlight() {
+        backend.putBytes("p_a", bytes("A"));
+        backend.putBytes("p_b", bytes("B"));
+
+        CompletableFuture<byte[]> single = client.getAsync("p_a");
+        CompletableFuture<Map<String, byte[]>> batch = client.batchGetAsync("p_", Arrays.asList("a", "b", "c"));
+        assertEquals(Collections.singletonList(Arrays.asList("b", "c")), backend.batches);
+        assertFalse(batch.isDone());
+
+        backend.release();
+        assertArrayEquals(bytes("A"), single.join());
+        Map<String, byte[]> values = batch.join();
+        assertEquals(2, values.size());
+        assertArrayEquals(bytes("A"), values.get("a"));
+        assertArrayEquals(bytes("B"), values.get("b"));
+        assertEquals(1, stats.get("single_flight_saved"));
+        assertEquals(3, stats.get("single_flight_reads"));
+    }
+
+    @Test
+    public void getJoinsABatchInFlight() {
+        backend.putBytes("p_a", bytes("A"));
+
+        CompletableFuture<Map<String, byte[]>> batch = client.batchGetAsync("p_", Arrays.asList("a", "b"));
+        CompletableFuture<byte[]> single = client.getAsync("p_a");
+        CompletableFuture<byte[]> missing = client.getAsync("p_b");
+        CompletableFuture<Map<String, byte[]>> again = client.batchGetAsync("p_", Arrays.asList("b", "a"));
+        assertEquals(1, backend.batches.size());
+        assertEquals(1, backend.held.size());
+
+        backend.release();
+        assertArrayEquals(bytes("A"), single.join());
+        assertNull(missing.join());
+        assertEquals(1, batch.join().size());
+        assertArrayEquals(bytes("A"), again.join().get("a"));
+        assertEquals(4, stats.get("single_flight_saved"));
+
+        // nothing is left in flight, the next batch reads again
+        client.batchGetAsync("p_", Collections.singletonList("a"));
+        assertEquals(2, backend.batches.size());
+    }
+
+    @Test
+    public void writeKeepsLaterBatchesFromJoiningAnOlderRead() {
+        backend.putBytes("p_a", bytes("old"));
+        CompletableFuture<byte[]> single = client.getAsync("p_a");
+        client.putBytes("p_a", bytes("new"));
+
+        CompletableFuture<Map<String, byte[]>> batch = client.batchGetAsync("p_", Collections.singletonList("a"));
+        backend.release();
+        assertTrue(single.isDone());
+        assertArrayEquals(bytes("new"), batch.join().get("a"));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Holds every read back until released, records the keys of each batch get
+     */
+    static class HeldClient extends ForwardingClient {
+
+        final List<List<String>> batches = new ArrayList<>();
+
+        final List<Runnable> held = new ArrayList<>();
+
+        HeldClient(Client backend) {
+            super(backend);
+        }
+
+        void release() {
+            List<Runnable> reads = new ArrayList<>(held);
+            held.clear();
+            reads.forEach(Runnable::run);
+        }
+
+        @Override
+        public CompletableFuture<byte[]> getAsync(String key) {
+            CompletableFuture<byte[]> read = new CompletableFuture<>();
+            held.add(() -> read.complete(backend.getBytes(key)));
+            return read;
+        }
+
+        @Override
+        public CompletableFuture<Map<String, byte[]>> batchGetAsync(String prefix, List<String> keys) {
+            batches.add(keys);
+            CompletableFuture<Map<String, byte[]>> read = new CompletableFuture<>();
+            held.add(() -> read.complete(backend.batchGetAsync(prefix, keys).join()));
+            return read;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.pingcap.ticache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The stats command and its views, as a memcached client parses them
+ *
+ */
+public class StatsTest {
+
+    private TestHandler handler;
+
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() {
+        ServerProperties serverProperties = new ServerProperties();
+        serverProperties.getChunk().setEnabled(true);
+        serverProperties.getChunk().setChunkSize(16);
+        handler = new TestHandler(new MemoryClient(), serverProperties);
+        channel = new EmbeddedChannel(new CommandDecoder(handler.getChunkStore()), handler.getReplyEncoder(),
+                handler.getHandler());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        channel.finishAndReleaseAll();
+        handler.close();
+    }
+
+    @Test
+    public void generalStatsCountCommandsHitsAndMisses() {
+        request("set k 0 0 1\r\nv\r\nget k missing\r\ndelete missing\r\ntouch k 10\r\n");
+
+        Map<String, String> stats = stats("stats\r\n");
+        assertEquals("1", stats.get("cmd_set"));
+        assertEquals("2", stats.get("cmd_get"));
+        assertEquals("1", stats.get("get_hits"));
+        assertEquals("1", stats.get("get_misses"));
+        assertEquals("1", stats.get("delete_misses"));
+        assertEquals("0", stats.get("delete_hits"));
+        assertEquals("1", stats.get("cmd_touch"));
+        assertEquals("1", stats.get("touch_hits"));
+        assertEquals(CommandHandler.VERSION, stats.get("version"));
+        assertTrue(stats.containsKey("pid"));
+        assertTrue(stats.containsKey("uptime"));
+
+        // every counter is reported, those not counted yet as 0
+        for (String counter : Stats.COUNTERS) {
+            assertTrue(counter, stats.containsKey(counter));
+        }
+    }
+
+    @Test
+    public void latencyHasPercentilesPerCommand() {
+        request("set k 0 0 1\r\nv\r\nget k\r\nget k\r\n");
+
+        Map<String, String> stats = stats("stats latency\r\n");
+        assertEquals("2", stats.get("get:count"));
+        assertEquals("1", stats.get("set:count"));
+        long p50 = Long.parseLong(stats.get("get:p50_us"));
+        long p99 = Long.parseLong(stats.get("get:p99_us"));
+        assertTrue(p50 <= p99);
+        assertTrue(p99 <= Long.parseLong(stats.get("get:max_us")));
+    }
+
+    @Test
+    public void settingsReportTheConfiguration() {
+        Map<String, String> stats = stats("stats settings\r\n");
+
+        assertEquals("no", stats.get("async"));
+        assertEquals("no", stats.get("near_cache"));
+        assertEquals("yes", stats.get("chunked_storage"));
+        assertEquals("16", stats.get("chunk_size"));
+        assertEquals(String.valueOf(CommandDecoder.MAX_KEY_LENGTH), stats.get("key_max"));
+    }
+
+    @Test
+    public void resetZeroesTheCounters() {
+        request("set k 0 0 1\r\nv\r\nget k\r\n");
+
+        assertEquals("RESET\r\n", request("stats reset\r\n"));
+        Map<String, String> stats = stats("stats\r\n");
+        assertEquals("0", stats.get("cmd_set"));
+        assertEquals("0", stats.get("cmd_get"));
+        assertEquals("0", stats.get("get_hits"));
+        assertEquals("0", stats("stats latency\r\n").get("get:count"));
+    }
+
+    @Test
+    public void unknownViewIsAnError() {
+        assertEquals("ERROR\r\n", request("stats bogus\r\n"));
+        assertEquals("VERSION " + CommandHandler.VERSION + "\r\n", request("version\r\n"));
+    }
+
+    /**
+     * @return the STAT lines by name, after checking the reply is made of them and END alone
+     */
+    private Map<String, String> stats(String request) {
+        String reply = request(request);
+        assertTrue(reply, reply.endsWith("END\r\n"));
+        Map<String, String> stats = new LinkedHashMap<>();
+        String[] lines = reply.split("\r\n");
+        for (int i = 0; i < lines.length - 1; i++) {
+            String[] stat = lines[i].split(" ", 3);
+            assertEquals(lines[i], 3, stat.length);
+            assertEquals(lines[i], "STAT", stat[0]);
+            stats.put(stat[1], stat[2]);
+        }
+        return stats;
+    }
+
+    private String request(String lines) {
+        channel.writeInbound(Unpooled.copiedBuffer(lines, StandardCharsets.US_ASCII));
+        StringBuilder sb = new StringBuilder();
+        ByteBuf reply;
+        while ((reply = channel.readOutbound()) != null) {
+            sb.append(reply.toString(StandardCharsets.US_ASCII));
+            reply.release();
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,84 @@
+package com.pingcap.ticache;
+
+import io.netty.util.concurrent.ImmediateEventExecutor;
+
+/**
+ * A CommandHandler wired as the server does, minus Spring, over the given backend
+ *
+ * Commands run synchronously, async.enabled is turned off. Those a
+ * connection still pipelines, like chunked sets, run on the thread that
+ * completes what they wait for.
+ *
+ */
+class TestHandler implements AutoCloseable {
+
+    private final Client client;
+
+    private final Keyspace keyspace;
+
+    private final WriteBatcher writeBatcher;
+
+    private final HotKeys hotKeys;
+
+    private final NegativeCache negativeCache;
+
+    private final ChunkStore chunkStore;
+
+    private final ReplyEncoder replyEncoder = new ReplyEncoder();
+
+    private final CommandHandler handler;
+
+    TestHandler(Client client, ServerProperties serverProperties) {
+        this.client = client;
+        serverProperties.getAsync().setEnabled(false);
+        NearCache nearCache = new NearCache(serverProperties);
+        keyspace = new Keyspace(client, nearCache, serverProperties);
+        writeBatcher = new WriteBatcher(client, serverProperties);
+        Stats stats = new Stats();
+        Compression compression = new Compression(stats, serverProperties);
+        hotKeys = new HotKeys(client, keyspace, compression, serverProperties);
+        negativeCache = new NegativeCache(client, keyspace, serverProperties);
+        chunkStore = new ChunkStore(client, keyspace, stats, serverProperties);
+        handler = new CommandHandler(client, serverProperties, ImmediateEventExecutor.INSTANCE, keyspace,
+                nearCache, new CasMetrics(), writeBatcher, stats, new SlowLog(serverProperties, client),
+                hotKeys, negativeCache, compression, chunkStore);
+    }
+
+    Client getClient() {
+        return client;
+    }
+
+    CommandHandler getHandler() {
+        return handler;
+    }
+
+    Keyspace getKeyspace() {
+        return keyspace;
+    }
+
+    NegativeCache getNegativeCache() {
+        return negativeCache;
+    }
+
+    ChunkStore getChunkStore() {
+        return chunkStore;
+    }
+
+    ReplyEncoder getReplyEncoder() {
+        return replyEncoder;
+    }
+
+    Reply execute(Command command) {
+        return handler.execute(command);
+    }
+
+    @Override
+    public void close() throws Exception {
+        writeBatcher.stop();
+        hotKeys.stop();
+        negativeCache.stop();
+        chunkStore.stop();
+        keyspace.stop();
+        client.close();
+    }
+}
@@ -0,0 +1,99 @@
+package com.pingcap.ticache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Text protocol requests through the decoder, handler and reply encoder
+ *
+ */
+public class TextProtocolTest {
+
+    private TestHandler handler;
+
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() {
+        ServerProperties serverProperties = new ServerProperties();
+        serverProperties.getChunk().setEnabled(true);
+        serverProperties.getChunk().setThreshold(64);
+        serverProperties.getChunk().setChunkSize(16);
+        // released chunks are deleted right away
+        serverProperties.getChunk().setOrphanGrace(0);
+        handler = new TestHandler(new MemoryClient(), serverProperties);
+        channel = new EmbeddedChannel(new CommandDecoder(handler.getChunkStore()), handler.getReplyEncoder(),
+                handler.getHandler());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        channel.finishAndReleaseAll();
+        handler.close();
+    }
+
+    @Test
+    public void quitFlushesTheRepliesBeforeIt() {
+        String replies = request("set k 0 0 1\r\nv\r\nget k\r\nquit\r\n");
+
+        assertEquals("STORED\r\nVALUE k 0 1\r\nv\r\nEND\r\n", replies);
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void deleteReleasesTheChunksOfTheRemovedItem() throws Exception {
+        String value = String.join("", Collections.nCopies(10, "0123456789"));
+        assertEquals("STORED\r\n", request("set big 0 0 100\r\n" + value + "\r\n"));
+        assertFalse(chunks().isEmpty());
+
+        assertEquals("DELETED\r\n", request("delete big\r\n"));
+        assertEquals("NOT_FOUND\r\n", request("delete big\r\n"));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!chunks().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(chunks().isEmpty());
+    }
+
+    @Test
+    public void casOnlyReplacesTheVersionReadWithGets() {
+        request("set k 0 0 2\r\nv1\r\n");
+        String gets = request("gets k\r\n");
+        String cas = gets.substring("VALUE k 0 2 ".length(), gets.indexOf("\r\n"));
+
+        assertEquals("EXISTS\r\n", request("cas k 0 0 2 " + Long.toUnsignedString(Long.parseUnsignedLong(cas) + 1)
+                + "\r\nv2\r\n"));
+        assertEquals("STORED\r\n", request("cas k 0 0 2 " + cas + "\r\nv2\r\n"));
+        assertEquals("EXISTS\r\n", request("cas k 0 0 2 " + cas + "\r\nv3\r\n"));
+        assertEquals("NOT_FOUND\r\n", request("cas missing 0 0 2 " + cas + "\r\nv3\r\n"));
+        assertEquals("VALUE k 0 2\r\nv2\r\nEND\r\n", request("get k\r\n"));
+    }
+
+    private Map<String, byte[]> chunks() {
+        String prefix = Keyspace.chunkPrefix(0);
+        return handler.getClient().scan(prefix, Keyspace.prefixEnd(prefix), 100);
+    }
+
+    private String request(String lines) {
+        channel.writeInbound(Unpooled.copiedBuffer(lines, StandardCharsets.US_ASCII));
+        StringBuilder sb = new StringBuilder();
+        ByteBuf reply;
+        while ((reply = channel.readOutbound()) != null) {
+            sb.append(reply.toString(StandardCharsets.US_ASCII));
+            reply.release();
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,123 @@
+package com.pingcap.ticache;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * deleteIf on a backend without a conditional delete, as TiKV without
+ * native ttl: the value is swapped for an empty tombstone and a set racing
+ * with it must never be lost
+ *
+ */
+public class TombstoneDeleteTest {
+
+    private static final int SETS = 2000;
+
+    /**
+     * keeps the tombstone deleteIf of Client
+     */
+    private final Client client = new ForwardingClient(new MemoryClient());
+
+    private final ExecutorService threads = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() throws Exception {
+        threads.shutdownNow();
+        client.close();
+    }
+
+    @Test
+    public void setRightAfterTheTombstoneIsKept() throws Exception {
+        byte[] old = "old".getBytes(StandardCharsets.US_ASCII);
+        byte[] late = "late".getBytes(StandardCharsets.US_ASCII);
+        // a set from another connection lands the moment the tombstone is in
+        Client racing = new ForwardingClient(new MemoryClient()) {
+            @Override
+            public CompletableFuture<Boolean> compareAndSetAsync(String key, byte[] expected, byte[] value) {
+                return super.compareAndSetAsync(key, expected, value).thenApply(swapped -> {
+                    if (swapped && value.length == 0) {
+                        backend.putBytes(key, late);
+                    }
+                    return swapped;
+                });
+            }
+        };
+        racing.putBytes("k", old);
+
+        assertTrue(racing.deleteIf("k", old));
+        assertArrayEquals(late, racing.getBytes("k"));
+        racing.close();
+    }
+
+    @Test
+    public void deleteIfNeverDropsAConcurrentSet() throws Exception {
+        String key = "raced";
+        // every value a deleteIf was tried on, a set may only disappear through one of these
+        Set<String> deleted = ConcurrentHashMap.newKeySet();
+        AtomicBoolean done = new AtomicBoolean();
+        Future<?> deleter = threads.submit(() -> {
+            while (!done.get()) {
+                byte[] current = client.getBytes(key);
+                if (current == null || current.length == 0) {
+                    continue;
+                }
+                deleted.add(new String(current, StandardCharsets.US_ASCII));
+                client.deleteIf(key, current);
+            }
+            return null;
+        });
+
+        try {
+            for (int i = 0; i < SETS; i++) {
+                String value = "v" + i;
+                client.putBytes(key, value.getBytes(StandardCharsets.US_ASCII));
+                // the deleter keeps going, look a few times until the next set
+                for (int check = 0; check < 3; check++) {
+                    assertSetKept(value, client.getBytes(key), deleted);
+                    Thread.yield();
+                }
+            }
+        } finally {
+            done.set(true);
+        }
+        deleter.get(1, TimeUnit.MINUTES);
+    }
+
+    private static void assertSetKept(String value, byte[] current, Set<String> deleted) {
+        if (current == null || current.length == 0) {
+            assertTrue("set of " + value + " was lost", deleted.contains(value));
+        } else {
+            assertEquals(value, new String(current, StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    public void deleteIfLeavesATombstoneThatReadsAsMissing() throws Exception {
+        try (TestHandler handler = new TestHandler(client, new ServerProperties())) {
+            byte[] val = "v".getBytes(StandardCharsets.US_ASCII);
+            assertEquals(Reply.STORED, handler.execute(new Command("set", "gone", 0, 0, val.length, val)));
+            assertEquals(Reply.DELETED, handler.execute(new Command("delete", "gone", 0, 0, 0, null)));
+
+            Command get = new Command("get", "gone", 0, 0, 0, null);
+            get.setKeys(Collections.singletonList("gone"));
+            assertEquals(0, ((Reply.Values) handler.execute(get)).size());
+            assertArrayEquals(new byte[0], client.getBytes(handler.getKeyspace().dataKey("gone")));
+            assertEquals(Reply.NOT_FOUND, handler.execute(new Command("delete", "gone", 0, 0, 0, null)));
+        }
+    }
+}